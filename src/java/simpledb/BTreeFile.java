@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import simpledb.Predicate.Op;
 
@@ -11,6 +12,19 @@ import simpledb.Predicate.Op;
  * a set of internal pages, and a set of leaf pages, which contain a collection of tuples
  * in sorted order. BTreeFile works closely with BTreeLeafPage, BTreeInternalPage,
  * and BTreeRootPtrPage. The format of these pages is described in their constructors.
+ * <p>
+ * Searches take no locks on the root pointer page or on internal pages. They
+ * walk down to the leaf unlocked and lock only the leaf, then check that no
+ * structure modification overlapped the walk, and otherwise walk down again
+ * locking every page on the path. A transaction that changes internal pages,
+ * the root pointer or the header pages first takes the structure lock, an
+ * exclusive lock on the root pointer page, so structure modifications
+ * serialize with each other but not with searches.
+ * <p>
+ * While no transaction holds the structure lock, searches walk the top
+ * levels of the tree in a {@link BTreeNodeCache} of decoded internal pages
+ * instead of the BufferPool. The cache is tied to the count of structure
+ * changes, so any structure modification invalidates it.
  * 
  * @see simpledb.BTreeLeafPage#BTreeLeafPage
  * @see simpledb.BTreeInternalPage#BTreeInternalPage
@@ -25,6 +39,13 @@ public class BTreeFile implements DbFile {
 	private final int tableid ;
 	private int keyField;
 
+	/** Levels of internal pages kept in the node cache, from the root down */
+	private static final int CACHED_LEVELS = 2;
+
+	/** Counts the structure locks taken on this file, see {@link #lockStructure} */
+	private final AtomicLong structureChanges = new AtomicLong();
+	private final BTreeNodeCache nodeCache;
+
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
 	 * 
@@ -38,6 +59,7 @@ public class BTreeFile implements DbFile {
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.nodeCache = new BTreeNodeCache(tableid, CACHED_LEVELS);
 	}
 
 	/**
@@ -78,39 +100,18 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-				if (retval == -1) {
-					throw new IllegalArgumentException("Read past end of table");
-				}
-				if (retval < BTreeRootPtrPage.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-				}
+				readFully(pageBuf, 0);
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
 				BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
 				return p;
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) !=
-						BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-				if (retval == -1) {
-					throw new IllegalArgumentException("Read past end of table");
-				}
-				if (retval < BufferPool.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BufferPool.getPageSize() + " bytes from BTreeFile");
-				}
+				readFully(pageBuf, pageOffset(id.getPageNumber()));
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
 				if(id.pgcateg() == BTreePageId.INTERNAL) {
 					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
@@ -127,14 +128,22 @@ public class BTreeFile implements DbFile {
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
+		}
+	}
+
+	/**
+	 * Returns the offset in the file of a page other than the root pointer page
+	 */
+	private static long pageOffset(int pageNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pageNo-1) * BufferPool.getPageSize();
+	}
+
+	private void readFully(byte[] pageBuf, long offset) throws IOException {
+		try {
+			Database.getFileManager().read(f, pageBuf, offset);
+		} catch (EOFException e) {
+			throw new IllegalArgumentException("Unable to read "
+					+ pageBuf.length + " bytes from BTreeFile: read past end of table");
 		}
 	}
 
@@ -148,15 +157,11 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			Database.getFileManager().write(f, data, 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().getPageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			Database.getFileManager().write(f, data, pageOffset(id.getPageNumber()));
 		}
 	}
 	
@@ -195,25 +200,164 @@ public class BTreeFile implements DbFile {
 			Field f) 
 					throws DbException, TransactionAbortedException {
 		// some code goes here
-        return null;
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		}
+
+		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		BTreePageId child = childFor(page, f);
+		// the internal page is not needed once we know the child; pages this
+		// operation is about to modify stay pinned in dirtypages
+		if(!dirtypages.containsKey(pid)) {
+			Database.getBufferPool().unpinPage(tid, pid);
+		}
+		return findLeafPage(tid, dirtypages, child, perm, f);
 	}
 	
+	/**
+	 * Find the child of an internal page whose subtree holds the left-most
+	 * tuples possibly matching the key field f, by a binary search of the
+	 * keys of the page.
+	 * 
+	 * @param page - the internal page
+	 * @param f - the field to search for, or null for the left-most child
+	 * @return the id of the child page
+	 * @throws DbException if the page has no entries
+	 */
+	private BTreePageId childFor(BTreeInternalPage page, Field f) throws DbException {
+		BTreePageId child = page.findChild(f);
+		if(child == null) {
+			throw new DbException("internal page " + page.getId().getPageNumber() + " has no entries");
+		}
+		return child;
+	}
+
+	/**
+	 * Find and lock the leaf page in the B+ tree corresponding to the left-most page
+	 * possibly containing the key field f, starting from the root, and lock it with
+	 * permission perm.
+	 * <p>
+	 * The root pointer and internal pages are first read without locks, through the
+	 * node cache if no transaction holds the structure lock. The walk stands if no
+	 * other transaction held the structure lock and none took it from before the
+	 * walk until the leaf is locked. Otherwise the walk is repeated with
+	 * the locks of {@link #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)},
+	 * which wait for the structure modification to complete.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @return the left-most leaf page possibly containing the key field f
+	 */
+	BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, Permissions perm,
+			Field f) 
+					throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+
+		// snapshot transactions lock nothing anyway
+		if(tid != null && !bp.readsSnapshot(tid)) {
+			long changes = structureChanges.get();
+			BTreePageId leafId = null;
+			try {
+				// the node cache only holds structure that no transaction is
+				// changing, so it is not used while tid holds the structure lock
+				if(!bp.pageLockedByOthers(null, rootPtrId)) {
+					leafId = walkUnlocked(nodeCache.descend(f, changes), f);
+				}
+				else if(!bp.pageLockedByOthers(tid, rootPtrId)) {
+					BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bp.getPage(null, rootPtrId, Permissions.READ_ONLY);
+					leafId = walkUnlocked(rootPtr.getRootId(), f);
+				}
+			} catch(DbException | RuntimeException e) {
+				// a page changed under the walk
+			}
+			// the leaf id is only trusted if the walk saw a stable tree, and
+			// the leaf only if no structure modification came before its lock
+			if(leafId != null && stable(tid, changes)) {
+				BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, leafId, perm);
+				if(stable(tid, changes)) {
+					return leaf;
+				}
+				if(!dirtypages.containsKey(leafId)) {
+					bp.unpinPage(tid, leafId);
+				}
+			}
+		}
+
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_ONLY);
+		BTreePageId rootId = rootPtr.getRootId();
+		if(!dirtypages.containsKey(rootPtrId)) {
+			bp.unpinPage(tid, rootPtrId);
+		}
+		return findLeafPage(tid, dirtypages, rootId, perm, f);
+	}
+
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
-	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+	 * Used by the BTreeFile iterators.
+	 * @see #findLeafPage(TransactionId, HashMap, Permissions, Field)
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
 	 * 
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
-			Field f) 
+	BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f) 
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+		return findLeafPage(tid, new HashMap<PageId, Page>(), perm, f);
+	}
+
+	/**
+	 * Walk from a page down to the leaf page possibly containing the key field f
+	 * without locking or pinning any page. Concurrent structure modifications
+	 * may tear what the walk reads, so its result must be validated.
+	 * 
+	 * @param pid - the page to start from
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @return the id of the leaf page
+	 */
+	private BTreePageId walkUnlocked(BTreePageId pid, Field f) throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		// a null transaction reads a page without locking or pinning it
+		while(pid.pgcateg() == BTreePageId.INTERNAL) {
+			pid = childFor((BTreeInternalPage) bp.getPage(null, pid, Permissions.READ_ONLY), f);
+		}
+		return pid;
+	}
+
+	/**
+	 * @return true if no transaction but tid holds the structure lock, and
+	 *   none has taken it since structureChanges was read as changes
+	 */
+	private boolean stable(TransactionId tid, long changes) {
+		return !Database.getBufferPool().pageLockedByOthers(tid, BTreeRootPtrPage.getId(tableid))
+				&& structureChanges.get() == changes;
+	}
+
+	/**
+	 * Take the structure lock of this file for tid, an exclusive lock on the root
+	 * pointer page held until tid completes. Every transaction that changes internal
+	 * pages, the root pointer or the header pages takes it first, so that searches
+	 * walking the tree unlocked can tell that the structure may have changed.
+	 * 
+	 * @param tid - the transaction id
+	 */
+	private void lockStructure(TransactionId tid) throws TransactionAbortedException {
+		Database.getBufferPool().lockPage(tid, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+		// counted after the lock is granted, so that a search which saw the lock
+		// free before the change also sees the count move
+		structureChanged();
+	}
+
+	/**
+	 * Count a change to the structure of this file, which invalidates the node
+	 * cache and any search walking the tree unlocked at the time.
+	 */
+	private void structureChanged() {
+		structureChanges.incrementAndGet();
 	}
 
 	/**
@@ -221,7 +365,9 @@ public class BTreeFile implements DbFile {
 	 * as needed to accommodate a new entry. The new entry should have a key matching the key field
 	 * of the first tuple in the right-hand page (the key is "copied up"), and child pointers 
 	 * pointing to the two leaf pages resulting from the split.  Update sibling pointers and parent 
-	 * pointers as needed.  
+	 * pointers as needed.  For string keys, the shorter key returned by 
+	 * {@link BTreeInternalPage#separator(Field, Field)} for the last key of the left-hand page 
+	 * and the first key of the right-hand page separates them as well.
 	 * 
 	 * Return the leaf page into which a new tuple with key field "field" should be inserted.
 	 * 
@@ -334,6 +480,7 @@ public class BTreeFile implements DbFile {
 		// split the parent if needed
 		if(parent.getNumEmptySlots() == 0) {
 			parent = splitInternalPage(tid, dirtypages, parent, field);
+			structureChanged();
 		}
 
 		return parent;
@@ -399,6 +546,12 @@ public class BTreeFile implements DbFile {
 	 * This method is needed to ensure that page updates are not lost if the same pages are
 	 * accessed multiple times.
 	 * 
+	 * Pages fetched from the buffer pool are pinned for the transaction; the ones kept in
+	 * dirtypages stay pinned until the transaction completes.
+	 * 
+	 * Fetching any page but a leaf with read-write permission takes the structure lock
+	 * first, see {@link #lockStructure}.
+	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
 	 * @param pid - the id of the requested page
@@ -415,6 +568,9 @@ public class BTreeFile implements DbFile {
 			return dirtypages.get(pid);
 		}
 		else {
+			if(perm == Permissions.READ_WRITE && pid.pgcateg() != BTreePageId.LEAF) {
+				lockStructure(tid);
+			}
 			Page p = Database.getBufferPool().getPage(tid, pid, perm);
 			if(perm == Permissions.READ_WRITE) {
 				dirtypages.put(pid, p);
@@ -437,19 +593,22 @@ public class BTreeFile implements DbFile {
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
+		// read the root pointer page without locking it, creating it if necessary
+		createRootPtrPage();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(null, 
+				rootPtrId, Permissions.READ_ONLY);
 
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+		if(rootPtr.getRootId() == null) { // the root has just been created, so set the root pointer to point to it		
+			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+			if(rootPtr.getRootId() == null) {
+				rootPtr.setRootId(new BTreePageId(tableid, numPages(), BTreePageId.LEAF));
+			}
 		}
 
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, t.getField(keyField));
 		if(leafPage.getNumEmptySlots() == 0) {
 			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
 		}
@@ -617,9 +776,11 @@ public class BTreeFile implements DbFile {
 			// steal some entries from it
 			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
 				mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
+				structureChanged();
 			}
 			else {
 				stealFromLeftInternalPage(tid, dirtypages, page, leftSibling, parent, leftEntry);
+				structureChanged();
 			}
 		}
 		else if(rightSiblingId != null) {
@@ -628,9 +789,11 @@ public class BTreeFile implements DbFile {
 			// steal some entries from it
 			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
 				mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
+				structureChanged();
 			}
 			else {
 				stealFromRightInternalPage(tid, dirtypages, page, rightSibling, parent, rightEntry);
+				structureChanged();
 			}
 		}
 	}
@@ -781,7 +944,7 @@ public class BTreeFile implements DbFile {
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
 		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
-		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
+		if(parent.getNumEntries() == 0) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged 
 			// page will become the new root
@@ -845,23 +1008,24 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
-		synchronized(this) {
-			if(f.length() == 0) {
-				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
-			}
-		}
+		createRootPtrPage();
 
 		// get a read lock on the root pointer page
 		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
+	/**
+	 * Create the root pointer page and the root page if the file is empty.
+	 */
+	private synchronized void createRootPtrPage() throws IOException {
+		if(f.length() == 0) {
+			byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
+			byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
+			Database.getFileManager().append(f, emptyRootPtrData);
+			Database.getFileManager().append(f, emptyLeafData);
+		}
+	}
+
 	/**
 	 * Get the page number of the first empty page in this BTreeFile.
 	 * Creates a new page if none of the existing pages are empty.
@@ -910,11 +1074,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				Database.getFileManager().append(f, emptyData);
 				emptyPageNo = numPages();
 			}
 		}
@@ -940,15 +1101,14 @@ public class BTreeFile implements DbFile {
 	 */
 	private Page getEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pgcateg)
 			throws DbException, IOException, TransactionAbortedException {
+		lockStructure(tid);
+
 		// create the new page
 		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		Database.getFileManager().write(f, BTreePage.createEmptyPageData(), pageOffset(emptyPageNo));
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1096,10 +1256,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
 		it = curp.iterator();
 	}
 
@@ -1116,12 +1273,13 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 		while (it == null && curp != null) {
 			BTreePageId nextp = curp.getRightSiblingId();
+			Database.getBufferPool().unpinPage(tid, curp.getId());
 			if(nextp == null) {
 				curp = null;
 			}
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+						nextp, Permissions.READ_ONLY, true);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1147,6 +1305,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		if(curp != null) {
+			Database.getBufferPool().unpinPage(tid, curp.getId());
+		}
 		curp = null;
 	}
 }
@@ -1163,6 +1324,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	TransactionId tid;
 	BTreeFile f;
 	IndexPredicate ipred;
+	boolean unbounded;
 
 	/**
 	 * Constructor for this iterator
@@ -1174,24 +1336,28 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		this.f = f;
 		this.tid = tid;
 		this.ipred = ipred;
+		// every search reads the leaves as a sequential scan, but only one that
+		// runs to the last leaf reads ahead; a bounded one must not read past
+		// its end
+		this.unbounded = ipred.getOp() == Op.GREATER_THAN 
+				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ || ipred.getOp() == Op.NOT_EQUALS;
 	}
 
 	/**
 	 * Open this iterator by getting an iterator on the first leaf page applicable
-	 * for the given predicate operation
+	 * for the given predicate operation, from the first tuple whose key is not
+	 * less than the predicate field for the operations which search for it
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
+			it = curp.iterator(ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+			it = curp.iterator();
 		}
-		it = curp.iterator();
 	}
 
 	/**
@@ -1224,13 +1390,16 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			}
 
 			BTreePageId nextp = curp.getRightSiblingId();
+			Database.getBufferPool().unpinPage(tid, curp.getId());
+			curp = null;
+			it = null;
 			// if there are no more pages to the right, end the iteration
 			if(nextp == null) {
 				return null;
 			}
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+						nextp, Permissions.READ_ONLY, true, unbounded);
 				it = curp.iterator();
 			}
 		}
@@ -1252,5 +1421,9 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		if(curp != null) {
+			Database.getBufferPool().unpinPage(tid, curp.getId());
+		}
+		curp = null;
 	}
 }
@@ -1,6 +1,8 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 import simpledb.Predicate.Op;
@@ -13,6 +15,12 @@ import simpledb.Predicate.Op;
 
 public class BTreeFileEncoder {
 
+	/** Heap pages of tuples sorted in memory for each run of the external sort */
+	private static final int RUN_PAGES = BufferPool.DEFAULT_PAGES;
+
+	/** Pages gathered into each write of the bulk load */
+	private static final int WRITE_PAGES = 64;
+
 	/**
 	 * Encode the file using the BTreeFile's Insert method.
 	 * 
@@ -181,7 +189,7 @@ public class BTreeFileEncoder {
 	}
 
 	/** 
-	 * Faster method to encode the B+ tree file
+	 * Faster method to encode the B+ tree file, packing every page full.
 	 * 
 	 * @param inFile - the file containing the raw data
 	 * @param hFile - the data file for the HeapFile to be used as an intermediate conversion step
@@ -195,301 +203,533 @@ public class BTreeFileEncoder {
 	 * @throws IOException
 	 * @throws DbException
 	 * @throws TransactionAbortedException
+	 * @see #convert(File, File, File, int, int, Type[], char, int, double)
 	 */
 	public static BTreeFile convert(File inFile, File hFile, File bFile, int npagebytes,
 			int numFields, Type[] typeAr, char fieldSeparator, int keyField) 
 					throws IOException, DbException, TransactionAbortedException {
-		// convert the inFile to HeapFile first.
-		HeapFileEncoder.convert(inFile, hFile, BufferPool.getPageSize(), numFields);
-		HeapFile heapf = Utility.openHeapFile(numFields, hFile);
+		return convert(inFile, hFile, bFile, npagebytes, numFields, typeAr, 
+				fieldSeparator, keyField, 1.0);
+	}
+
+	/** 
+	 * Bulk load a B+ tree file bottom-up from the raw data.
+	 * <p>
+	 * The tuples are sorted on the key field by an external merge sort: runs
+	 * of RUN_PAGES heap pages are sorted in memory and spilled to temporary
+	 * files, which are then merged. As the sorted tuples stream out of the
+	 * merge they are packed into leaf pages, and each level of internal pages
+	 * is built from the keys that separate the pages of the level below. The
+	 * shape of the whole tree is known before any page is written, so
+	 * every parent and sibling pointer is set when its page is built, and the
+	 * root pointer page, the leaves and then each internal level in turn are
+	 * written one after another through the channel of the file.
+	 * <p>
+	 * Every page but the last two of each level holds the fill factor's share
+	 * of its capacity; the last two share what remains, so that neither is
+	 * less than half full.
+	 * <p>
+	 * Internal pages of an index on strings are in the variable-length format
+	 * and hold the shortest separators between their children, so how many
+	 * children fit on each depends on the keys. The loader then reads the
+	 * sorted tuples twice: once to find the separator before each leaf and lay
+	 * out the internal levels by the bytes of their entries, and once to
+	 * write the pages.
+	 * 
+	 * @param inFile - the file containing the raw data
+	 * @param hFile - the data file for the HeapFile to be used as an intermediate conversion step
+	 * @param bFile - the data file for the BTreeFile
+	 * @param npagebytes - number of bytes per page
+	 * @param numFields - number of fields per tuple
+	 * @param typeAr - array containing the types of the tuples
+	 * @param fieldSeparator - character separating fields in the raw data file
+	 * @param keyField - the field of the tuples the B+ tree will be keyed on
+	 * @param fillFactor - the fraction of each page to fill, from 0.5 to 1
+	 * @return the B+ tree file
+	 * @throws IOException
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	public static BTreeFile convert(File inFile, File hFile, File bFile, int npagebytes,
+			int numFields, Type[] typeAr, char fieldSeparator, int keyField, double fillFactor) 
+					throws IOException, DbException, TransactionAbortedException {
+		if (fillFactor < 0.5 || fillFactor > 1.0) {
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1: " + fillFactor);
+		}
 
-		// read all the tuples from the heap file and sort them on the keyField
-		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
-		TransactionId tid = new TransactionId();
-		DbFileIterator it = Database.getCatalog().getDatabaseFile(heapf.getId()).iterator(tid);
-		it.open();
-		while (it.hasNext()) {
-			Tuple tup = it.next();
-			tuples.add(tup);
+		// convert the inFile to HeapFile first.
+		HeapFileEncoder.convert(inFile, hFile, BufferPool.getPageSize(), numFields, typeAr, fieldSeparator);
+		TupleDesc td = new TupleDesc(typeAr);
+		HeapFile heapf = new HeapFile(hFile, td);
+		Database.getCatalog().addTable(heapf, UUID.randomUUID().toString());
+
+		// sort the tuples on the keyField
+		TupleComparator cmp = new TupleComparator(keyField);
+		ArrayList<Run> runs = new ArrayList<Run>();
+		ArrayList<Tuple> run = new ArrayList<Tuple>();
+		int ntuples = 0;
+		int hpages = heapf.numPages();
+		for (int i = 0; i < hpages; i++) {
+			HeapPage hp = (HeapPage) heapf.readPage(new HeapPageId(heapf.getId(), i));
+			Iterator<Tuple> it = hp.iterator();
+			while (it.hasNext()) {
+				run.add(it.next());
+			}
+			if ((i + 1) % RUN_PAGES == 0 || i + 1 == hpages) {
+				Collections.sort(run, cmp);
+				ntuples += run.size();
+				if (i + 1 == hpages && runs.isEmpty()) {
+					// everything fit in one run, no need to spill it
+					runs.add(new Run(run));
+				}
+				else {
+					runs.add(new Run(run, td));
+					run = new ArrayList<Tuple>();
+				}
+			}
 		}
-		it.close();
-		Collections.sort(tuples, new TupleComparator(keyField));
 
-		// add the tuples to B+ tree file
-		BTreeFile bf = BTreeUtility.openBTreeFile(numFields, bFile, keyField);
+		BTreeFile bf = new BTreeFile(bFile, keyField, td);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
 		Type keyType = typeAr[keyField];
+		boolean variable = BTreeInternalPage.isVariableLength(keyType);
 		int tableid = bf.getId();
 
 		int nrecbytes = 0;
 		for (int i = 0; i < numFields ; i++) {
 			nrecbytes += typeAr[i].getLen();
 		}
-		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
-		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
+		// pointerbytes: LSN, left sibling pointer, right sibling pointer, parent pointer
+		int leafpointerbytes = BTreeLeafPage.LSN_SIZE + 3 * BTreeLeafPage.INDEX_SIZE; 
 		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
 
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
-		// pointerbytes: one extra child pointer, parent pointer, child page category
-		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
+		// pointerbytes: LSN, one extra child pointer, parent pointer, child page category
+		int internalpointerbytes = BTreeLeafPage.LSN_SIZE + 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
 
-		ArrayList<ArrayList<BTreeEntry>> entries = new ArrayList<ArrayList<BTreeEntry>>();
-
-		// first add some bytes for the root pointer page
-		bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid), 
-				BTreeRootPtrPage.createEmptyPageData()));
-
-		// next iterate through all the tuples and write out leaf pages
-		// and internal pages as they fill up.
-		// We wait until we have two full pages of tuples before writing out the first page
-		// so that we will not end up with any pages containing less than nrecords/2 tuples
-		// (unless it's the only page)
-		ArrayList<Tuple> page1 = new ArrayList<Tuple>();
-		ArrayList<Tuple> page2 = new ArrayList<Tuple>();
-		BTreePageId leftSiblingId = null;
-		for(Tuple tup : tuples) {
-			if(page1.size() < nrecords) {
-				page1.add(tup);
-			}
-			else if(page2.size() < nrecords) {
-				page2.add(tup);
+		// lay out the tree: the number of tuples in each leaf, then the
+		// number of children of each page of every internal level up to the root
+		ArrayList<int[]> levels = new ArrayList<int[]>();
+		levels.add(layout(ntuples, Math.max(1, (int) (nrecords * fillFactor)), nrecords / 2));
+		if (variable) {
+			int slots = BTreeInternalPage.maxEntries(keyType, npagebytes) + 1;
+			int space = (int) (variableEntrySpace(npagebytes, keyType) * fillFactor);
+			Field[] keys = separators(new Merge(runs, cmp), levels.get(0), keyField);
+			while (levels.get(levels.size() - 1).length > 1) {
+				int[] pages = pack(keys, space, slots);
+				levels.add(pages);
+				Field[] pageKeys = new Field[pages.length];
+				for (int q = 0, child = 0; q < pages.length; child += pages[q++]) {
+					pageKeys[q] = keys[child];
+				}
+				keys = pageKeys;
 			}
-			else {
-				// write out a page of records
-				byte[] leafPageBytes = convertToLeafPage(page1, npagebytes, numFields, typeAr, keyField);
-				BTreePageId leafPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
-				BTreeLeafPage leafPage = new BTreeLeafPage(leafPid, leafPageBytes, keyField);
-				leafPage.setLeftSiblingId(leftSiblingId);
-				bf.writePage(leafPage);
-				leftSiblingId = leafPid;
-
-				// update the parent by "copying up" the next key
-				BTreeEntry copyUpEntry = new BTreeEntry(page2.get(0).getField(keyField), leafPid, null);
-				updateEntries(entries, bf, copyUpEntry, 0, nentries, npagebytes, 
-						keyType, tableid, keyField);
-
-				page1 = page2;
-				page2 = new ArrayList<Tuple>();
-				page2.add(tup);
-			}
-		}
-
-		// now we need to deal with the end cases. There are two options:
-		// 1. We have less than or equal to a full page of records. Because of the way the code
-		//    was written above, we know this must be the only page
-		// 2. We have somewhere between one and two pages of records remaining.
-		// For case (1), we write out the page 
-		// For case (2), we divide the remaining records equally between the last two pages,
-		// write them out, and update the parent's child pointers.
-		BTreePageId lastPid = null;
-		if(page2.size() == 0) {
-			// write out a page of records - this is the root page
-			byte[] lastPageBytes = convertToLeafPage(page1, npagebytes, numFields, typeAr, keyField);
-			lastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
-			BTreeLeafPage lastPage = new BTreeLeafPage(lastPid, lastPageBytes, keyField);
-			lastPage.setLeftSiblingId(leftSiblingId);
-			bf.writePage(lastPage);
 		}
 		else {
-			// split the remaining tuples in half
-			int remainingTuples = page1.size() + page2.size();
-			ArrayList<Tuple> secondToLastPg = new ArrayList<Tuple>();
-			ArrayList<Tuple> lastPg = new ArrayList<Tuple>();
-			secondToLastPg.addAll(page1.subList(0, remainingTuples/2));
-			lastPg.addAll(page1.subList(remainingTuples/2, page1.size()));
-			lastPg.addAll(page2);
-
-			// write out the last two pages of records
-			byte[] secondToLastPageBytes = convertToLeafPage(secondToLastPg, npagebytes, numFields, typeAr, keyField);
-			BTreePageId secondToLastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
-			BTreeLeafPage secondToLastPage = new BTreeLeafPage(secondToLastPid, secondToLastPageBytes, keyField);
-			secondToLastPage.setLeftSiblingId(leftSiblingId);
-			bf.writePage(secondToLastPage);
-
-			byte[] lastPageBytes = convertToLeafPage(lastPg, npagebytes, numFields, typeAr, keyField);
-			lastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
-			BTreeLeafPage lastPage = new BTreeLeafPage(lastPid, lastPageBytes, keyField);
-			lastPage.setLeftSiblingId(secondToLastPid);
-			bf.writePage(lastPage);
-
-			// update the parent by "copying up" the next key
-			BTreeEntry copyUpEntry = new BTreeEntry(lastPg.get(0).getField(keyField), secondToLastPid, lastPid);
-			updateEntries(entries, bf, copyUpEntry, 0, nentries, npagebytes, 
-					keyType, tableid, keyField);
-		}
-
-		// Write out the remaining internal pages
-		cleanUpEntries(entries, bf, nentries, npagebytes, keyType, tableid, keyField);
-
-		// update the root pointer to point to the last page of the file
-		int root = bf.numPages();
-		int rootCategory = (root > 1 ? BTreePageId.INTERNAL : BTreePageId.LEAF);
-		byte[] rootPtrBytes = convertToRootPtrPage(root, rootCategory, 0);
-		bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid), rootPtrBytes));
-
-		// set all the parent and sibling pointers
-		setParents(bf, new BTreePageId(tableid, root, rootCategory), BTreeRootPtrPage.getId(tableid));
-		setRightSiblingPtrs(bf, lastPid, null);
+			while (levels.get(levels.size() - 1).length > 1) {
+				levels.add(layout(levels.get(levels.size() - 1).length, 
+						Math.max(3, (int) ((nentries + 1) * fillFactor)), nentries / 2 + 1));
+			}
+		}
+		// the pages of each level are numbered consecutively, leaves first
+		int[] first = new int[levels.size()];
+		int root = 0;
+		for (int k = 0; k < levels.size(); k++) {
+			first[k] = root + 1;
+			root += levels.get(k).length;
+		}
+		int rootCategory = (levels.size() > 1 ? BTreePageId.INTERNAL : BTreePageId.LEAF);
+
+		FileChannel ch = Database.getFileManager().channel(bFile);
+		ch.truncate(0);
+		PageOutput out = new PageOutput(ch, WRITE_PAGES * npagebytes);
+		out.write(convertToRootPtrPage(root, rootCategory, 0));
+
+		// write out the leaf pages, remembering the separator before each
+		Merge sorted = new Merge(runs, cmp);
+		int[] leaves = levels.get(0);
+		int[] parents = parents(levels, first, 0);
+		Field[] keys = new Field[leaves.length];
+		Field lastKey = null;
+		for (int j = 0; j < leaves.length; j++) {
+			ArrayList<Tuple> pageTuples = new ArrayList<Tuple>(leaves[j]);
+			for (int i = 0; i < leaves[j]; i++) {
+				pageTuples.add(sorted.next());
+			}
+			if (!pageTuples.isEmpty()) {
+				Field key = pageTuples.get(0).getField(keyField);
+				keys[j] = (j > 0 ? BTreeInternalPage.separator(lastKey, key) : key);
+				lastKey = pageTuples.get(pageTuples.size() - 1).getField(keyField);
+			}
+			byte[] leafPageBytes = convertToLeafPage(pageTuples, npagebytes, numFields, typeAr, keyField);
+			ByteBuffer.wrap(leafPageBytes)
+				.putInt(BTreeLeafPage.LSN_SIZE, parents[j])
+				.putInt(BTreeLeafPage.LSN_SIZE + BTreeLeafPage.INDEX_SIZE, 
+						(j > 0 ? first[0] + j - 1 : 0))
+				.putInt(BTreeLeafPage.LSN_SIZE + 2 * BTreeLeafPage.INDEX_SIZE, 
+						(j < leaves.length - 1 ? first[0] + j + 1 : 0));
+			out.write(leafPageBytes);
+		}
+
+		// write out each level of internal pages, whose keys are the separators
+		// before their children but the leftmost
+		for (int k = 1; k < levels.size(); k++) {
+			int[] pages = levels.get(k);
+			parents = parents(levels, first, k);
+			int childPageCategory = (k == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+			Field[] pageKeys = new Field[pages.length];
+			int child = 0;
+			for (int q = 0; q < pages.length; q++) {
+				pageKeys[q] = keys[child];
+				ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>(pages[q] - 1);
+				for (int c = child + 1; c < child + pages[q]; c++) {
+					entries.add(new BTreeEntry(keys[c], 
+							new BTreePageId(tableid, first[k - 1] + c - 1, childPageCategory), 
+							new BTreePageId(tableid, first[k - 1] + c, childPageCategory)));
+				}
+				child += pages[q];
+				byte[] internalPageBytes = convertToInternalPage(entries, npagebytes, keyType, childPageCategory);
+				ByteBuffer.wrap(internalPageBytes).putInt(BTreeLeafPage.LSN_SIZE, parents[q]);
+				out.write(internalPageBytes);
+			}
+			keys = pageKeys;
+		}
+		out.flush();
+		for (Run r : runs) {
+			r.delete();
+		}
 
 		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
 		return bf;
 	}
 
 	/**
-	 * Set all the right sibling pointers by following the left sibling pointers
+	 * Split items among as few pages as possible, none of them less than
+	 * half full. Every page but the last two holds cap items, and the last
+	 * two share the rest equally. If that leaves them less than half full,
+	 * the pages before them give up items, down to half full, to make up
+	 * the difference.
+	 * <p>
+	 * cap is at least min, and 2 * min - 1 items fit on a page, so a single
+	 * page takes any n below 2 * min, and otherwise there are enough items
+	 * for every page to hold min of them.
 	 * 
-	 * @param bf - the BTreeFile
-	 * @param pid - the id of the page to update with the right sibling pointer
-	 * @param rightSiblingId - the id of the page's right sibling
-	 * @throws IOException
-	 * @throws DbException
+	 * @param n - the number of items
+	 * @param cap - the number of items to fill a page with
+	 * @param min - the fewest items a page but the root may hold
+	 * @return the number of items on each page; a single page if n is 0
 	 */
-	private static void setRightSiblingPtrs(BTreeFile bf, BTreePageId pid, BTreePageId rightSiblingId) 
-			throws IOException, DbException {
-		BTreeLeafPage page = (BTreeLeafPage) bf.readPage(pid);
-		page.setRightSiblingId(rightSiblingId);
-		BTreePageId leftSiblingId = page.getLeftSiblingId();
-		bf.writePage(page);
-		if(leftSiblingId != null) {
-			setRightSiblingPtrs(bf, leftSiblingId, page.getId());
+	private static int[] layout(int n, int cap, int min) {
+		cap = Math.max(cap, min);
+		int npages = Math.max(1, Math.min((n + cap - 1) / cap, n / Math.max(1, min)));
+		int[] counts = new int[npages];
+		Arrays.fill(counts, cap);
+		if (npages == 1) {
+			counts[0] = n;
 		}
+		else {
+			int remaining = n - (npages - 2) * cap;
+			if (remaining >= 2 * min) {
+				counts[npages - 2] = remaining / 2;
+				counts[npages - 1] = remaining - remaining / 2;
+			}
+			else {
+				counts[npages - 2] = counts[npages - 1] = min;
+				int deficit = 2 * min - remaining;
+				for (int q = npages - 3; deficit > 0; q--) {
+					int give = Math.min(deficit, cap - min);
+					counts[q] -= give;
+					deficit -= give;
+				}
+			}
+		}
+		return counts;
 	}
 
 	/**
-	 * Recursive function to set all the parent pointers
+	 * Read the sorted tuples to find the separator before each leaf.
 	 * 
-	 * @param bf - the BTreeFile
-	 * @param pid - id of the page to update with the parent pointer
-	 * @param parent - the id of the page's parent
-	 * @throws IOException
-	 * @throws DbException
+	 * @param sorted - the sorted tuples
+	 * @param leaves - the number of tuples in each leaf
+	 * @param keyField - the field of the tuples the B+ tree is keyed on
+	 * @return the separator between each leaf and the one before it; the
+	 *   first is unused
 	 */
-	private static void setParents(BTreeFile bf, BTreePageId pid, BTreePageId parent) 
-			throws IOException, DbException {
-		if(pid.pgcateg() == BTreePageId.INTERNAL) {
-			BTreeInternalPage page = (BTreeInternalPage) bf.readPage(pid);
-			page.setParentId(parent);
+	private static Field[] separators(Merge sorted, int[] leaves, int keyField) throws IOException {
+		Field[] keys = new Field[leaves.length];
+		Field lastKey = null;
+		for (int j = 0; j < leaves.length; j++) {
+			for (int i = 0; i < leaves[j]; i++) {
+				Field key = sorted.next().getField(keyField);
+				if (i == 0 && j > 0) {
+					keys[j] = BTreeInternalPage.separator(lastKey, key);
+				}
+				lastKey = key;
+			}
+		}
+		return keys;
+	}
 
-			Iterator<BTreeEntry> it = page.iterator();
-			BTreeEntry e = null;
-			while(it.hasNext()) {
-				e = it.next();
-				setParents(bf, e.getLeftChild(), pid);
+	/**
+	 * Split children among as few variable-length internal pages as
+	 * possible. Each page takes children until the next entry would not fit
+	 * in its share of bytes; if the last page is then less than half full,
+	 * it shares the children of the page before it by bytes.
+	 * 
+	 * @param keys - the separator before each child; the first is unused
+	 * @param space - the bytes of entries a page may hold
+	 * @param slots - the most children a page may hold
+	 * @return the number of children of each page
+	 */
+	private static int[] pack(Field[] keys, int space, int slots) {
+		ArrayList<Integer> counts = new ArrayList<Integer>();
+		int start = 0;
+		EntrySize size = new EntrySize();
+		for (int c = 1; c < keys.length; c++) {
+			size.add(keys[c]);
+			if (c - start >= slots || size.bytes() > space) {
+				counts.add(c - start);
+				start = c;
+				size = new EntrySize();
+			}
+		}
+		counts.add(keys.length - start);
+
+		int n = counts.size();
+		if (n > 1 && size.bytes() < space / 2) {
+			// children a to end go on the last two pages
+			int end = keys.length;
+			int a = end - counts.get(n - 1) - counts.get(n - 2);
+			EntrySize both = new EntrySize();
+			for (int c = a + 1; c < end; c++) {
+				both.add(keys[c]);
 			}
-			if(e != null) {
-				setParents(bf, e.getRightChild(), pid);
+			EntrySize left = new EntrySize();
+			int s = a + 1;
+			while (s < end - 2 && s - a < slots && (left.bytes() < both.bytes() / 2 || end - s > slots)) {
+				left.add(keys[s++]);
 			}
-			bf.writePage(page);
+			counts.set(n - 2, s - a);
+			counts.set(n - 1, end - s);
 		}
-		else { // pid.pgcateg() == BTreePageId.LEAF
-			BTreeLeafPage page = (BTreeLeafPage) bf.readPage(pid);
-			page.setParentId(parent);
-			bf.writePage(page);
+
+		int[] pages = new int[n];
+		for (int q = 0; q < n; q++) {
+			pages[q] = counts.get(q);
 		}
+		return pages;
 	}
 
 	/**
-	 * Write out any remaining entries and update the parent pointers.
-	 * 
-	 * @param entries - the list of remaining entries
-	 * @param bf - the BTreeFile
-	 * @param nentries - number of entries per page
-	 * @param npagebytes - number of bytes per page
-	 * @param keyType - the type of the key field
-	 * @param tableid - the table id of this BTreeFile
-	 * @param keyField - the index of the key field
-	 * @throws IOException
+	 * @return the bytes of a variable-length internal page left for its
+	 *   entries after the pointers and the header
+	 */
+	private static int variableEntrySpace(int npagebytes, Type keyType) {
+		int nslots = BTreeInternalPage.maxEntries(keyType, npagebytes) + 1;
+		int nheaderbytes = (nslots + 7) / 8;
+		return npagebytes - (BTreeInternalPage.LSN_SIZE + BTreeInternalPage.INDEX_SIZE + 1 + nheaderbytes);
+	}
+
+	/**
+	 * The bytes taken by the entries of a variable-length internal page as
+	 * keys are added to it in order: the common prefix and its length, the
+	 * first child pointer, and the length, rest of the key and child pointer
+	 * of each entry.
 	 */
-	private static void cleanUpEntries(ArrayList<ArrayList<BTreeEntry>> entries,
-			BTreeFile bf, int nentries, int npagebytes, Type keyType, int tableid, 
-			int keyField) throws IOException {
-		// As with the leaf pages, there are two options:
-		// 1. We have less than or equal to a full page of entries. Because of the way the code
-		//    was written, we know this must be the root page
-		// 2. We have somewhere between one and two pages of entries remaining.
-		// For case (1), we write out the page 
-		// For case (2), we divide the remaining entries equally between the last two pages,
-		// write them out, and update the parent's child pointers.
-		for(int i = 0; i < entries.size(); i++) {
-			int childPageCategory = (i == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
-			int size = entries.get(i).size();
-			if(size <= nentries) {
-				// write out a page of entries
-				byte[] internalPageBytes = convertToInternalPage(entries.get(i), npagebytes, keyType, childPageCategory);
-				BTreePageId internalPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
-				bf.writePage(new BTreeInternalPage(internalPid, internalPageBytes, keyField));
+	private static class EntrySize {
+		private String first;
+		private int prefix = 0;
+		private int nkeys = 0;
+		private int keyBytes = 0;
+
+		void add(Field key) {
+			String k = BTreeInternalPage.str(key);
+			// the keys are in order, so the prefix common to all of them
+			// is the one the first shares with the last
+			prefix = (first == null ? k.length() : BTreeInternalPage.commonPrefix(first, k, prefix));
+			if (first == null) {
+				first = k;
 			}
-			else {
-				// split the remaining entries in half
-				ArrayList<BTreeEntry> secondToLastPg = new ArrayList<BTreeEntry>();
-				ArrayList<BTreeEntry> lastPg = new ArrayList<BTreeEntry>();
-				secondToLastPg.addAll(entries.get(i).subList(0, size/2));
-				lastPg.addAll(entries.get(i).subList(size/2 + 1, size));
+			nkeys++;
+			keyBytes += k.length();
+		}
 
-				// write out the last two pages of entries
-				byte[] secondToLastPageBytes = convertToInternalPage(secondToLastPg, npagebytes, keyType, childPageCategory);
-				BTreePageId secondToLastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
-				bf.writePage(new BTreeInternalPage(secondToLastPid, secondToLastPageBytes, keyField));
+		int bytes() {
+			return 1 + prefix + BTreeInternalPage.INDEX_SIZE 
+					+ nkeys * (1 + BTreeInternalPage.INDEX_SIZE - prefix) + keyBytes;
+		}
+	}
 
-				byte[] lastPageBytes = convertToInternalPage(lastPg, npagebytes, keyType, childPageCategory);
-				BTreePageId lastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
-				bf.writePage(new BTreeInternalPage(lastPid, lastPageBytes, keyField));
+	/**
+	 * @param levels - the layout of each level of the tree, leaves first
+	 * @param first - the page number of the first page of each level
+	 * @param level - the level whose parents to find
+	 * @return the page number of the parent of each page of the level, 
+	 *   0 for the root
+	 */
+	private static int[] parents(ArrayList<int[]> levels, int[] first, int level) {
+		int[] parents = new int[levels.get(level).length];
+		if (level + 1 < levels.size()) {
+			int[] above = levels.get(level + 1);
+			int child = 0;
+			for (int q = 0; q < above.length; q++) {
+				for (int c = 0; c < above[q]; c++) {
+					parents[child++] = first[level + 1] + q;
+				}
+			}
+		}
+		return parents;
+	}
 
-				// update the parent by "pushing up" the next key
-				BTreeEntry pushUpEntry = new BTreeEntry(entries.get(i).get(size/2).getKey(), secondToLastPid, lastPid);
-				updateEntries(entries, bf, pushUpEntry, i+1, nentries, npagebytes, 
-						keyType, tableid, keyField);
+	/**
+	 * A sorted run of the external sort: its tuples in memory when the whole
+	 * input fits in one run, otherwise a temporary file of serialized tuples.
+	 * A run may be read more than once.
+	 */
+	private static class Run {
+		private final ArrayList<Tuple> tuples;
+		private final File file;
+		private final TupleDesc td;
+		private final int size;
+		private Iterator<Tuple> mem;
+		private DataInputStream in;
+		private int remaining;
+		private Tuple head;
+
+		/** Keep the sorted tuples in memory. */
+		Run(ArrayList<Tuple> tuples) {
+			this.tuples = tuples;
+			file = null;
+			td = null;
+			size = tuples.size();
+		}
+
+		/** Spill the sorted tuples to a temporary file. */
+		Run(ArrayList<Tuple> tuples, TupleDesc td) throws IOException {
+			mem = null;
+			file = File.createTempFile("btreeRun", ".dat");
+			file.deleteOnExit();
+			DataOutputStream dos = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(file)));
+			for (Tuple t : tuples) {
+				for (int j = 0; j < td.numFields(); j++) {
+					t.getField(j).serialize(dos);
+				}
 			}
+			dos.close();
+			this.tuples = null;
+			this.td = td;
+			size = tuples.size();
+		}
 
+		/** Start reading the run from its first tuple. */
+		void open() throws IOException {
+			remaining = size;
+			if (file == null) {
+				mem = tuples.iterator();
+				return;
+			}
+			if (in != null) {
+				in.close();
+			}
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		}
+
+		/** Delete the file of the run. */
+		void delete() throws IOException {
+			if (file != null) {
+				if (in != null) {
+					in.close();
+				}
+				file.delete();
+			}
+		}
+
+		/**
+		 * Move to the next tuple of the run.
+		 * 
+		 * @return false if the run is exhausted
+		 */
+		boolean advance() throws IOException {
+			if (remaining == 0) {
+				head = null;
+				return false;
+			}
+			remaining--;
+			if (mem != null) {
+				head = mem.next();
+				return true;
+			}
+			head = new Tuple(td);
+			try {
+				for (int j = 0; j < td.numFields(); j++) {
+					head.setField(j, td.getFieldType(j).parse(in));
+				}
+			} catch (java.text.ParseException e) {
+				throw new IOException("corrupt sort run " + file, e);
+			}
+			return true;
 		}
 	}
 
 	/**
-	 * Recursive function to update the entries by adding a new Entry at a particular level
-	 * 
-	 * @param entries - the list of entries
-	 * @param bf - the BTreefile
-	 * @param e - the new entry 
-	 * @param level - the level of the new entry (0 is closest to the leaf pages)
-	 * @param nentries - number of entries per page
-	 * @param npagebytes - number of bytes per page
-	 * @param keyType - the type of the key field
-	 * @param tableid - the table id of this BTreeFile
-	 * @param keyField - the index of the key field
-	 * @throws IOException
+	 * Merges sorted runs into one sequence sorted on the key field, reading
+	 * each from its start.
+	 */
+	private static class Merge {
+		private final PriorityQueue<Run> heads;
+
+		Merge(ArrayList<Run> runs, TupleComparator cmp) throws IOException {
+			heads = new PriorityQueue<Run>(Math.max(1, runs.size()), 
+					(r1, r2) -> cmp.compare(r1.head, r2.head));
+			for (Run r : runs) {
+				r.open();
+				if (r.advance()) {
+					heads.add(r);
+				}
+			}
+		}
+
+		/** @return the next tuple in key order */
+		Tuple next() throws IOException {
+			Run r = heads.poll();
+			Tuple t = r.head;
+			if (r.advance()) {
+				heads.add(r);
+			}
+			return t;
+		}
+	}
+
+	/**
+	 * Writes pages one after another from the start of a file, gathering
+	 * them into large writes.
 	 */
-	private static void updateEntries(ArrayList<ArrayList<BTreeEntry>> entries, 
-			BTreeFile bf, BTreeEntry e, int level, int nentries, int npagebytes, Type keyType, 
-			int tableid, int keyField) throws IOException {
-		while(entries.size() <= level) {
-			entries.add(new ArrayList<BTreeEntry>());
-		}
-
-		int childPageCategory = (level == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
-		int size = entries.get(level).size();
-
-		if(size > 0) {
-			BTreeEntry prev = entries.get(level).get(size-1);
-			entries.get(level).set(size-1, new BTreeEntry(prev.getKey(), prev.getLeftChild(), e.getLeftChild()));
-			if(size == nentries * 2 + 1) {
-				// write out a page of entries
-				ArrayList<BTreeEntry> pageEntries = new ArrayList<BTreeEntry>();
-				pageEntries.addAll(entries.get(level).subList(0, nentries));
-				byte[] internalPageBytes = convertToInternalPage(pageEntries, npagebytes, keyType, childPageCategory);
-				BTreePageId internalPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
-				bf.writePage(new BTreeInternalPage(internalPid, internalPageBytes, keyField));
-
-				// update the parent by "pushing up" the next key
-				BTreeEntry pushUpEntry = new BTreeEntry(entries.get(level).get(nentries).getKey(), internalPid, null);
-				updateEntries(entries, bf, pushUpEntry, level + 1, nentries, npagebytes, 
-						keyType, tableid, keyField);
-				ArrayList<BTreeEntry> remainingEntries = new ArrayList<BTreeEntry>();
-				remainingEntries.addAll(entries.get(level).subList(nentries+1, size));
-				entries.get(level).clear();
-				entries.get(level).addAll(remainingEntries);
-			}
-		}
-		entries.get(level).add(e);
+	private static class PageOutput {
+		private final FileChannel ch;
+		private final ByteBuffer buf;
+		private long pos = 0;
+
+		PageOutput(FileChannel ch, int bufBytes) {
+			this.ch = ch;
+			this.buf = ByteBuffer.allocate(bufBytes);
+		}
+
+		void write(byte[] data) throws IOException {
+			if (buf.remaining() < data.length) {
+				flush();
+			}
+			buf.put(data);
+		}
+
+		void flush() throws IOException {
+			buf.flip();
+			while (buf.hasRemaining()) {
+				pos += ch.write(buf, pos);
+			}
+			buf.clear();
+		}
 	}
 
 	/**
@@ -510,8 +750,8 @@ public class BTreeFileEncoder {
 		for (int i = 0; i < numFields ; i++) {
 			nrecbytes += typeAr[i].getLen();
 		}
-		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
-		int pointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
+		// pointerbytes: LSN, left sibling pointer, right sibling pointer, parent pointer
+		int pointerbytes = BTreeLeafPage.LSN_SIZE + 3 * BTreeLeafPage.INDEX_SIZE; 
 		int nrecords = (npagebytes * 8 - pointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
 
 		//  per record, we need one bit; there are nrecords per page, so we need
@@ -534,6 +774,7 @@ public class BTreeFileEncoder {
 		if (recordcount > nrecords)
 			recordcount = nrecords;
 
+		dos.writeLong(0); // LSN
 		dos.writeInt(0); // parent pointer
 		dos.writeInt(0); // left sibling pointer
 		dos.writeInt(0); // right sibling pointer
@@ -624,9 +865,12 @@ public class BTreeFileEncoder {
 	public static byte[] convertToInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
 			Type keyType, int childPageCategory)
 					throws IOException {
+		if (BTreeInternalPage.isVariableLength(keyType)) {
+			return convertToVariableInternalPage(entries, npagebytes, keyType, childPageCategory);
+		}
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
-		// pointerbytes: one extra child pointer, parent pointer, child page category
-		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
+		// pointerbytes: LSN, one extra child pointer, parent pointer, child page category
+		int pointerbytes = BTreeLeafPage.LSN_SIZE + 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - pointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
 
 		//  per entry, we need one bit; there are nentries per page, so we need
@@ -648,6 +892,7 @@ public class BTreeFileEncoder {
 		if (entrycount > nentries)
 			entrycount = nentries;
 
+		dos.writeLong(0); // LSN
 		dos.writeInt(0); // parent pointer
 		dos.writeByte((byte) childPageCategory);
 
@@ -697,6 +942,71 @@ public class BTreeFileEncoder {
 
 	}
 
+	/**
+	 * Convert a set of entries to a byte array in the variable-length format
+	 * of a BTreeInternalPage. As many entries are written as fit on the page.
+	 * 
+	 * @param entries - the set of entries
+	 * @param npagebytes - number of bytes per page
+	 * @param keyType - the type of the key field
+	 * @param childPageCategory - the category of the child pages (either internal or leaf)
+	 * @return a byte array which can be passed to the BTreeInternalPage constructor
+	 * @throws IOException
+	 */
+	private static byte[] convertToVariableInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
+			Type keyType, int childPageCategory)
+					throws IOException {
+		int nslots = BTreeInternalPage.maxEntries(keyType, npagebytes) + 1;
+		int space = variableEntrySpace(npagebytes, keyType);
+
+		Collections.sort(entries, new EntryComparator());
+		int entrycount = 0;
+		EntrySize size = new EntrySize();
+		while (entrycount < entries.size() && entrycount < nslots - 1) {
+			size.add(entries.get(entrycount).getKey());
+			if (size.bytes() > space)
+				break;
+			entrycount++;
+		}
+		int prefix = 0;
+		if (entrycount > 0) {
+			prefix = BTreeInternalPage.commonPrefix(
+					BTreeInternalPage.str(entries.get(0).getKey()), 
+					BTreeInternalPage.str(entries.get(entrycount - 1).getKey()), Type.STRING_LEN);
+		}
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(npagebytes);
+		DataOutputStream dos = new DataOutputStream(baos);
+
+		dos.writeLong(0); // LSN
+		dos.writeInt(0); // parent pointer
+		dos.writeByte((byte) childPageCategory);
+
+		// the header has a 1 for the first child pointer and each entry
+		byte[] header = new byte[(nslots + 7) / 8];
+		for (int i = 0; i < entrycount + 1; i++) {
+			header[i / 8] |= 1 << (i % 8);
+		}
+		dos.write(header);
+
+		dos.writeByte(prefix);
+		if (entrycount > 0) {
+			dos.writeBytes(BTreeInternalPage.str(entries.get(0).getKey()).substring(0, prefix));
+		}
+		dos.writeInt(entries.get(0).getLeftChild().getPageNumber());
+		for (int e = 0; e < entrycount; e++) {
+			String rest = BTreeInternalPage.str(entries.get(e).getKey()).substring(prefix);
+			dos.writeByte(rest.length());
+			dos.writeBytes(rest);
+			dos.writeInt(entries.get(e).getRightChild().getPageNumber());
+		}
+
+		// pad the rest of the page with zeroes
+		dos.write(new byte[npagebytes - dos.size()]);
+
+		return baos.toByteArray();
+	}
+
 	/**
 	 * Create a byte array in the format of a BTreeRootPtrPage
 	 * 
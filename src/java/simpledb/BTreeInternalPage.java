@@ -8,6 +8,13 @@ import simpledb.Predicate.Op;
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Pages of an index on a fixed-length key type store every key in a slot of
+ * the key's full length. Pages of an index on strings use a variable-length
+ * format instead: the prefix common to all keys of the page is stored once,
+ * and each key is stored as a length byte and the rest of its bytes, so a
+ * page holds many more short or similar keys. Separators chosen with
+ * {@link #separator(Field, Field)} keep the keys short.
  *
  * @see BTreeFile
  * @see BufferPool
@@ -18,9 +25,17 @@ public class BTreeInternalPage extends BTreePage {
 	private final Field keys[];
 	private final int children[];
 	private final int numSlots;
+	private final boolean variable; // keys are stored in the variable-length format
 	
 	private int childCategory; // either leaf or internal
 
+	/** The most bytes one entry takes in the variable-length format: key length, key, child pointer */
+	private static final int MAX_VARIABLE_ENTRY = 1 + Type.STRING_LEN + INDEX_SIZE;
+
+	// count of changes to the slots and keys, to tell when keyView is stale
+	private volatile int changes;
+	private volatile BTreeKeys keyView;
+
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -37,7 +52,10 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		if (checkOccupancy && depth > 0) {
-			assert (getNumEntries() >= getMaxEntries() / 2);
+			if (variable)
+				assert (entryBytes(prefixLength()) >= entrySpace() / 2);
+			else
+				assert (getNumEntries() >= getMaxEntries() / 2);
 		}
 	}
 	
@@ -57,6 +75,12 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * In the variable-length format the header is followed by the length and
+	 * bytes of the common prefix of the keys, then by the first child pointer
+	 * and, for each used slot in turn, the length and bytes of the rest of its
+	 * key and its child pointer. The number of slots then assumes the shortest
+	 * possible keys; how many are used is bounded by the bytes of the page.
+	 * <p>
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -67,9 +91,13 @@ public class BTreeInternalPage extends BTreePage {
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
+		this.variable = isVariableLength(td.getFieldType(keyField));
 		this.numSlots = getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
+		// Read the LSN
+		this.lsn = dis.readLong();
+
 		// Read the parent pointer
 		try {
 			Field f = Type.INT_TYPE.parse(dis);
@@ -87,6 +115,14 @@ public class BTreeInternalPage extends BTreePage {
 			header[i] = dis.readByte();
 
 		keys = new Field[numSlots];
+		children = new int[numSlots];
+		if (variable) {
+			readVariableEntries(dis);
+			dis.close();
+			setBeforeImage();
+			return;
+		}
+
 		try{
 			// allocate and read the keys of this page
 			// start from 1 because the first key slot is not used
@@ -98,7 +134,6 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
-		children = new int[numSlots];
 		try{
 			// allocate and read the child pointers of this page
 			for (int i=0; i<children.length; i++)
@@ -115,15 +150,73 @@ public class BTreeInternalPage extends BTreePage {
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		return maxEntries(td.getFieldType(keyField), BufferPool.getPageSize());
+	}
+
+	/**
+	 * @param keyType - the type of the keys
+	 * @param pageSize - the number of bytes per page
+	 * @return the number of entry slots of an internal page with keys of the type
+	 */
+	static int maxEntries(Type keyType, int pageSize) {
+		// a key in the variable-length format takes at least its length byte
+		int keySize = isVariableLength(keyType) ? 1 : keyType.getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
-		// extraBits are: one parent pointer, 1 byte for child page category, 
-		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
-		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1; 
-		int entriesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader; //round down
+		// extraBits are: LSN, one parent pointer, 1 byte for child page category, 
+		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header,
+		// and the length of the common prefix in the variable-length format
+		int extraBits = LSN_SIZE * 8 + 2 * INDEX_SIZE * 8 + 8 + 1 + (isVariableLength(keyType) ? 8 : 0); 
+		int entriesPerPage = (pageSize*8 - extraBits) / bitsPerEntryIncludingHeader; //round down
 		return entriesPerPage;
 	}
 
+	/**
+	 * @return true if internal pages store keys of the type in the
+	 *   variable-length format
+	 */
+	public static boolean isVariableLength(Type keyType) {
+		return keyType == Type.STRING_TYPE;
+	}
+
+	/**
+	 * Returns the shortest key that separates two adjacent children: the
+	 * shortest prefix of the least key of the right child that is greater
+	 * than the greatest key of the left child, or the key itself if the two
+	 * are equal. Keys stored in fixed-length slots are not shortened.
+	 * 
+	 * @param leftMax - the greatest key of the left child
+	 * @param rightMin - the least key of the right child
+	 * @return a key k with leftMax <= k <= rightMin
+	 */
+	public static Field separator(Field leftMax, Field rightMin) {
+		if (!isVariableLength(rightMin.getType()))
+			return rightMin;
+		String left = str(leftMax);
+		String right = str(rightMin);
+		int common = commonPrefix(left, right, right.length());
+		if (common == right.length())
+			return rightMin;
+		return new StringField(right.substring(0, common + 1), Type.STRING_LEN);
+	}
+
+	/**
+	 * @return the length of the common prefix of two strings, at most max
+	 */
+	static int commonPrefix(String a, String b, int max) {
+		int n = Math.min(max, Math.min(a.length(), b.length()));
+		int i = 0;
+		while (i < n && a.charAt(i) == b.charAt(i))
+			i++;
+		return i;
+	}
+
+	/**
+	 * @return the value of a string key
+	 */
+	static String str(Field key) {
+		return ((StringField) key).getValue();
+	}
+
 	/**
 	 * Computes the number of bytes in the header of a B+ internal page with each entry occupying entrySize bytes
 	 * @return the number of bytes in the header
@@ -220,6 +313,123 @@ public class BTreeInternalPage extends BTreePage {
 		return child;
 	}
 
+	/**
+	 * Read the prefix, keys and child pointers of a page in the
+	 * variable-length format.
+	 */
+	private void readVariableEntries(DataInputStream dis) throws IOException {
+		byte[] prefix = new byte[dis.readUnsignedByte()];
+		dis.readFully(prefix);
+		String p = new String(prefix);
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				children[i] = -1;
+				continue;
+			}
+			if (i > 0) {
+				byte[] rest = new byte[dis.readUnsignedByte()];
+				dis.readFully(rest);
+				keys[i] = new StringField(p + new String(rest), Type.STRING_LEN);
+			}
+			children[i] = dis.readInt();
+		}
+	}
+
+	/**
+	 * Write the prefix, keys and child pointers of this page in the
+	 * variable-length format.
+	 */
+	private void writeVariableEntries(DataOutputStream dos) throws IOException {
+		int prefix = prefixLength();
+		String p = "";
+		for (int i=1; i<numSlots && prefix > 0; i++) {
+			if (isSlotUsed(i)) {
+				p = str(keys[i]).substring(0, prefix);
+				break;
+			}
+		}
+		dos.writeByte(prefix);
+		dos.writeBytes(p);
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			if (i > 0) {
+				String rest = str(keys[i]).substring(prefix);
+				dos.writeByte(rest.length());
+				dos.writeBytes(rest);
+			}
+			dos.writeInt(children[i]);
+		}
+	}
+
+	/**
+	 * @return the length of the prefix common to all keys on this page
+	 */
+	private int prefixLength() {
+		String first = null;
+		int prefix = 0;
+		for (int i=1; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			String s = str(keys[i]);
+			if (first == null) {
+				first = s;
+				prefix = s.length();
+			}
+			else {
+				prefix = commonPrefix(first, s, prefix);
+			}
+		}
+		return prefix;
+	}
+
+	/**
+	 * @return the bytes that the entries of this page take in the
+	 *   variable-length format with a prefix of the given length factored out
+	 */
+	private int entryBytes(int prefix) {
+		int bytes = 1 + prefix;
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			bytes += INDEX_SIZE;
+			if (i > 0)
+				bytes += 1 + str(keys[i]).length() - prefix;
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return the bytes of a page in the variable-length format that are
+	 *   left for its entries
+	 */
+	private int entrySpace() {
+		return BufferPool.getPageSize() - (LSN_SIZE + INDEX_SIZE + 1 + header.length);
+	}
+
+	/**
+	 * @param key - a key to add to this variable-length page
+	 * @param replaced - the slot whose key it replaces, or -1 if it is a new entry
+	 * @return true if the entries of the page still fit with the key
+	 */
+	private boolean fits(Field key, int replaced) {
+		String k = str(key);
+		int prefix = k.length();
+		int keyBytes = k.length();
+		int nkeys = 1;
+		for (int i=1; i<numSlots; i++) {
+			if (i == replaced || !isSlotUsed(i))
+				continue;
+			String s = str(keys[i]);
+			prefix = commonPrefix(k, s, prefix);
+			keyBytes += s.length();
+			nkeys++;
+		}
+		// a page with m keys has m+1 children
+		int bytes = 1 + prefix + nkeys * (1 - prefix) + keyBytes + (nkeys + 1) * INDEX_SIZE;
+		return bytes <= entrySpace();
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this page.
 	 * Used to serialize this page to disk.
@@ -236,6 +446,14 @@ public class BTreeInternalPage extends BTreePage {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
 
+		// write out the LSN
+		try {
+			dos.writeLong(lsn);
+
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
 		// write out the parent pointer
 		try {
 			dos.writeInt(parent);
@@ -262,6 +480,17 @@ public class BTreeInternalPage extends BTreePage {
 			}
 		}
 
+		if (variable) {
+			try {
+				writeVariableEntries(dos);
+				dos.write(new byte[len - dos.size()]);
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return baos.toByteArray();
+		}
+
 		// create the keys
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -315,7 +544,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
+		int zerolen = BufferPool.getPageSize() - (LSN_SIZE + INDEX_SIZE + 1 + header.length + 
 				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
 		byte[] zeroes = new byte[zerolen];
 		try {
@@ -409,6 +638,8 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to update entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to update null entry.");
+		if (variable && !fits(e.getKey(), rid.getTupleNumber()))
+			throw new DbException("updated key does not fit on the page");
 		
 		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
 			if(isSlotUsed(i)) {
@@ -431,12 +662,14 @@ public class BTreeInternalPage extends BTreePage {
 		}
 		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
 		keys[rid.getTupleNumber()] = e.getKey();
+		changes++;
 	}
 
 	/**
 	 * Adds the specified entry to the page; the entry's recordId should be updated to 
 	 * reflect that it is now stored on this page.
-	 * @throws DbException if the page is full (no empty slots) or key field type,
+	 * @throws DbException if the page is full (no empty slots, or no room
+	 *         for the key in the variable-length format) or key field type,
 	 *         table id, or child page category is a mismatch, or the entry is invalid
 	 * @param e The entry to add.
 	 */
@@ -444,6 +677,9 @@ public class BTreeInternalPage extends BTreePage {
 		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
 			throw new DbException("key field type mismatch, in insertEntry");
 
+		if (variable && !fits(e.getKey(), -1))
+			throw new DbException("called insertEntry on page with no room for the key.");
+
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
 			throw new DbException("table id mismatch in insertEntry");
 
@@ -457,7 +693,7 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("child page category mismatch in insertEntry");
 
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+		if(getNumEntries() == 0) {
 			children[0] = e.getLeftChild().getPageNumber();
 			children[1] = e.getRightChild().getPageNumber();
 			keys[1] = e.getKey();
@@ -542,6 +778,7 @@ public class BTreeInternalPage extends BTreePage {
 		Debug.log(1, "BTreeLeafPage.insertEntry: new entry, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
 		keys[goodSlot] = e.getKey();
 		children[goodSlot] = e.getRightChild().getPageNumber();
+		changes++;
 		e.setRecordId(new RecordId(pid, goodSlot));
 	}
 
@@ -562,21 +799,28 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
-	}
-	
-	/**
-	 * Returns the number of empty slots on this page.
-	 */
-	public int getNumEmptySlots() {
 		int cnt = 0;
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
 		for(int i=1; i<numSlots; i++)
-			if(!isSlotUsed(i))
+			if(isSlotUsed(i))
 				cnt++;
 		return cnt;
 	}
+	
+	/**
+	 * Returns the number of empty slots on this page. In the variable-length
+	 * format this is the number of entries sure to fit whatever their keys:
+	 * entries of the longest keys, with no prefix left in common.
+	 */
+	public int getNumEmptySlots() {
+		int cnt = numSlots - 1 - getNumEntries();
+		if (!variable)
+			return cnt;
+		int used = entryBytes(0) + (isSlotUsed(0) ? 0 : INDEX_SIZE);
+		int room = (entrySpace() - used) / MAX_VARIABLE_ENTRY;
+		return Math.max(0, Math.min(cnt, room));
+	}
 
 	/**
 	 * Returns true if associated slot on this page is filled.
@@ -599,6 +843,48 @@ public class BTreeInternalPage extends BTreePage {
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		changes++;
+	}
+
+	/**
+	 * Returns the sorted keys of this page with their slots, building them
+	 * again if the page has changed since they were last built. Pages may be
+	 * searched without locks while they change, so the count of changes is
+	 * read before the keys and bumped after each change.
+	 */
+	BTreeKeys keys() {
+		int c = changes;
+		BTreeKeys view = keyView;
+		if (view == null || view.changes != c) {
+			int[] slots = new int[numSlots];
+			Field[] ks = new Field[numSlots];
+			int n = 0;
+			for (int i = 1; i < numSlots; i++) {
+				if (isSlotUsed(i)) {
+					slots[n] = i;
+					ks[n++] = keys[i];
+				}
+			}
+			view = new BTreeKeys(slots, ks, n, c);
+			keyView = view;
+		}
+		return view;
+	}
+
+	/**
+	 * Binary search this page for the child whose subtree holds the left-most
+	 * tuples possibly matching f: the left child of the first key not less
+	 * than f, or the right child of the last key.
+	 * @param f - the field to search for, or null for the left-most child
+	 * @return the id of the child, or null if the page has no entries
+	 */
+	public BTreePageId findChild(Field f) {
+		BTreeKeys view = keys();
+		if (view.size() == 0)
+			return null;
+		int i = (f == null ? 0 : view.lowerBound(f));
+		int child = (i == 0 ? children[0] : children[view.slot(i - 1)]);
+		return new BTreePageId(pid.getTableId(), child, childCategory);
 	}
 
 	/**
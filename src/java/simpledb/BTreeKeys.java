@@ -0,0 +1,88 @@
+package simpledb;
+
+/**
+ * A sorted, compacted view of the keys on a B+ tree page: the used slots in
+ * key order with their keys, for binary search. Integer keys are kept in an
+ * int array and compared as ints; other keys are compared as Fields.
+ * <p>
+ * A page builds its view when it is first searched and builds a new one
+ * after it changes. The view records the count of changes of the page it
+ * was built at, so a view built while the page was changing is not reused.
+ *
+ * @see BTreeInternalPage#findChild(Field)
+ * @see BTreeLeafPage#iterator(Field)
+ */
+class BTreeKeys {
+	private final int[] slots;
+	private final int[] ints;    // the keys if they are integers, else null
+	private final Field[] fields; // the keys otherwise, else null
+	private final int size;
+	final int changes;
+
+	/**
+	 * @param slots - the used slots in key order
+	 * @param keys - the key in each of these slots
+	 * @param size - the number of used slots
+	 * @param changes - the count of changes of the page
+	 */
+	BTreeKeys(int[] slots, Field[] keys, int size, int changes) {
+		this.slots = slots;
+		this.size = size;
+		this.changes = changes;
+		if (size > 0 && keys[0].getType() == Type.INT_TYPE) {
+			ints = new int[size];
+			for (int i = 0; i < size; i++) {
+				ints[i] = ((IntField) keys[i]).getValue();
+			}
+			fields = null;
+		}
+		else {
+			ints = null;
+			fields = keys;
+		}
+	}
+
+	/** @return the number of keys */
+	int size() {
+		return size;
+	}
+
+	/** @return the slot of the ith key in order */
+	int slot(int i) {
+		return slots[i];
+	}
+
+	/**
+	 * @param f - the field to search for
+	 * @return the position of the first key not less than f, or size() if
+	 *   all keys are less than f
+	 */
+	int lowerBound(Field f) {
+		int lo = 0;
+		int hi = size;
+		if (ints != null) {
+			int v = ((IntField) f).getValue();
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (ints[mid] < v) {
+					lo = mid + 1;
+				}
+				else {
+					hi = mid;
+				}
+			}
+		}
+		else {
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (fields[mid].compare(Predicate.Op.LESS_THAN, f)) {
+					lo = mid + 1;
+				}
+				else {
+					hi = mid;
+				}
+			}
+		}
+		return lo;
+	}
+}
@@ -19,6 +19,10 @@ public class BTreeLeafPage extends BTreePage {
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
 
+	// count of changes to the slots and tuples, to tell when keyView is stale
+	private volatile int changes;
+	private volatile BTreeKeys keyView;
+
 	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.LEAF);
@@ -44,7 +48,8 @@ public class BTreeLeafPage extends BTreePage {
 	 * Create a BTreeLeafPage from a set of bytes of data read from disk.
 	 * The format of a BTreeLeafPage is a set of header bytes indicating
 	 * the slots of the page that are in use, and some number of tuple slots, 
-	 * as well as some extra bytes for the parent and sibling pointers.
+	 * as well as some extra bytes for the page LSN and the parent and sibling
+	 * pointers.
 	 *  Specifically, the number of tuples is equal to: <p>
 	 *          floor((BufferPool.getPageSize()*8 - extra bytes*8) / (tuple size * 8 + 1))
 	 * <p> where tuple size is the size of tuples in this
@@ -66,6 +71,9 @@ public class BTreeLeafPage extends BTreePage {
 		this.numSlots = getMaxTuples();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
+		// Read the LSN
+		this.lsn = dis.readLong();
+
 		// Read the parent and sibling pointers
 		try {
 			Field f = Type.INT_TYPE.parse(dis);
@@ -111,8 +119,8 @@ public class BTreeLeafPage extends BTreePage {
 	 */
 	public int getMaxTuples() {        
 		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
-		// extraBits are: left sibling pointer, right sibling pointer, parent pointer
-		int extraBits = 3 * INDEX_SIZE * 8; 
+		// extraBits are: LSN, left sibling pointer, right sibling pointer, parent pointer
+		int extraBits = LSN_SIZE * 8 + 3 * INDEX_SIZE * 8; 
 		int tuplesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerTupleIncludingHeader; //round down
 		return tuplesPerPage;
 	}
@@ -203,6 +211,14 @@ public class BTreeLeafPage extends BTreePage {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
 
+		// write out the LSN
+		try {
+			dos.writeLong(lsn);
+
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
 		// write out the parent and sibling pointers
 		try {
 			dos.writeInt(parent);
@@ -262,7 +278,7 @@ public class BTreeLeafPage extends BTreePage {
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
+		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + LSN_SIZE + 3 * INDEX_SIZE); //- numSlots * td.getSize();
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -356,6 +372,7 @@ public class BTreeLeafPage extends BTreePage {
 		RecordId rid = new RecordId(pid, goodSlot);
 		t.setRecordId(rid);
 		tuples[goodSlot] = t;
+		changes++;
 	}
 
 	/**
@@ -473,6 +490,30 @@ public class BTreeLeafPage extends BTreePage {
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		changes++;
+	}
+
+	/**
+	 * Returns the sorted keys of the tuples on this page with their slots,
+	 * building them again if the page has changed since they were last built.
+	 */
+	BTreeKeys keys() {
+		int c = changes;
+		BTreeKeys view = keyView;
+		if (view == null || view.changes != c) {
+			int[] slots = new int[numSlots];
+			Field[] ks = new Field[numSlots];
+			int n = 0;
+			for (int i = 0; i < numSlots; i++) {
+				if (isSlotUsed(i)) {
+					slots[n] = i;
+					ks[n++] = tuples[i].getField(keyField);
+				}
+			}
+			view = new BTreeKeys(slots, ks, n, c);
+			keyView = view;
+		}
+		return view;
 	}
 
 	/**
@@ -483,6 +524,18 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @param f - the key field to start from
+	 * @return an iterator over the tuples on this page from the first whose key
+	 * is not less than f, found by binary search (calling remove on this
+	 * iterator throws an UnsupportedOperationException)
+	 */
+	public Iterator<Tuple> iterator(Field f) {
+		BTreeKeys view = keys();
+		int i = view.lowerBound(f);
+		return new BTreeLeafPageIterator(this, i < view.size() ? view.slot(i) : numSlots);
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -529,6 +582,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	public BTreeLeafPageIterator(BTreeLeafPage p, int start) {
+		this.p = p;
+		this.curTuple = start;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
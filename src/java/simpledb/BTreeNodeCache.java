@@ -0,0 +1,138 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * BTreeNodeCache keeps the top levels of the internal pages of a BTreeFile
+ * decoded in memory, so that searches pass them without going through the
+ * BufferPool. Each cached node holds the sorted keys of its page, as a
+ * BTreeKeys view, and the page numbers of its children.
+ * <p>
+ * The cache holds one version of the structure of the file: it is thrown
+ * away whenever a search asks for another version. It is also thrown away
+ * when the BufferPool is replaced, or discards an internal page, as recovery
+ * and aborts do for the pages they write, since these change the pages
+ * without changing the version. Nodes are decoded as
+ * searches first pass through them, from pages read without locks, so the
+ * caller must validate a search against the version as it does for any
+ * unlocked walk of the tree.
+ *
+ * @see BTreeFile#findLeafPage(TransactionId, HashMap, Permissions, Field)
+ */
+class BTreeNodeCache {
+	private final int tableid;
+	private final int levels;
+	private volatile Tree tree;
+
+	/**
+	 * @param tableid - the id of the BTreeFile
+	 * @param levels - the number of levels of internal pages to cache, from
+	 *   the root down
+	 */
+	BTreeNodeCache(int tableid, int levels) {
+		this.tableid = tableid;
+		this.levels = levels;
+	}
+
+	/**
+	 * Search the cached levels for the key field f.
+	 *
+	 * @param f - the field to search for, or null for the left-most page
+	 * @param version - the version of the structure of the file
+	 * @return the leaf page possibly containing f, or the internal page below
+	 *   the cached levels to continue the search from
+	 */
+	BTreePageId descend(Field f, long version) throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		long discards = bp.nodeDiscards();
+		Tree t = tree;
+		if (t == null || t.version != version || t.pool != bp || t.discards != discards) {
+			t = new Tree(version, bp, discards);
+			tree = t;
+		}
+		Node n = t.root;
+		if (n == null) {
+			return t.rootId;
+		}
+		while (true) {
+			int i = n.child(f);
+			BTreePageId child = new BTreePageId(tableid, n.children[i], n.childCategory);
+			if (n.below == null || n.childCategory != BTreePageId.INTERNAL) {
+				return child;
+			}
+			Node c = n.below[i];
+			if (c == null) {
+				c = new Node(t.read(child), n.depth + 1);
+				n.below[i] = c;
+			}
+			n = c;
+		}
+	}
+
+	/**
+	 * The cached levels as of one version of the structure, read through one
+	 * BufferPool after some number of its discards.
+	 */
+	private class Tree {
+		final long version;
+		final BufferPool pool;
+		final long discards;
+		final BTreePageId rootId;
+		final Node root; // null if the root is a leaf
+
+		Tree(long version, BufferPool pool, long discards) throws DbException, TransactionAbortedException {
+			this.version = version;
+			this.pool = pool;
+			this.discards = discards;
+			rootId = ((BTreeRootPtrPage) read(BTreeRootPtrPage.getId(tableid))).getRootId();
+			root = (rootId.pgcateg() == BTreePageId.INTERNAL
+					? new Node((BTreeInternalPage) read(rootId), 1) : null);
+		}
+
+		/**
+		 * Read a page without locking or pinning it.
+		 */
+		Page read(BTreePageId pid) throws DbException, TransactionAbortedException {
+			return pool.getPage(null, pid, Permissions.READ_ONLY);
+		}
+	}
+
+	/**
+	 * A decoded internal page. A node on the last cached level has no nodes
+	 * below it; the others fill theirs in as searches pass.
+	 */
+	private class Node {
+		final int depth;
+		final BTreeKeys keys;
+		final int[] children;
+		final int childCategory;
+		final Node[] below;
+
+		Node(Page p, int depth) throws DbException {
+			BTreeInternalPage page = (BTreeInternalPage) p;
+			this.depth = depth;
+			keys = page.keys();
+			int n = keys.size();
+			if (n == 0) {
+				throw new DbException("internal page " + page.getId().getPageNumber() + " has no entries");
+			}
+			BTreePageId first = page.getChildId(0);
+			children = new int[n + 1];
+			children[0] = first.getPageNumber();
+			for (int i = 0; i < n; i++) {
+				children[i + 1] = page.getChildId(keys.slot(i)).getPageNumber();
+			}
+			childCategory = first.pgcateg();
+			below = (depth < levels ? new Node[n + 1] : null);
+		}
+
+		/**
+		 * @return the index of the child whose subtree holds the left-most
+		 *   tuples possibly matching f: the left child of the first key not
+		 *   less than f, or the last child
+		 */
+		int child(Field f) {
+			return (f == null ? 0 : keys.lowerBound(f));
+		}
+	}
+}
@@ -15,20 +15,22 @@ public abstract class BTreePage implements Page {
 	protected volatile TransactionId dirtier = null;
 
 	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
+	protected final static int LSN_SIZE = LogFile.LONG_SIZE;
 
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
 	protected final int keyField;
 
+	protected long lsn; // the LSN of the last log record that updated this page
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
-	protected final Byte oldDataLock=new Byte((byte)0);
+	protected final Object oldDataLock=new Object();
 
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
 	 * The format of a BTreeInternalPage is a set of header bytes indicating
 	 * the slots of the page that are in use, some number of entry slots, and extra
-	 * bytes for the parent pointer, one extra child pointer (a node with m entries 
+	 * bytes for the page LSN, the parent pointer, one extra child pointer (a node with m entries 
 	 * has m+1 pointers to children), and the category of all child pages (either 
 	 * leaf or internal).
 	 *  Specifically, the number of entries is equal to: <p>
@@ -75,6 +77,21 @@ public abstract class BTreePage implements Page {
 		return new byte[len]; //all 0
 	}
 
+	/**
+	 * @return the LSN of the last log record that updated this page
+	 * @see LogFile#logWrite
+	 */
+	public long getLSN() {
+		return lsn;
+	}
+
+	/**
+	 * Set the LSN of this page, stored with it on disk
+	 */
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Get the parent id of this page
 	 * @return the parent id
@@ -148,6 +148,7 @@ public class BTreeUtility {
 		// Convert the tuples list to a B+ tree file
 		File hFile = File.createTempFile("table", ".dat");
 		hFile.deleteOnExit();
+		FreeSpaceMap.sideFile(hFile).deleteOnExit();
 
 		File bFile = File.createTempFile("table_index", ".dat");
 		bFile.deleteOnExit();
@@ -278,7 +279,7 @@ public class BTreeUtility {
 	 */
 	public static int getNumTuplesPerPage(int columns) {
 		int bytesPerTuple = Type.INT_TYPE.getLen() * columns * 8;
-		int tuplesPerPage = (BufferPool.getPageSize() * 8 - 3 * BTreeLeafPage.INDEX_SIZE * 8) /  (bytesPerTuple + 1);
+		int tuplesPerPage = (BufferPool.getPageSize() * 8 - BTreeLeafPage.LSN_SIZE * 8 - 3 * BTreeLeafPage.INDEX_SIZE * 8) /  (bytesPerTuple + 1);
 		return tuplesPerPage;
 	}
 	
@@ -323,8 +324,8 @@ public class BTreeUtility {
 	 */
 	public static int getNumEntriesPerPage() {
 		int nentrybytes = Type.INT_TYPE.getLen() + BTreeInternalPage.INDEX_SIZE;
-		// pointerbytes: one extra child pointer, parent pointer, child page category
-		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
+		// pointerbytes: LSN, one extra child pointer, parent pointer, child page category
+		int internalpointerbytes = BTreeLeafPage.LSN_SIZE + 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int entriesPerPage = (BufferPool.getPageSize() * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
 		return entriesPerPage;
 	}
@@ -404,6 +405,7 @@ public class BTreeUtility {
 		// Convert the tuples list to a B+ tree file
 		File hFile = File.createTempFile("table", ".dat");
 		hFile.deleteOnExit();
+		FreeSpaceMap.sideFile(hFile).deleteOnExit();
 
 		File bFile = File.createTempFile("table_index", ".dat");
 		bFile.deleteOnExit();
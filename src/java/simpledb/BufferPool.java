@@ -3,8 +3,10 @@ package simpledb;
 import java.io.*;
 
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.Collection;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -14,15 +16,64 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Locking is strict two-phase: pages are locked through a
+ * {@link LockManager} as they are fetched and unlocked when the transaction
+ * completes. The pool follows a NO-STEAL/FORCE policy: a dirty page is
+ * neither evicted nor written in the background while the transaction that
+ * dirtied it runs; commit writes the transaction's pages and abort drops
+ * them, so the next reader gets the committed version from disk.
+ * {@link #setStealNoForce} switches to STEAL/NO-FORCE instead.
+ * <p>
+ * Every page handed out by getPage is pinned on behalf of the requesting
+ * transaction and will not be evicted until it is unpinned, either with
+ * {@link #unpinPage} once the caller is done with it or, at the latest, when
+ * the transaction completes.
+ * <p>
+ * Dirty pages that nobody has pinned are written out ahead of eviction by a
+ * background {@link PageWriter}, so a miss rarely has to write a page before
+ * reading its own. Every write, background or not, forces the log record of
+ * the page first.
+ * <p>
+ * Pages read by sequential scans are also read ahead of the scan in the
+ * background, see {@link ReadAhead}.
+ * <p>
+ * Heap files can be locked by record instead of by page, see
+ * {@link #setRecordLocking}. Their pages and tables then only get intention
+ * locks, and transactions writing different records of a page run side by
+ * side; commit and abort work on the records each transaction changed,
+ * which are tracked by {@link RecordChanges}.
+ * <p>
+ * Read-only transactions can read a snapshot instead, see
+ * {@link #beginSnapshot}. They take no locks and are never blocked by
+ * writers; commits keep the versions they need in a {@link VersionStore}.
  * 
  * @Threadsafe, all fields are final
  */
 public class BufferPool {
     private int _numPages;
-    private LinkedHashMap<PageId, Boolean> _lru; // LRU Cache
-    private ConcurrentHashMap<PageId, Page> _pages; // Stands for Buffer Pool
-    private ConcurrentHashMap<PageId, TransactionId> _pageLock;
+    private final PageCache _cache; // frames and replacement policy
+    private final PageCache.Evictor _evictor = this::evictPage;
+    private final PageWriter _writer;
+    private final ReadAhead _readAhead;
+    private final LockManager _locks = new LockManager();
+    private volatile boolean _recordLocking;
+    private volatile boolean _stealNoForce;
+    private final RecordChanges _changes = new RecordChanges();
+    private final VersionStore _versions = new VersionStore();
+    // pins held by each transaction: page -> number of pins
+    private final ConcurrentHashMap<TransactionId, ConcurrentHashMap<PageId, Integer>> _pins =
+        new ConcurrentHashMap<>();
+    // internal and root pointer pages of B+ trees discarded so far
+    private final AtomicLong _nodeDiscards = new AtomicLong();
+
 
+    /**
+     * Marks pages whose committed contents are in the log but maybe not on
+     * disk yet, under NO-FORCE. They are written without a log record, once
+     * the log is forced, and must not be dropped unwritten.
+     */
+    private static final TransactionId LOGGED = new TransactionId();
 
     /** Bytes per page, including header. */
     private static final int DEFAULT_PAGE_SIZE = 4096;
@@ -34,6 +85,9 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** Number of background threads writing dirty pages. */
+    public static final int DEFAULT_WRITER_THREADS = 2;
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
@@ -42,9 +96,121 @@ public class BufferPool {
     public BufferPool(int numPages) {
         // some code goes here
 
+        this(numPages, new ClockPolicy(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts them
+     * according to the given replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the replacement policy, sized for numPages frames
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
         _numPages = numPages;
-        _pages = new ConcurrentHashMap<>();
-        _lru = new LinkedHashMap<>();
+        _cache = new PageCache(numPages, policy);
+        _writer = new PageWriter(_cache, this::writeBack, DEFAULT_WRITER_THREADS,
+            Math.max(1, numPages / 8));
+        _readAhead = new ReadAhead(_cache);
+    }
+
+    /**
+     * Sets the number of frames the background writer tries to keep clean,
+     * i.e. free or holding an unpinned page that can be dropped without I/O.
+     * The default is an eighth of the pool.
+     *
+     * @param frames the target number of clean frames; 0 disables background
+     *        writes, so that dirty pages are only written on eviction
+     */
+    public void setCleanFrameTarget(int frames) {
+        _writer.setTarget(frames);
+    }
+
+    /**
+     * Has the background writer write out the given pages, those of them
+     * that are still dirty and may be written. Used by checkpoints, which
+     * do not write pages themselves.
+     *
+     * @param pids the pages to write
+     */
+    public void cleanPages(Collection<PageId> pids) {
+        _writer.clean(pids);
+    }
+
+    /**
+     * Sets how far sequential scans are read ahead. The window starts small
+     * and grows up to the given number of pages while a scan keeps reading
+     * in order.
+     *
+     * @param pages the maximum number of pages read ahead; 0 disables
+     *        prefetching
+     */
+    public void setReadAheadWindow(int pages) {
+        _readAhead.setMaxWindow(pages);
+    }
+
+    /**
+     * Switches heap files between page and record locking. With record
+     * locking, getPage takes an intention lock on a heap page and its table,
+     * and {@link HeapFile} locks each record it reads, inserts or deletes
+     * through {@link #lockRecord}. Other files keep locking pages. The
+     * default is page locking; switch only while no transaction is running.
+     */
+    public void setRecordLocking(boolean on) {
+        _recordLocking = on;
+    }
+
+    /**
+     * @return true if heap files are locked by record
+     */
+    public boolean isRecordLocking() {
+        return _recordLocking;
+    }
+
+    /**
+     * Switches between NO-STEAL/FORCE, the default, and STEAL/NO-FORCE.
+     * <p>
+     * Under STEAL/NO-FORCE, commit only logs the update records of the
+     * transaction's dirty pages and forces the log; the pages stay dirty in
+     * the pool and are written whenever eviction or the background writer
+     * gets to them. Dirty pages of running transactions may be written too,
+     * after their update record is forced, so a transaction can change more
+     * pages than the pool holds. Abort puts the committed contents back on
+     * disk, and after a crash {@link LogFile#recover} redoes committed and
+     * undoes uncommitted changes from the log.
+     * <p>
+     * Heap pages keep the default policy while records are locked, since a
+     * page image in the log cannot undo the changes of one transaction among
+     * several. Switch only while no transaction is running.
+     */
+    public void setStealNoForce(boolean on) {
+        _stealNoForce = on;
+    }
+
+    /**
+     * @return true if the pool follows STEAL/NO-FORCE
+     */
+    public boolean isStealNoForce() {
+        return _stealNoForce;
+    }
+
+    /**
+     * Makes tid a read-only transaction that reads the database as of the
+     * last commit finished now. Its getPage calls take no locks and return
+     * copies of the pages as they were committed at that point; asking for
+     * READ_WRITE fails. The snapshot is closed when tid completes.
+     *
+     * @param tid a transaction that has not fetched any page yet
+     */
+    public void beginSnapshot(TransactionId tid) {
+        _versions.begin(tid);
+    }
+
+    /**
+     * @return true if tid reads from a snapshot
+     */
+    public boolean readsSnapshot(TransactionId tid) {
+        return tid != null && _versions.inSnapshot(tid);
     }
     
     public static int getPageSize() {
@@ -71,30 +237,184 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, a page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * The returned page is pinned for tid; see {@link #unpinPage}. A shared
+     * lock is taken for READ_ONLY and an exclusive one for READ_WRITE; both
+     * are held until tid completes.
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
+     * @throws DbException if the page is not resident and every page in the
+     *         pool is pinned or dirty
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
 
-        // TODO: Acquire lock first, which should be managed by LockManager
+        return getPage(tid, pid, perm, false);
+    }
+
+    /**
+     * Retrieve the specified page with the associated permissions, telling
+     * the replacement policy whether the page is read by a sequential scan.
+     * Scan-resistant policies admit scanned pages on probation only, so a
+     * large scan does not push the hot pages out of the pool.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param scan true if the page is read as part of a sequential scan that
+     *        may be read ahead
+     * @see #getPage(TransactionId, PageId, Permissions)
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, boolean scan)
+        throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, scan, scan);
+    }
+
+    /**
+     * Retrieve the specified page with the associated permissions, telling
+     * the replacement policy whether the page is read by a sequential scan,
+     * and separately whether the pages that follow it may be read ahead. A
+     * scan that stops at a bound is still a scan, but must not prefetch
+     * past its end.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param scan true if the page is read as part of a sequential scan
+     * @param readAhead true if the scan may go on to the following pages
+     * @see #getPage(TransactionId, PageId, Permissions, boolean)
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, boolean scan,
+            boolean readAhead)
+        throws TransactionAbortedException, DbException {
+
+        if (readsSnapshot(tid)) {
+            if (perm == Permissions.READ_WRITE) {
+                throw new DbException("snapshot transactions are read-only");
+            }
+            // the copy is tid's alone, nothing to lock or pin
+            return _versions.read(tid, fetch(pid, false, scan, readAhead));
+        }
 
-        if (!_pages.containsKey(pid)) {
-            // Read Page from File
-            DbFile dbfile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page page = dbfile.readPage(pid);
+        if (tid != null) {
+            lockPage(tid, pid, perm == Permissions.READ_WRITE);
+        }
 
-            putAndEvict(page);
+        boolean pin = tid != null;
+        Page page = fetch(pid, pin, scan, readAhead);
+        if (pin) {
+            _pins.computeIfAbsent(tid, t -> new ConcurrentHashMap<>())
+                .merge(pid, 1, Integer::sum);
         }
 
         if (perm == Permissions.READ_WRITE) {
-            _pages.get(pid).markDirty(true, tid);
+            // a write of the page in progress must not make it clean
+            _cache.writing(pid);
+            page.markDirty(true, tid);
+        }
+
+        return page;
+    }
+
+    /**
+     * Looks a page up in the pool, reading it if it is not resident.
+     */
+    private Page fetch(PageId pid, boolean pin, boolean scan, boolean readAhead)
+        throws DbException {
+        Page page = pin ? _cache.pin(pid, scan) : _cache.get(pid, scan);
+        if (page == null) {
+            // Read Page from File, or wait for the read ahead of it
+            page = _readAhead.load(pid, scan, pin, _evictor);
+            _writer.wake();
+        }
+        if (readAhead) {
+            _readAhead.accessed(page);
+        }
+        return page;
+    }
+
+    /**
+     * Locks a page for tid. With record locking, heap pages only get an
+     * intention lock, below one on their table; their records are locked
+     * separately.
+     */
+    private void lockPage(TransactionId tid, PageId pid, boolean write)
+        throws TransactionAbortedException {
+        if (_recordLocking && pid instanceof HeapPageId) {
+            LockManager.Mode mode = write
+                ? LockManager.Mode.INTENTION_EXCLUSIVE : LockManager.Mode.INTENTION_SHARED;
+            _locks.acquireTable(tid, pid.getTableId(), mode);
+            _locks.acquire(tid, pid, mode);
+        } else {
+            _locks.acquire(tid, pid, write ? LockManager.Mode.EXCLUSIVE : LockManager.Mode.SHARED);
         }
+    }
 
-        return _pages.get(pid);
+    /**
+     * Locks a page for tid without fetching it, shared for READ_ONLY and
+     * exclusive for READ_WRITE, until tid completes. May block.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param pid the page to lock
+     * @param perm the requested permissions on the page
+     */
+    public void lockPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+        if (tid != null) {
+            lockPage(tid, pid, perm == Permissions.READ_WRITE);
+        }
+    }
+
+    /**
+     * Locks a record of a heap page, shared for READ_ONLY and exclusive for
+     * READ_WRITE, until tid completes. May block. Does nothing unless record
+     * locking is on, since the page lock covers the record otherwise.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param rid the record to lock; tid must have fetched its page
+     * @param perm the requested permissions on the record
+     */
+    public void lockRecord(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException {
+        if (_recordLocking && tid != null) {
+            _locks.acquire(tid, rid, perm == Permissions.READ_WRITE
+                    ? LockManager.Mode.EXCLUSIVE : LockManager.Mode.SHARED);
+        }
+    }
+
+    /**
+     * Locks a record exclusively if that is possible without waiting.
+     *
+     * @return true if tid now holds the record exclusively
+     */
+    boolean tryLockRecord(TransactionId tid, RecordId rid) {
+        return _locks.tryAcquire(tid, rid, LockManager.Mode.EXCLUSIVE);
+    }
+
+    /**
+     * @return true if a transaction other than tid holds a lock on the record
+     */
+    boolean recordLockedByOthers(TransactionId tid, RecordId rid) {
+        return _locks.lockedByOthers(tid, rid);
+    }
+
+    /**
+     * @return true if a transaction other than tid holds an exclusive lock
+     *         on a page; any transaction if tid is null
+     */
+    boolean pageLockedByOthers(TransactionId tid, PageId pid) {
+        return _locks.exclusiveByOthers(tid, pid);
+    }
+
+    /**
+     * @return the record changes of running transactions, which heap files
+     *         note while record locking is on
+     */
+    RecordChanges recordChanges() {
+        return _changes;
     }
 
     /**
@@ -109,6 +429,47 @@ public class BufferPool {
     public void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
+
+        _locks.release(tid, pid);
+    }
+
+    /**
+     * Releases one pin that tid holds on a page, making the page eligible for
+     * eviction again once nobody else has it pinned. Iterators call this as
+     * they move past a page; pins that are never released explicitly are
+     * dropped when the transaction completes.
+     *
+     * @param tid the ID of the transaction that pinned the page
+     * @param pid the ID of the page to unpin
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        ConcurrentHashMap<PageId, Integer> pins = tid == null ? null : _pins.get(tid);
+        if (pins == null) {
+            return;
+        }
+        while (true) {
+            Integer c = pins.get(pid);
+            if (c == null) {
+                return;
+            }
+            if (c == 1 ? pins.remove(pid, c) : pins.replace(pid, c, c - 1)) {
+                _cache.unpin(pid);
+                return;
+            }
+        }
+    }
+
+    /** Drops every pin still held by the given transaction. */
+    private void releasePins(TransactionId tid) {
+        ConcurrentHashMap<PageId, Integer> pins = _pins.remove(tid);
+        if (pins == null) {
+            return;
+        }
+        for (Map.Entry<PageId, Integer> e : pins.entrySet()) {
+            for (int i = 0; i < e.getValue(); i++) {
+                _cache.unpin(e.getKey());
+            }
+        }
     }
 
     /**
@@ -119,18 +480,23 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        return false;
+        return _locks.holds(tid, p) != null;
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
-     * the transaction.
+     * the transaction. On commit the pages dirtied by the transaction are
+     * written out, or only logged under NO-FORCE; on abort they are dropped
+     * from the pool, and their committed contents are written back where
+     * the disk may not hold them.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
@@ -139,6 +505,51 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+
+        try {
+            if (commit) {
+                flushPages(tid);
+            } else {
+                for (PageId pid : _locks.lockedPages(tid)) {
+                    rollbackPage(tid, pid);
+                }
+            }
+        } finally {
+            releasePins(tid);
+            _locks.releaseAll(tid);
+            _versions.end(tid);
+            _writer.wake();
+        }
+    }
+
+    /**
+     * Undoes the changes tid made to a page it holds a lock on.
+     */
+    private void rollbackPage(TransactionId tid, PageId pid) throws IOException {
+        Page p = _cache.peek(pid);
+        if (p != null && _recordLocking && p instanceof HeapPage) {
+            // the page may hold changes of other transactions
+            synchronized (p) {
+                _changes.rollback(tid, (HeapPage) p);
+            }
+            return;
+        }
+        if (_locks.holds(tid, pid) != LockManager.Mode.EXCLUSIVE) {
+            return;
+        }
+        boolean dirty = p != null && p.isDirty() != null && p.isDirty() != LOGGED;
+        // the disk holds the committed version, unless tid's changes were
+        // stolen or the last commit to the page was not forced
+        Page committed = _versions.stolenImage(pid);
+        if (committed == null && dirty && _stealNoForce) {
+            committed = p.getBeforeImage();
+        }
+        if (committed != null) {
+            writePage(committed, null, null);
+        }
+        if (dirty || committed != null) {
+            discardPage(pid);
+        }
     }
 
     /**
@@ -165,8 +576,9 @@ public class BufferPool {
 
         // mark dirty pages
         for (Page dp : dpList) {
+            lockDirtied(tid, dp);
             dp.markDirty(true, tid);
-            putAndEvict(dp);
+            _cache.put(dp, _evictor);
         }
     }
 
@@ -192,8 +604,21 @@ public class BufferPool {
 
         // mark dirty pages
         for (Page dp : dpList) {
+            lockDirtied(tid, dp);
             dp.markDirty(true, tid);
-            putAndEvict(dp);
+            _cache.put(dp, _evictor);
+        }
+    }
+
+    /**
+     * Makes sure tid holds an exclusive lock on a page it changed. Files
+     * normally fetch such pages with READ_WRITE already; this covers pages
+     * they built themselves, so that commit and abort find every page of
+     * the transaction.
+     */
+    private void lockDirtied(TransactionId tid, Page dp) throws TransactionAbortedException {
+        if (tid != null) {
+            lockPage(tid, dp.getId(), true);
         }
     }
 
@@ -204,6 +629,12 @@ public class BufferPool {
      */
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
+
+        for (Page p : _cache.pages()) {
+            if (p.isDirty() != null) {
+                flushPage(p);
+            }
+        }
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -213,79 +644,217 @@ public class BufferPool {
         
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
+
+        The pins of the page go with it, so that they are not released
+        later against the frame of the next copy of the page. Callers
+        hold the page exclusively, so no other transaction is pinning it.
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
 
-        _lru.remove(pid);
-        _pages.remove(pid);
+        for (ConcurrentHashMap<PageId, Integer> pins : _pins.values()) {
+            pins.remove(pid);
+        }
+        _cache.remove(pid);
+        if (pid instanceof BTreePageId && ((BTreePageId) pid).pgcateg() != BTreePageId.LEAF) {
+            _nodeDiscards.incrementAndGet();
+        }
+        Database.getLogFile().pageDiscarded(pid);
+    }
+
+    /**
+     * @return the number of internal and root pointer pages of B+ trees
+     *   discarded from this pool, which recovery and aborts do for pages they
+     *   write. A BTreeNodeCache built at another count may be stale.
+     */
+    long nodeDiscards() {
+        return _nodeDiscards.get();
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
 
-        Page page = _pages.get(pid);
+        Page page = _cache.peek(pid);
         if (page == null) {
             return;
         }
+        flushPage(page);
+    }
 
-        // Write data into disk
-        byte[] pageData = page.getPageData();
-        HeapFile dbFile = (HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
-        RandomAccessFile raf = new RandomAccessFile(dbFile.getFile(), "rw");
-        raf.seek(pageSize * pid.getPageNumber());
-        raf.write(pageData);
-        raf.close();
+    private void flushPage(Page page) throws IOException {
+        writePage(page);
 
         // mark it as clean page
         page.markDirty(false, null);
     }
 
+    /**
+     * Writes a page to its file without changing its dirty state. If the page
+     * holds uncommitted changes, its update record is logged and forced first
+     * (WAL), and its committed contents are kept for abort and snapshots.
+     */
+    private void writePage(Page page) throws IOException {
+        TransactionId dirtier = page.isDirty();
+        if (dirtier == LOGGED) {
+            // commit left forcing the update record to the commit record
+            Database.getLogFile().force();
+        }
+        if (dirtier == null || dirtier == LOGGED) {
+            writePage(page, null, null);
+            return;
+        }
+        Page before = page.getBeforeImage();
+        _versions.stolen(page.getId(), before);
+        writePage(page, dirtier, before);
+        // the next update record of the page starts from here; the
+        // committed contents are kept by the version store
+        page.setBeforeImage();
+    }
+
+    /**
+     * Writes a page to its file, logging and forcing its update record
+     * first if dirtier is not null.
+     */
+    private void writePage(Page page, TransactionId dirtier, Page before) throws IOException {
+        if (dirtier != null) {
+            LogFile log = Database.getLogFile();
+            log.logWrite(dirtier, before, page);
+            log.force();
+        }
+
+        // Write data into disk; the LSN is taken first, since the page may
+        // be logged again while it is written. Writes of a page are one at
+        // a time, so that an eviction that began before a commit cannot put
+        // older bytes on disk after the commit's own write.
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+        synchronized (page) {
+            long lsn = LogFile.pageLSN(page);
+            dbFile.writePage(page);
+            Database.getLogFile().pageWritten(page.getId(), lsn);
+        }
+    }
+
     /** Write all pages of the specified transaction to disk.
      */
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+
+        // a transaction can only have dirtied pages it holds exclusively,
+        // or records of heap pages it holds an intention lock on
+        long commit = _versions.beginCommit();
+        boolean wrote = false;
+        try {
+            for (PageId pid : _locks.lockedPages(tid)) {
+                Page p = _cache.peek(pid);
+                if (p != null && _recordLocking && p instanceof HeapPage) {
+                    wrote |= flushRecords(tid, (HeapPage) p, commit);
+                } else if (p != null && p.isDirty() != null && p.isDirty() != LOGGED) {
+                    Page before = p.getBeforeImage();
+                    _versions.save(pid, before, commit);
+                    if (_stealNoForce) {
+                        // NO-FORCE: the log record is enough for now
+                        Database.getLogFile().logWrite(tid, before, p);
+                        p.markDirty(true, LOGGED);
+                    } else {
+                        writePage(p, tid, before);
+                        p.markDirty(false, null);
+                    }
+                    // the committed contents are the base of the next update
+                    p.setBeforeImage();
+                    wrote = true;
+                } else if (_versions.save(pid, null, commit)) {
+                    // tid's changes were stolen, and are already logged
+                    if (p != null) {
+                        p.setBeforeImage();
+                    }
+                    wrote = true;
+                }
+            }
+        } finally {
+            _versions.endCommit(commit, wrote);
+        }
     }
 
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Commits the records tid changed on a heap page: writes the page as it
+     * is without the changes of other running transactions, which keep the
+     * page dirty.
+     *
+     * @return true if tid had changed the page
      */
-    private synchronized  void evictPage() throws DbException {
-        // some code goes here
+    private boolean flushRecords(TransactionId tid, HeapPage page, long commit)
+        throws IOException {
+        synchronized (page) {
+            boolean changed = _changes.changed(tid, page);
+            if (changed) {
+                HeapPage committed = _changes.committedImage(tid, page);
+                Page before = page.getBeforeImage();
+                _versions.save(page.getId(), before, commit);
+                writePage(committed, tid, before);
+                page.setBeforeImage(committed.getPageData());
+                page.setLSN(committed.getLSN());
+            }
+            _changes.commit(tid, page);
+            return changed;
+        }
+    }
 
-        PageId pid = _lru.keySet().iterator().next();
-        try {
-            flushPage(pid);
-        } catch (IOException e) {
-            throw new DbException(e.getMessage());
+    /**
+     * Under NO-STEAL, a dirty page is only written when the transaction that
+     * dirtied it commits, so uncommitted changes never reach the disk. Under
+     * STEAL, any page may be written, except heap pages whose records are
+     * locked.
+     *
+     * @return true if the page may be written out now
+     */
+    private boolean maySteal(Page p) {
+        TransactionId dirtier = p.isDirty();
+        if (dirtier == null || dirtier == LOGGED) {
+            return true;
         }
-        _lru.remove(pid);
-        _pages.remove(pid);
+        return _stealNoForce && !(_recordLocking && p instanceof HeapPage);
     }
 
     /**
-     * Insert or Update a specific page in BufferPool.
-     * Will Evict a page from pool if the pool is full and the page not cached in it.
-     * @param p the page to insert into BufferPool
-     * @throws DbException
+     * Writes a page for the background writer, if the page may be written
+     * before its transaction commits.
+     *
+     * @return true if the page was written
      */
-    private synchronized  void putAndEvict(Page p) throws DbException {
-        if (!_pages.containsKey(p.getId()) && _pages.size() >= _numPages) {
-            evictPage();
+    private boolean writeBack(Page p) throws IOException {
+        if (!maySteal(p)) {
+            return false;
         }
-        if (_lru.containsKey(p.getId())) {
-           _lru.remove(p.getId());
+        writePage(p);
+        return true;
+    }
+
+    /**
+     * Prepares a dirty page chosen by the replacement policy for eviction.
+     * Writes the page to disk to ensure dirty pages are updated on disk; the
+     * page cache only calls this when no clean page could be evicted. Pages
+     * of running transactions are refused under NO-STEAL.
+     *
+     * @return true if the page may be dropped from the pool
+     */
+    private boolean evictPage(Page victim) throws DbException {
+        // some code goes here
+
+        if (!maySteal(victim)) {
+            return false;
+        }
+        try {
+            writePage(victim);
+        } catch (IOException e) {
+            throw new DbException(e.getMessage());
         }
-        _pages.put(p.getId(), p);
-        _lru.put(p.getId(), true);
+        return true;
     }
 }
-
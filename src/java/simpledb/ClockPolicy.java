@@ -0,0 +1,61 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntPredicate;
+
+/**
+ * CLOCK replacement. A hit only sets the reference bit of its frame, so the
+ * hit path is a single atomic write; a victim search sweeps the clock hand
+ * over the frames, clearing reference bits until it finds a frame that has
+ * not been touched since the last sweep.
+ * <p>
+ * A page starts with a clear reference bit, so that a page touched only once
+ * is the first candidate for eviction. CLOCK ignores the scan hint.
+ *
+ * @Threadsafe
+ */
+public class ClockPolicy implements ReplacementPolicy {
+    private final int _numFrames;
+    private final AtomicIntegerArray _refBits;
+    private final AtomicIntegerArray _occupied;
+    private final AtomicInteger _hand;
+
+    public ClockPolicy(int numFrames) {
+        _numFrames = numFrames;
+        _refBits = new AtomicIntegerArray(numFrames);
+        _occupied = new AtomicIntegerArray(numFrames);
+        _hand = new AtomicInteger(0);
+    }
+
+    public void admitted(int frame, PageId pid, boolean scan) {
+        _refBits.set(frame, 0);
+        _occupied.set(frame, 1);
+    }
+
+    public void accessed(int frame, boolean scan) {
+        if (_refBits.get(frame) == 0) {
+            _refBits.set(frame, 1);
+        }
+    }
+
+    public void removed(int frame, PageId pid, boolean evicted) {
+        _occupied.set(frame, 0);
+        _refBits.set(frame, 0);
+    }
+
+    public int victim(IntPredicate eligible) {
+        // two full turns of the clock: the first may only clear reference bits
+        for (int i = 0; i < 2 * _numFrames + 1; i++) {
+            int f = (_hand.getAndIncrement() & 0x7fffffff) % _numFrames;
+            if (_occupied.get(f) == 0 || !eligible.test(f)) {
+                continue;
+            }
+            if (_refBits.getAndSet(f, 0) == 1) {
+                continue;
+            }
+            return f;
+        }
+        return -1;
+    }
+}
@@ -17,12 +17,14 @@ public class Database {
     private static AtomicReference<Database> _instance = new AtomicReference<Database>(new Database());
     private final Catalog _catalog;
     private final BufferPool _bufferpool;
+    private final FileManager _files;
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
 
     private Database() {
         _catalog = new Catalog();
+        _files = new FileManager();
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
         LogFile tmp = null;
         try {
@@ -45,6 +47,11 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /** Return the file manager of the static Database instance */
+    public static FileManager getFileManager() {
+        return _instance.get()._files;
+    }
+
     /** Return the catalog of the static Database instance */
     public static Catalog getCatalog() {
         return _instance.get()._catalog;
@@ -55,11 +62,19 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(new BufferPool(pages));
+    }
+
+    /**
+     * Method used for testing -- install the given buffer pool (e.g. one
+     * with a particular replacement policy) and return it
+     */
+    public static BufferPool resetBufferPool(BufferPool bufferPool) {
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), bufferPool);
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -75,7 +90,9 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        Database old = _instance.getAndSet(new Database());
+        old._files.closeAll();
+        old._logfile.stopFlusher();
     }
 
 }
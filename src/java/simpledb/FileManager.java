@@ -0,0 +1,122 @@
+package simpledb;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * FileManager keeps one open {@link FileChannel} per table file, so that page
+ * I/O does not pay for opening and closing the file every time. All reads and
+ * writes are positional: they never move a shared file pointer, so threads
+ * reading or writing different pages of the same file need no lock.
+ * <p>
+ * The channels stay open until {@link #closeAll} is called, which happens
+ * when the database is reset.
+ *
+ * @Threadsafe
+ */
+public class FileManager {
+    private final ConcurrentHashMap<File, FileChannel> _channels = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the open channel of a file, opening it on first use. The file
+     * is created if it does not exist. A channel that was closed behind our
+     * back, e.g. because a thread using it was interrupted, is reopened.
+     */
+    public FileChannel channel(File f) throws IOException {
+        File af = f.getAbsoluteFile();
+        FileChannel ch = _channels.get(af);
+        if (ch != null && ch.isOpen()) {
+            return ch;
+        }
+        try {
+            return _channels.compute(af, (k, old) -> {
+                if (old != null && old.isOpen()) {
+                    return old;
+                }
+                try {
+                    return FileChannel.open(k.toPath(), StandardOpenOption.READ,
+                            StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Reads exactly buf.length bytes from the given offset of a file.
+     *
+     * @throws EOFException if the file ends before buf is full
+     */
+    public void read(File f, byte[] buf, long offset) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        while (bb.hasRemaining()) {
+            int n;
+            try {
+                n = channel(f).read(bb, offset + bb.position());
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (AsynchronousCloseException e) {
+                // another thread was interrupted while using the channel
+                continue;
+            }
+            if (n < 0) {
+                throw new EOFException("read past end of " + f);
+            }
+        }
+    }
+
+    /**
+     * Writes all of data at the given offset of a file, extending the file
+     * if needed.
+     */
+    public void write(File f, byte[] data, long offset) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        while (bb.hasRemaining()) {
+            try {
+                channel(f).write(bb, offset + bb.position());
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (AsynchronousCloseException e) {
+                // another thread was interrupted while using the channel
+            }
+        }
+    }
+
+    /**
+     * Appends data to the end of a file. Callers appending to the same file
+     * concurrently must synchronize among themselves.
+     *
+     * @return the offset the data was written at
+     */
+    public long append(File f, byte[] data) throws IOException {
+        long offset = channel(f).size();
+        write(f, data, offset);
+        return offset;
+    }
+
+    /** Closes every open channel. */
+    public void closeAll() {
+        for (File f : _channels.keySet()) {
+            FileChannel ch = _channels.remove(f);
+            if (ch == null) {
+                continue;
+            }
+            try {
+                ch.close();
+            } catch (IOException e) {
+                // nothing left to do with the channel
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package simpledb;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap records which pages of a {@link HeapFile} have an empty slot,
+ * so that an insert can go straight to such a page instead of fetching every
+ * page of the table.
+ * <p>
+ * The map is kept in a side file next to the heap file: a header holding the
+ * number of pages the map covers, then one byte per page, 0 if the page has
+ * room and 1 if it is full. Only changes between the two states are
+ * written, one byte at a time, so a page that fills up costs one small write
+ * however many tuples went into it. Pages past the end of the map are read
+ * from the heap file once, when the map is loaded. A map that covers more
+ * pages than the heap file has belongs to an earlier table at the same path
+ * and is rebuilt; whoever writes a new heap file over an old one should
+ * {@link #reset} its map, as {@link HeapFileEncoder} does, since a table of
+ * the same length cannot be told apart. The side file must be deleted
+ * together with its heap file.
+ * <p>
+ * The map is a hint, not part of the database: it is not logged, and it may
+ * be stale after an abort or a crash. Inserts check the page they are sent
+ * to and report back when it turns out to be full, and every page read from
+ * or written to the heap file refreshes its entry.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+    private static final byte FREE = 0;
+    private static final byte FULL = 1;
+    /** Bytes before the state of page 0: the number of pages covered. */
+    static final int HEADER_SIZE = 4;
+
+    private final File _file;
+    private final BitSet _free = new BitSet();
+    private int _numPages;
+
+    private FreeSpaceMap(File file) {
+        _file = file;
+    }
+
+    /**
+     * @return the side file holding the map of the given heap file
+     */
+    public static File sideFile(File heapFile) {
+        return new File(heapFile.getPath() + ".fsm");
+    }
+
+    /**
+     * Empties the side file of a heap file that is being (re)created, if
+     * there is one, so that the map is rebuilt from the new table.
+     */
+    public static void reset(File heapFile) throws IOException {
+        File side = sideFile(heapFile);
+        if (side.exists()) {
+            Database.getFileManager().channel(side).truncate(0);
+        }
+    }
+
+    /**
+     * Loads the map of a heap file from its side file, reading the pages the
+     * side file does not cover from the heap file itself. A side file that
+     * covers more pages than the heap file has is not trusted at all.
+     */
+    static FreeSpaceMap load(HeapFile hf) throws IOException {
+        FreeSpaceMap fsm = new FreeSpaceMap(sideFile(hf.getFile()));
+        int numPages = hf.numPages();
+        int known = 0;
+        byte[] states = new byte[numPages];
+        try {
+            if (fsm._file.length() >= HEADER_SIZE) {
+                byte[] header = new byte[HEADER_SIZE];
+                Database.getFileManager().read(fsm._file, header, 0);
+                int covered = ByteBuffer.wrap(header).getInt();
+                if (covered <= numPages) {
+                    known = (int) Math.min(covered, fsm._file.length() - HEADER_SIZE);
+                }
+            }
+            if (known > 0) {
+                byte[] buf = new byte[known];
+                Database.getFileManager().read(fsm._file, buf, HEADER_SIZE);
+                System.arraycopy(buf, 0, states, 0, known);
+            }
+        } catch (EOFException e) {
+            // truncated underneath us; treat everything as unknown
+            known = 0;
+        }
+        // pages the side file does not cover are read directly, bypassing
+        // the buffer pool; a heap page parses nothing but its header here
+        for (int pn = known; pn < numPages; pn++) {
+            HeapPage p = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), pn));
+            states[pn] = p == null || p.getNumEmptySlots() > 0 ? FREE : FULL;
+        }
+        if (known < numPages) {
+            byte[] tail = new byte[numPages - known];
+            System.arraycopy(states, known, tail, 0, tail.length);
+            Database.getFileManager().write(fsm._file, tail, HEADER_SIZE + known);
+        }
+        if (known < numPages || fsm._file.length() < HEADER_SIZE) {
+            writeHeader(fsm._file, numPages);
+        }
+
+        for (int pn = 0; pn < numPages; pn++) {
+            if (states[pn] == FREE) {
+                fsm._free.set(pn);
+            }
+        }
+        fsm._numPages = numPages;
+        return fsm;
+    }
+
+    /**
+     * @return the number of a page believed to have an empty slot, or -1 if
+     *         every page known to the map is full
+     */
+    public synchronized int findFree() {
+        return _free.nextSetBit(0);
+    }
+
+    /**
+     * Makes sure the map covers numPages pages. Pages that appear are
+     * assumed to have room until somebody finds otherwise.
+     */
+    public synchronized void grow(int numPages) throws IOException {
+        if (numPages > _numPages) {
+            // the bytes skipped over read back as zero, i.e. free
+            Database.getFileManager().write(_file, new byte[] { FREE }, HEADER_SIZE + numPages - 1);
+            writeHeader(_file, numPages);
+            _free.set(_numPages, numPages);
+            _numPages = numPages;
+        }
+    }
+
+    /**
+     * Records whether a page has an empty slot, writing the change to the
+     * side file if the state of the page changed.
+     */
+    public synchronized void update(int pn, boolean free) throws IOException {
+        if (pn >= _numPages) {
+            grow(pn + 1);
+        }
+        if (_free.get(pn) == free) {
+            return;
+        }
+        _free.set(pn, free);
+        Database.getFileManager().write(_file, new byte[] { free ? FREE : FULL }, HEADER_SIZE + pn);
+    }
+
+    private static void writeHeader(File file, int numPages) throws IOException {
+        Database.getFileManager().write(file,
+                ByteBuffer.allocate(HEADER_SIZE).putInt(numPages).array(), 0);
+    }
+}
@@ -1,6 +1,9 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -9,6 +12,22 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * A HeapFile can also be opened in memory-mapped mode for tables that are
+ * only read, e.g. ones loaded once with {@link HeapFileEncoder}. The file is
+ * then mapped with {@link FileChannel#map} and pages are built straight from
+ * slices of the mapping, without copying them or issuing a read; inserts and
+ * deletes fail, so the pages of such a file are never dirty and the buffer
+ * pool can drop them at no cost.
+ * <p>
+ * Inserts find a page with an empty slot through the {@link FreeSpaceMap} of
+ * the file, which is kept in a side file and loaded by the first insert or
+ * delete.
+ * <p>
+ * When the buffer pool locks records ({@link BufferPool#setRecordLocking}),
+ * the file locks each tuple it returns, inserts or deletes, and notes its
+ * changes in the pool's {@link RecordChanges}. Pages are then changed by
+ * several transactions at once, under the monitor of the page.
  * 
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
@@ -17,6 +36,12 @@ public class HeapFile implements DbFile {
     private File _f;
     private TupleDesc _td;
     private final int _pageSize;
+    private final boolean _mapped;
+    private volatile MappedByteBuffer[] _segments; // mapped mode only
+    private volatile FreeSpaceMap _fsm; // loaded by the first update
+
+    /** Maximum size of a single mapping; larger files are mapped in segments. */
+    private static final int SEGMENT_SIZE = 1 << 30;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -28,9 +53,102 @@ public class HeapFile implements DbFile {
     public HeapFile(File f, TupleDesc td) {
         // some code goes here
 
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, optionally in
+     * read-only memory-mapped mode.
+     * 
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param mapped
+     *            true to map the file into memory and reject all updates
+     */
+    public HeapFile(File f, TupleDesc td, boolean mapped) {
         _f = f;
         _td = td;
         _pageSize = BufferPool.getPageSize();
+        _mapped = mapped;
+    }
+
+    /**
+     * @return true if this file is opened in read-only memory-mapped mode
+     */
+    public boolean isMemoryMapped() {
+        return _mapped;
+    }
+
+    /**
+     * Maps the file on first use. Each segment holds a whole number of pages.
+     */
+    private MappedByteBuffer[] segments() throws IOException {
+        MappedByteBuffer[] segs = _segments;
+        if (segs != null) {
+            return segs;
+        }
+        synchronized (this) {
+            if (_segments == null) {
+                FileChannel ch = Database.getFileManager().channel(_f);
+                long size = ch.size() - ch.size() % _pageSize;
+                long segSize = SEGMENT_SIZE - SEGMENT_SIZE % _pageSize;
+                segs = new MappedByteBuffer[(int) ((size + segSize - 1) / segSize)];
+                for (int i = 0; i < segs.length; i++) {
+                    long start = i * segSize;
+                    segs[i] = ch.map(FileChannel.MapMode.READ_ONLY, start,
+                            Math.min(segSize, size - start));
+                }
+                _segments = segs;
+            }
+            return _segments;
+        }
+    }
+
+    /**
+     * Returns the bytes of a page as a slice of the mapping.
+     */
+    private ByteBuffer mappedPage(int pn) throws IOException {
+        MappedByteBuffer[] segs = segments();
+        int pagesPerSegment = SEGMENT_SIZE / _pageSize;
+        ByteBuffer bb = segs[pn / pagesPerSegment].duplicate();
+        int off = (pn % pagesPerSegment) * _pageSize;
+        bb.position(off);
+        bb.limit(off + _pageSize);
+        return bb.slice();
+    }
+
+    /**
+     * Returns the free space map of this file, loading it on first use.
+     */
+    private FreeSpaceMap freeSpace() throws IOException {
+        FreeSpaceMap fsm = _fsm;
+        if (fsm != null) {
+            return fsm;
+        }
+        synchronized (this) {
+            if (_fsm == null) {
+                _fsm = FreeSpaceMap.load(this);
+            }
+            return _fsm;
+        }
+    }
+
+    /**
+     * Refreshes the entry of a page that was read or written in the free
+     * space map, if the map is loaded.
+     */
+    private void noteFreeSpace(HeapPage page) {
+        FreeSpaceMap fsm = _fsm;
+        if (fsm == null) {
+            return;
+        }
+        try {
+            fsm.update(page.getId().getPageNumber(), page.getNumEmptySlots() > 0);
+        } catch (IOException e) {
+            // the map is only a hint; the next update will try again
+            e.printStackTrace();
+        }
     }
 
     /**
@@ -86,12 +204,15 @@ public class HeapFile implements DbFile {
         }
 
         try {
+            if (_mapped) {
+                return new HeapPage(new HeapPageId(pid.getTableId(), pn), mappedPage(pn));
+            }
             byte[] byteStream = new byte[_pageSize];
-            RandomAccessFile raf = new RandomAccessFile(_f, "r");
-            raf.seek(_pageSize * pn);
-            raf.readFully(byteStream);
-            raf.close();
-            return new HeapPage(new HeapPageId(pid.getTableId(), pn), byteStream);
+            Database.getFileManager().read(_f, byteStream, (long) _pageSize * pn);
+            // the array is ours alone, the page can keep it without a copy
+            HeapPage page = new HeapPage(new HeapPageId(pid.getTableId(), pn), ByteBuffer.wrap(byteStream));
+            noteFreeSpace(page);
+            return page;
         } catch (Exception e) {
             e.printStackTrace();
             return null;
@@ -103,11 +224,14 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for lab1
 
-        HeapPage hp = (HeapPage) page;
-        RandomAccessFile raf = new RandomAccessFile(_f, "rw");
-        raf.seek(BufferPool.getPageSize() * page.getId().getPageNumber());
-        raf.write(page.getPageData());
-        raf.close();
+        if (_mapped) {
+            throw new IOException("memory-mapped heap file is read-only");
+        }
+        Database.getFileManager().write(_f, page.getPageData(),
+                (long) _pageSize * page.getId().getPageNumber());
+        if (page instanceof HeapPage) {
+            noteFreeSpace((HeapPage) page);
+        }
     }
 
     /**
@@ -116,6 +240,18 @@ public class HeapFile implements DbFile {
     public int numPages() {
         // some code goes here
 
+        if (_mapped) {
+            try {
+                int pages = 0;
+                for (MappedByteBuffer seg : segments()) {
+                    pages += seg.capacity() / _pageSize;
+                }
+                return pages;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
         long fl = _f.length();
 
         return (int)(fl + _pageSize - 1)/ _pageSize;
@@ -126,52 +262,120 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
 
+        if (_mapped) {
+            throw new DbException("memory-mapped heap file is read-only");
+        }
         if (!t.getTupleDesc().equals(_td)) {
             throw new DbException("deleteTuple");
         }
 
+        FreeSpaceMap fsm = freeSpace();
+        // the file may have grown without going through writePage
+        fsm.grow(numPages());
+
+        // go to a page that should have room; if the map was stale, or the
+        // empty slots are locked by others, note that the page is full and
+        // ask again. The page is first looked at without a lock, so that
+        // only a page with room gets locked exclusively; the lock is kept
+        // if the page filled up in between, since fetching it for writing
+        // has marked it dirty
+        HeapPage hp;
         int pn;
+        do {
+            pn = fsm.findFree();
+            if (pn < 0) {
+                // All pages are full, firstly Create an EmptyPage
+                synchronized (this) {
+                    pn = numPages();
+                    writePage(new HeapPage(new HeapPageId(getId(), pn), HeapPage.createEmptyPageData()));
+                }
+            }
+            HeapPageId pid = new HeapPageId(getId(), pn);
+            // a null transaction reads the page without locking or pinning it
+            HeapPage peek = (HeapPage) Database.getBufferPool().getPage(null, pid, Permissions.READ_ONLY);
+            if (peek.getNumEmptySlots() == 0) {
+                fsm.update(pn, false);
+                hp = null;
+                continue;
+            }
+            hp = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+            if (!insertInto(tid, hp, t)) {
+                Database.getBufferPool().unpinPage(tid, pid);
+                fsm.update(pn, false);
+                hp = null;
+            }
+        } while (hp == null);
 
-        for (pn = 0; pn < numPages(); pn++) {
-            // try to find an empty slot to insert tuple
-            HeapPage hp = (HeapPage)(Database.getBufferPool().getPage(tid,
-                    new HeapPageId(getId(), pn),Permissions.READ_ONLY));
-
-            if (hp.getNumEmptySlots() > 0) break;
-        }
-
-        if (pn == numPages()) {
-            // All pages are full, firstly Create an EmptyPage
-            HeapPageId pgId = new HeapPageId(getId(), pn);
-            HeapPage newPage = new HeapPage(pgId, HeapPage.createEmptyPageData());
-            writePage(newPage);
+        if (hp.getNumEmptySlots() == 0) {
+            fsm.update(pn, false);
         }
 
-        // The page to insert tuple
-        HeapPage hp = (HeapPage)(Database.getBufferPool().getPage(tid,
-                    new HeapPageId(getId(), pn),Permissions.READ_WRITE));
-
-        hp.insertTuple(t);
-
         ArrayList<Page> pList = new ArrayList<>();
         pList.add(hp);
         return pList;
     }
 
+    /**
+     * Inserts a tuple into a page if it has room. With record locking the
+     * tuple only goes into an empty slot that no other transaction has
+     * locked, so a slot freed by an uncommitted delete stays free for the
+     * deleted tuple to come back to.
+     *
+     * @return false if there was no slot to use
+     */
+    private boolean insertInto(TransactionId tid, HeapPage hp, Tuple t) throws DbException {
+        BufferPool bp = Database.getBufferPool();
+        if (tid == null || !bp.isRecordLocking()) {
+            if (hp.getNumEmptySlots() == 0) {
+                return false;
+            }
+            hp.insertTuple(t);
+            return true;
+        }
+        synchronized (hp) {
+            for (int i = 0; i < hp.numSlots; i++) {
+                if (!hp.isSlotUsed(i) && bp.tryLockRecord(tid, new RecordId(hp.getId(), i))) {
+                    hp.insertTuple(t, i);
+                    bp.recordChanges().inserted(tid, hp, i);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         // some code goes here
 
+        if (_mapped) {
+            throw new DbException("memory-mapped heap file is read-only");
+        }
         int tbId = t.getRecordId().getPageId().getTableId();
         int pn = t.getRecordId().getPageId().getPageNumber();
         if (getId() != tbId || pn < 0 || pn >= numPages()) {
             throw new DbException("deleteTuple");
         }
 
-        HeapPage hp = (HeapPage)(Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(),
+        BufferPool bp = Database.getBufferPool();
+        HeapPage hp = (HeapPage)(bp.getPage(tid, t.getRecordId().getPageId(),
                 Permissions.READ_WRITE));
-        hp.deleteTuple(t);
+        if (tid != null && bp.isRecordLocking()) {
+            bp.lockRecord(tid, t.getRecordId(), Permissions.READ_WRITE);
+            synchronized (hp) {
+                Tuple stored = hp.tupleAt(t.getRecordId().getTupleNumber());
+                hp.deleteTuple(t);
+                bp.recordChanges().deleted(tid, hp, stored);
+            }
+        } else {
+            hp.deleteTuple(t);
+        }
+        try {
+            freeSpace().update(pn, true);
+        } catch (IOException e) {
+            throw new DbException("cannot update free space map of " + _f + ": " + e.getMessage());
+        }
 
         ArrayList<Page> pList = new ArrayList<>();
         pList.add(hp);
@@ -191,6 +395,7 @@ public class HeapFile implements DbFile {
 
         private boolean _opened;
         private int _currentPageIndex;
+        private PageId _currentPid; // pinned while we iterate over it
         private Iterator<Tuple> _currentTupleIter;
 
         public HeapFileIterator(HeapFile hf, TransactionId tid) {
@@ -212,21 +417,63 @@ public class HeapFile implements DbFile {
             openNextPage();
         }
 
-        private void openNextPage() throws NoSuchElementException {
+        private void openNextPage()
+                throws DbException, TransactionAbortedException, NoSuchElementException {
             if (_currentPageIndex >= _pageSize) {
                 throw new NoSuchElementException();
             }
 
+            unpinCurrentPage();
             PageId pid = new HeapPageId(_hf.getId(), _currentPageIndex);
-            try {
-                Page p = Database.getBufferPool()
-                        .getPage(_tid, pid, Permissions.READ_ONLY);
-                _currentTupleIter = ((HeapPage)p).iterator();
-                _currentPageIndex++;
+            // a full buffer pool or a deadlock is the caller's business, not
+            // the end of the table
+            BufferPool bp = Database.getBufferPool();
+            HeapPage p = (HeapPage) bp.getPage(_tid, pid, Permissions.READ_ONLY, true);
+            _currentPid = pid;
+            // snapshot pages are copies nobody changes
+            _currentTupleIter = _tid != null && bp.isRecordLocking() && !bp.readsSnapshot(_tid)
+                    ? lockedTuples(p) : p.iterator();
+            _currentPageIndex++;
+        }
 
-            } catch (Exception e) {
-                e.printStackTrace();
-                throw new NoSuchElementException();
+        /**
+         * Returns the tuples of a page, taking a shared lock on each first.
+         * Tuples inserted by running transactions are waited for, and so are
+         * empty slots another transaction has locked, which may hold a
+         * tuple whose delete is not committed yet.
+         */
+        private Iterator<Tuple> lockedTuples(HeapPage p) throws TransactionAbortedException {
+            BufferPool bp = Database.getBufferPool();
+            // look at the slots before the locks: a delete locks its record
+            // before it empties the slot, and keeps the lock until commit
+            boolean[] used = new boolean[p.numSlots];
+            synchronized (p) {
+                for (int i = 0; i < used.length; i++) {
+                    used[i] = p.isSlotUsed(i);
+                }
+            }
+            ArrayList<Tuple> tuples = new ArrayList<>();
+            for (int i = 0; i < used.length; i++) {
+                RecordId rid = new RecordId(p.getId(), i);
+                if (!used[i] && !bp.recordLockedByOthers(_tid, rid)) {
+                    continue;
+                }
+                bp.lockRecord(_tid, rid, Permissions.READ_ONLY);
+                Tuple t;
+                synchronized (p) {
+                    t = p.tupleAt(i);
+                }
+                if (t != null) {
+                    tuples.add(t);
+                }
+            }
+            return tuples.iterator();
+        }
+
+        private void unpinCurrentPage() {
+            if (_currentPid != null) {
+                Database.getBufferPool().unpinPage(_tid, _currentPid);
+                _currentPid = null;
             }
         }
 
@@ -242,14 +489,12 @@ public class HeapFile implements DbFile {
             // N.B. there may be blank page between tuples as a hole
             // due to delete
             while (_currentPageIndex < _hf.numPages()) {
-                PageId pid = new HeapPageId(_hf.getId(), _currentPageIndex);
-                HeapPage p = (HeapPage) Database.getBufferPool()
-                        .getPage(_tid, pid, Permissions.READ_ONLY);
-                if (p.iterator().hasNext()) {
+                openNextPage();
+                if (_currentTupleIter.hasNext()) {
                     return true;
                 }
-                _currentPageIndex++;
             }
+            unpinCurrentPage();
             return false;
         }
 
@@ -259,8 +504,8 @@ public class HeapFile implements DbFile {
                 throw new NoSuchElementException();
             }
 
-            if (_currentTupleIter == null || !_currentTupleIter.hasNext()) {
-                openNextPage();
+            if (!hasNext()) {
+                throw new NoSuchElementException();
             }
 
             return _currentTupleIter.next();
@@ -274,6 +519,7 @@ public class HeapFile implements DbFile {
 
         @Override
         public void close() {
+            unpinCurrentPage();
             _currentTupleIter = null;
             _currentPageIndex = 0;
             _opened = false;
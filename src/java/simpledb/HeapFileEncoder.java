@@ -95,7 +95,8 @@ public class HeapFileEncoder {
       for (int i = 0; i < numFields ; i++) {
           nrecbytes += typeAr[i].getLen();
       }
-      int nrecords = (npagebytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
+      // every page starts with its LSN, zero for pages that were never logged
+      int nrecords = ((npagebytes - HeapPage.LSN_SIZE) * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
       
     //  per record, we need one bit; there are nrecords per page, so we need
     // nrecords bits, i.e., ((nrecords/32)+1) integers.
@@ -105,6 +106,8 @@ public class HeapFileEncoder {
     int nheaderbits = nheaderbytes * 8;
 
     BufferedReader br = new BufferedReader(new FileReader(inFile));
+    // the free space map of a table written here before is stale
+    FreeSpaceMap.reset(outFile);
     FileOutputStream os = new FileOutputStream(outFile);
 
     // our numbers probably won't be much larger than 1024 digits
@@ -201,10 +204,11 @@ public class HeapFileEncoder {
             
             // pad the rest of the page with zeroes
             
-            for (i=0; i<(npagebytes - (recordcount * nrecbytes + nheaderbytes)); i++)
+            for (i=0; i<(npagebytes - (HeapPage.LSN_SIZE + recordcount * nrecbytes + nheaderbytes)); i++)
                 pageStream.writeByte(0);
             
-            // write header and body to file
+            // write LSN, header and body to file
+            os.write(new byte[HeapPage.LSN_SIZE]);
             headerStream.flush();
             headerBAOS.writeTo(os);
             pageStream.flush();
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -13,23 +14,101 @@ import java.io.*;
  */
 public class HeapPage implements Page {
 
+    /** Size of the LSN at the start of every page. */
+    static final int LSN_SIZE = LogFile.LONG_SIZE;
+
     final HeapPageId pid;
     final TupleDesc td;
     final byte header[];
     final Tuple tuples[];
     final int numSlots;
+    private long lsn;
+
+    // the page as it was read, never modified; tuples of slots that were
+    // used when the page was read are decoded from here on demand
+    final ByteBuffer data;
+    // offset of each field within a tuple
+    final int fieldOffsets[];
 
-    byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    ByteBuffer oldData; // read-only
+    private final Object oldDataLock=new Object();
 
     private TransactionId dirtyTid;
 
+    /**
+     * A tuple that decodes its fields from the bytes of its slot the first
+     * time they are asked for. The bytes never change: a slot that is
+     * deleted and reused gets a new tuple, and views handed out earlier keep
+     * reading the old contents.
+     */
+    private static final class SlotTuple extends Tuple {
+        private static final long serialVersionUID = 1L;
+
+        private final transient ByteBuffer _data;
+        private final int _offset;
+        private final TupleDesc _layout;
+        private final int[] _fieldOffsets;
+        // set once a field is changed and the bytes are no longer current
+        private volatile boolean _modified;
+
+        SlotTuple(TupleDesc td, ByteBuffer data, int offset, int[] fieldOffsets) {
+            super(td);
+            _data = data;
+            _offset = offset;
+            _layout = td;
+            _fieldOffsets = fieldOffsets;
+        }
+
+        @Override
+        public Field getField(int i) {
+            Field f = super.getField(i);
+            if (f == null) {
+                try {
+                    f = _layout.getFieldType(i).parse(_data, _offset + _fieldOffsets[i]);
+                } catch (java.text.ParseException e) {
+                    e.printStackTrace();
+                    throw new NoSuchElementException("parsing error!");
+                }
+                super.setField(i, f);
+            }
+            return f;
+        }
+
+        @Override
+        public void setField(int i, Field f) {
+            _modified = true;
+            super.setField(i, f);
+        }
+
+        /** Copies the bytes of this tuple to out, if they are current. */
+        boolean copyTo(byte[] out, int offset) {
+            if (_modified) {
+                return false;
+            }
+            ByteBuffer src = _data.duplicate();
+            src.position(_offset);
+            src.get(out, offset, _layout.getSize());
+            return true;
+        }
+
+        /** Serializes a copy that does not refer to the page. */
+        private Object writeReplace() {
+            Tuple t = new Tuple(getTupleDesc());
+            t.setRecordId(getRecordId());
+            for (int i = 0; i < _layout.numFields(); i++) {
+                t.setField(i, getField(i));
+            }
+            return t;
+        }
+    }
+
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
-     * The format of a HeapPage is a set of header bytes indicating
-     * the slots of the page that are in use, some number of tuple slots.
+     * The format of a HeapPage is the LSN of the page, a long integer, then
+     * a set of header bytes indicating the slots of the page that are in
+     * use, some number of tuple slots.
      *  Specifically, the number of tuples is equal to: <p>
-     *          floor((BufferPool.getPageSize()*8) / (tuple size * 8 + 1))
+     *          floor(((BufferPool.getPageSize() - LSN_SIZE)*8) / (tuple size * 8 + 1))
      * <p> where tuple size is the size of tuples in this
      * database table, which can be determined via {@link Catalog#getTupleDesc}.
      * The number of 8-bit header words is equal to:
@@ -41,27 +120,40 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data.clone()).asReadOnlyBuffer());
+    }
+
+    /**
+     * Create a HeapPage from a buffer holding the page as it is stored on
+     * disk, e.g. a slice of a memory-mapped file. Only the header is read
+     * here; the tuples are decoded from the buffer when they are used, and
+     * the buffer doubles as the before image of the page, so it must not
+     * change afterwards.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.data = data.slice().asReadOnlyBuffer();
 
-        // allocate and read the header slots of this page
+        // read the LSN, then allocate and read the header slots of this page
+        ByteBuffer in = this.data.duplicate();
+        lsn = in.getLong();
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
+        in.get(header);
+
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        fieldOffsets = new int[td.numFields()];
+        for (int j=1; j<fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j-1] + td.getFieldType(j-1).getLen();
 
-        setBeforeImage();
+        // the page is exactly what we were given, no need to serialize it
+        synchronized(oldDataLock)
+        {
+            oldData = this.data;
+        }
     }
 
     /** Retrieve the number of tuples on this page.
@@ -71,7 +163,7 @@ public class HeapPage implements Page {
         // some code goes here
 
         int tupleSize = td.getSize();
-        return (BufferPool.getPageSize()*8) / (tupleSize * 8 + 1);
+        return ((BufferPool.getPageSize() - LSN_SIZE)*8) / (tupleSize * 8 + 1);
     }
 
     /**
@@ -88,7 +180,7 @@ public class HeapPage implements Page {
         -- used by recovery */
     public HeapPage getBeforeImage(){
         try {
-            byte[] oldDataRef = null;
+            ByteBuffer oldDataRef = null;
             synchronized(oldDataLock)
             {
                 oldDataRef = oldData;
@@ -105,7 +197,18 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-            oldData = getPageData().clone();
+            oldData = ByteBuffer.wrap(getPageData()).asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * Makes the given bytes the before image of this page, for pages whose
+     * committed contents differ from what the page holds now.
+     */
+    void setBeforeImage(byte[] committed) {
+        synchronized(oldDataLock)
+        {
+            oldData = ByteBuffer.wrap(committed.clone()).asReadOnlyBuffer();
         }
     }
 
@@ -119,39 +222,51 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the LSN of the last log record that updated this page
+     * @see LogFile#logWrite
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    public long getLSN() {
+        return lsn;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
+    /**
+     * Sets the LSN of the page, stored with it on disk.
+     */
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
 
+    /**
+     * @return the offset of the given slot within the page
+     */
+    private int slotOffset(int slotId) {
+        return LSN_SIZE + header.length + slotId * td.getSize();
+    }
+
+    /**
+     * Returns the tuple in a used slot, creating a view of the slot's bytes
+     * the first time it is asked for.
+     */
+    private Tuple tuple(int slotId) {
+        Tuple t = tuples[slotId];
+        if (t == null) {
+            t = new SlotTuple(td, data, slotOffset(slotId), fieldOffsets);
+            t.setRecordId(new RecordId(pid, slotId));
+            tuples[slotId] = t;
+        }
         return t;
     }
 
+    /**
+     * @return the tuple in the given slot, or null if the slot is empty
+     */
+    Tuple tupleAt(int slotId) {
+        if (slotId < 0 || slotId >= numSlots || !isSlotUsed(slotId)) {
+            return null;
+        }
+        return tuple(slotId);
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -164,64 +279,50 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
+        byte[] out = new byte[BufferPool.getPageSize()];
 
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
+        // create the LSN and the header of the page
+        ByteBuffer.wrap(out).putLong(lsn);
+        System.arraycopy(header, 0, out, LSN_SIZE, header.length);
 
-            // empty slot
+        // create the tuples; empty slots and the padding stay zero
+        ByteArrayOutputStream baos = null;
+        for (int i=0; i<tuples.length; i++) {
             if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+                continue;
+            }
 
-                }
+            // slots nobody has touched since the page was read are copied
+            // from the original bytes, without decoding them
+            Tuple t = tuples[i];
+            if (t == null) {
+                ByteBuffer src = data.duplicate();
+                src.position(slotOffset(i));
+                src.get(out, slotOffset(i), td.getSize());
+                continue;
+            }
+            if (t instanceof SlotTuple && ((SlotTuple) t).copyTo(out, slotOffset(i))) {
                 continue;
             }
 
-            // non-empty slot
+            if (baos == null) {
+                baos = new ByteArrayOutputStream(td.getSize());
+            }
+            baos.reset();
+            DataOutputStream dos = new DataOutputStream(baos);
             for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
+                Field f = t.getField(j);
                 try {
                     f.serialize(dos);
-                
                 } catch (IOException e) {
+                    // this really shouldn't happen
                     e.printStackTrace();
                 }
             }
+            System.arraycopy(baos.toByteArray(), 0, out, slotOffset(i), td.getSize());
         }
 
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return out;
     }
 
     /**
@@ -280,6 +381,19 @@ public class HeapPage implements Page {
         int tn = 0;
         for (tn = 0; isSlotUsed(tn); tn++) {}
 
+        insertTuple(t, tn);
+    }
+
+    /**
+     * Adds the specified tuple to the page in the given slot, e.g. to put a
+     * deleted tuple back where it was.
+     * @throws DbException if the slot is in use or tupledesc is mismatch.
+     */
+    void insertTuple(Tuple t, int tn) throws DbException {
+        if (!t.getTupleDesc().equals(this.td) || tn < 0 || tn >= numSlots || isSlotUsed(tn)) {
+            throw new DbException("insertTuple");
+        }
+
         t.setRecordId(new RecordId(this.pid, tn));
         tuples[tn] = t;
         markSlotUsed(tn, true);
@@ -310,10 +424,8 @@ public class HeapPage implements Page {
     public int getNumEmptySlots() {
         // some code goes here
         int bc = 0;
-        for (Byte b : header) {
-            for (int i = 0; i < 8; i++) {
-                bc += (b >> i) & 1;
-            }
+        for (byte b : header) {
+            bc += Integer.bitCount(b & 0xff);
         }
         return getNumTuples() - bc;
     }
@@ -348,25 +460,28 @@ public class HeapPage implements Page {
         // some code goes here
 
         return new Iterator<Tuple>() {
-            private int _currentTupleIndex = 0;
-            private int _currentConsumed = 0;
-            private final int _total = getNumTuples() - getNumEmptySlots();
+            private int _next = nextUsed(0);
+
+            private int nextUsed(int from) {
+                while (from < numSlots && !isSlotUsed(from)) {
+                    from++;
+                }
+                return from;
+            }
 
             @Override
             public boolean hasNext() {
-                return _currentConsumed < _total;
+                return _next < numSlots;
             }
 
             @Override
             public Tuple next() {
-                for (int i = _currentTupleIndex; i < getNumTuples(); i++) {
-                    if (isSlotUsed(i)) {
-                        _currentConsumed++;
-                        return tuples[_currentTupleIndex++];
-                    }
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
                 }
-
-                throw new IndexOutOfBoundsException();
+                int i = _next;
+                _next = nextUsed(i + 1);
+                return tuple(i);
             }
         };
     }
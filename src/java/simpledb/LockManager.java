@@ -0,0 +1,636 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LockManager grants shared and exclusive page locks to transactions, for
+ * strict two-phase locking in the {@link BufferPool}.
+ * <p>
+ * Locks can also be taken on whole tables and on single records, with the
+ * usual multi-granularity modes: a transaction locking records of a page
+ * first takes an intention lock ({@link Mode#INTENTION_SHARED},
+ * {@link Mode#INTENTION_EXCLUSIVE}) on the table and the page, so that
+ * writers of different records of a page do not conflict, while a page or
+ * table lock in a plain mode still excludes everyone working below it.
+ * Tables, pages and records share one lock table and one queueing and
+ * deadlock detection scheme; a lock is simply identified by its object.
+ * <p>
+ * A request that conflicts with a lock held by another transaction waits
+ * in a FIFO queue of the page, on a condition of its own; it is woken when
+ * the locks ahead of it have been released, not by polling. A request is
+ * never overtaken by a later one, with one exception: a transaction
+ * upgrading a lock it holds, e.g. from shared to exclusive, goes to the
+ * head of the queue, since nobody behind it can be granted the page before
+ * it anyway.
+ * <p>
+ * The lock table is split into stripes by the hash of the locked object,
+ * each guarded by its own latch, so transactions working on different pages
+ * rarely contend. The locks of a transaction are released all at once when
+ * it completes, taking each stripe latch once.
+ * <p>
+ * Deadlocks are detected with a waits-for graph: every waiting request has
+ * edges to the transactions holding or queued ahead of it in a conflicting
+ * mode. Edges only appear when a request starts to wait, so that is when
+ * the graph is searched for a cycle through the new edges; the
+ * {@link VictimPolicy} then picks one transaction of the cycle, whose
+ * request fails with a {@link TransactionAbortedException}. Transactions
+ * that merely wait a long time are never aborted.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /** Lock modes. */
+    public enum Mode {
+        INTENTION_SHARED, INTENTION_EXCLUSIVE, SHARED, SHARED_INTENTION_EXCLUSIVE, EXCLUSIVE;
+
+        // COMPATIBLE[a][b]: a lock in mode a can coexist with one in mode b
+        private static final boolean[][] COMPATIBLE = {
+            //          IS     IX     S      SIX    X
+            /* IS  */ { true,  true,  true,  true,  false },
+            /* IX  */ { true,  true,  false, false, false },
+            /* S   */ { true,  false, true,  false, false },
+            /* SIX */ { true,  false, false, false, false },
+            /* X   */ { false, false, false, false, false },
+        };
+
+        /** @return true if a lock in this mode can coexist with one in other */
+        boolean compatible(Mode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** @return true if holding this mode implies holding other */
+        boolean covers(Mode other) {
+            switch (this) {
+            case EXCLUSIVE:
+                return true;
+            case SHARED_INTENTION_EXCLUSIVE:
+                return other != EXCLUSIVE;
+            case SHARED:
+                return other == SHARED || other == INTENTION_SHARED;
+            case INTENTION_EXCLUSIVE:
+                return other == INTENTION_EXCLUSIVE || other == INTENTION_SHARED;
+            default:
+                return other == INTENTION_SHARED;
+            }
+        }
+
+        /** @return the weakest mode that covers both this and other */
+        Mode join(Mode other) {
+            if (covers(other)) {
+                return this;
+            }
+            if (other.covers(this)) {
+                return other;
+            }
+            // SHARED and INTENTION_EXCLUSIVE
+            return SHARED_INTENTION_EXCLUSIVE;
+        }
+    }
+
+    /** How the transaction to abort is chosen among those in a deadlock. */
+    public enum VictimPolicy {
+        /** The transaction that started last, having done the least work. */
+        YOUNGEST,
+        /** The transaction holding the fewest locks; the youngest on ties. */
+        FEWEST_LOCKS
+    }
+
+    /** Number of stripes of the lock table; a power of two. */
+    private static final int STRIPES = 64;
+
+    /** The lock object of a table. */
+    private static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        @Override
+        public int hashCode() {
+            return tableId;
+        }
+    }
+
+    /**
+     * A waiting lock request. granted and aborted are guarded by the latch
+     * of the key's stripe, waitsFor by the waits-for graph. mode is the mode
+     * the transaction will hold once granted, including what it held before.
+     */
+    private static final class Request {
+        final TransactionId tid;
+        final Object key;
+        final Mode mode;
+        final Condition cond;
+        boolean granted;
+        boolean aborted;
+        Set<TransactionId> waitsFor = Collections.emptySet();
+
+        Request(TransactionId tid, Object key, Mode mode, Condition cond) {
+            this.tid = tid;
+            this.key = key;
+            this.mode = mode;
+            this.cond = cond;
+        }
+    }
+
+    /** The lock state of one table, page or record. */
+    private static final class Entry {
+        final HashMap<TransactionId, Mode> holders = new HashMap<>(4);
+        final ArrayDeque<Request> waiters = new ArrayDeque<>();
+    }
+
+    /** A part of the lock table and the latch protecting it. */
+    private static final class Stripe {
+        final ReentrantLock latch = new ReentrantLock();
+        final HashMap<Object, Entry> entries = new HashMap<>();
+    }
+
+    private final Stripe[] _stripes = new Stripe[STRIPES];
+    // tables, pages and records locked by each transaction
+    private final ConcurrentHashMap<TransactionId, Set<Object>> _locked =
+        new ConcurrentHashMap<>();
+    // the waits-for graph: the waiting requests of each transaction. The
+    // monitor of the map guards the graph; it is taken after stripe latches,
+    // never before.
+    private final HashMap<TransactionId, List<Request>> _waiting = new HashMap<>();
+    private volatile VictimPolicy _victimPolicy = VictimPolicy.YOUNGEST;
+
+    public LockManager() {
+        for (int i = 0; i < STRIPES; i++) {
+            _stripes[i] = new Stripe();
+        }
+    }
+
+    /** Sets how deadlock victims are chosen. */
+    public void setVictimPolicy(VictimPolicy policy) {
+        _victimPolicy = policy;
+    }
+
+    private static int stripeIndex(Object key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * Acquires a lock on a page for a transaction, waiting until no other
+     * transaction holds a conflicting lock and every earlier request has
+     * been served. Returns immediately if the transaction already holds the
+     * page in the given mode or a stronger one.
+     *
+     * @throws TransactionAbortedException if waiting would deadlock and this
+     *         transaction is chosen as the victim, or the thread is
+     *         interrupted while waiting
+     */
+    public void acquire(TransactionId tid, PageId pid, Mode mode)
+            throws TransactionAbortedException {
+        acquireKey(tid, pid, mode);
+    }
+
+    /**
+     * Acquires a lock on a record, like {@link #acquire(TransactionId,
+     * PageId, Mode)}. The caller is expected to hold an intention lock on
+     * the page of the record.
+     */
+    public void acquire(TransactionId tid, RecordId rid, Mode mode)
+            throws TransactionAbortedException {
+        acquireKey(tid, rid, mode);
+    }
+
+    /**
+     * Acquires a lock on a whole table, like {@link #acquire(TransactionId,
+     * PageId, Mode)}.
+     */
+    public void acquireTable(TransactionId tid, int tableId, Mode mode)
+            throws TransactionAbortedException {
+        acquireKey(tid, new TableKey(tableId), mode);
+    }
+
+    /**
+     * Acquires a lock on a record if that can be done without waiting.
+     *
+     * @return true if the transaction now holds the record in the given
+     *         mode or a stronger one
+     */
+    public boolean tryAcquire(TransactionId tid, RecordId rid, Mode mode) {
+        Stripe s = _stripes[stripeIndex(rid)];
+        s.latch.lock();
+        try {
+            Entry e = s.entries.computeIfAbsent(rid, k -> new Entry());
+            Mode held = e.holders.get(tid);
+            if (held != null && held.covers(mode)) {
+                return true;
+            }
+            Mode want = held == null ? mode : held.join(mode);
+            if ((held != null || e.waiters.isEmpty()) && grantable(e, tid, want)) {
+                grant(e, tid, rid, want);
+                return true;
+            }
+            return false;
+        } finally {
+            s.latch.unlock();
+        }
+    }
+
+    private void acquireKey(TransactionId tid, Object key, Mode mode)
+            throws TransactionAbortedException {
+        Stripe s = _stripes[stripeIndex(key)];
+        Request r;
+        List<TransactionId> victims;
+        s.latch.lock();
+        try {
+            Entry e = s.entries.computeIfAbsent(key, k -> new Entry());
+            Mode held = e.holders.get(tid);
+            if (held != null && held.covers(mode)) {
+                return;
+            }
+            Mode want = held == null ? mode : held.join(mode);
+            boolean upgrade = held != null;
+            if ((upgrade || e.waiters.isEmpty()) && grantable(e, tid, want)) {
+                grant(e, tid, key, want);
+                return;
+            }
+
+            r = new Request(tid, key, want, s.latch.newCondition());
+            if (upgrade) {
+                e.waiters.addFirst(r);
+            } else {
+                e.waiters.addLast(r);
+            }
+            victims = updateEdges(e, true);
+            if (victims.remove(tid)) {
+                cancel(s, e, r);
+            } else if (victims.isEmpty()) {
+                await(s, e, r);
+                return;
+            }
+        } finally {
+            s.latch.unlock();
+        }
+
+        // break the cycles we closed, then wait (or fail) ourselves; the
+        // victims' requests live under other latches. Our own request may
+        // have been aborted meanwhile, and must still leave its queue.
+        for (TransactionId v : victims) {
+            abortWaiting(v);
+        }
+        s.latch.lock();
+        try {
+            await(s, s.entries.get(key), r);
+        } finally {
+            s.latch.unlock();
+        }
+    }
+
+    /**
+     * Waits, holding the stripe latch, until a queued request is granted.
+     *
+     * @throws TransactionAbortedException if the request was chosen as a
+     *         deadlock victim or the thread was interrupted
+     */
+    private void await(Stripe s, Entry e, Request r) throws TransactionAbortedException {
+        try {
+            while (!r.granted && !r.aborted) {
+                r.cond.await();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new TransactionAbortedException();
+        } finally {
+            if (!r.granted) {
+                cancel(s, e, r);
+            }
+        }
+        if (!r.granted) {
+            throw new TransactionAbortedException();
+        }
+    }
+
+    /**
+     * Takes a request that will not be granted out of its queue. The
+     * requests behind it may now fit.
+     */
+    private void cancel(Stripe s, Entry e, Request r) {
+        r.aborted = true;
+        if (e != null && e.waiters.remove(r)) {
+            synchronized (_waiting) {
+                removeWaiting(r);
+            }
+            grantWaiters(s, e, r.key);
+        }
+    }
+
+    /**
+     * Releases the lock a transaction holds on a page, if any.
+     */
+    public void release(TransactionId tid, PageId pid) {
+        Set<Object> locked = _locked.get(tid);
+        if (locked != null) {
+            locked.remove(pid);
+        }
+        Stripe s = _stripes[stripeIndex(pid)];
+        s.latch.lock();
+        try {
+            releaseLocked(s, tid, pid);
+        } finally {
+            s.latch.unlock();
+        }
+    }
+
+    /**
+     * Releases every lock held by a transaction.
+     */
+    public void releaseAll(TransactionId tid) {
+        Set<Object> locked = _locked.remove(tid);
+        if (locked == null || locked.isEmpty()) {
+            return;
+        }
+        // visit the locks stripe by stripe, so each latch is taken once
+        Object[] keys = locked.toArray();
+        Arrays.sort(keys, Comparator.comparingInt(LockManager::stripeIndex));
+        int i = 0;
+        while (i < keys.length) {
+            int si = stripeIndex(keys[i]);
+            Stripe s = _stripes[si];
+            s.latch.lock();
+            try {
+                for (; i < keys.length && stripeIndex(keys[i]) == si; i++) {
+                    releaseLocked(s, tid, keys[i]);
+                }
+            } finally {
+                s.latch.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the mode in which a transaction holds a page, or null if it
+     *         holds no lock on it
+     */
+    public Mode holds(TransactionId tid, PageId pid) {
+        return holdsKey(tid, pid);
+    }
+
+    /**
+     * @return the mode in which a transaction holds a record, or null if it
+     *         holds no lock on it
+     */
+    public Mode holds(TransactionId tid, RecordId rid) {
+        return holdsKey(tid, rid);
+    }
+
+    private Mode holdsKey(TransactionId tid, Object key) {
+        Stripe s = _stripes[stripeIndex(key)];
+        s.latch.lock();
+        try {
+            Entry e = s.entries.get(key);
+            return e == null ? null : e.holders.get(tid);
+        } finally {
+            s.latch.unlock();
+        }
+    }
+
+    /**
+     * @return true if a transaction other than tid holds a lock on a record
+     */
+    public boolean lockedByOthers(TransactionId tid, RecordId rid) {
+        Stripe s = _stripes[stripeIndex(rid)];
+        s.latch.lock();
+        try {
+            Entry e = s.entries.get(rid);
+            if (e != null) {
+                for (TransactionId h : e.holders.keySet()) {
+                    if (!h.equals(tid)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            s.latch.unlock();
+        }
+    }
+
+    /**
+     * @return true if a transaction other than tid holds a page exclusively
+     */
+    public boolean exclusiveByOthers(TransactionId tid, PageId pid) {
+        Stripe s = _stripes[stripeIndex(pid)];
+        s.latch.lock();
+        try {
+            Entry e = s.entries.get(pid);
+            if (e != null) {
+                for (Map.Entry<TransactionId, Mode> h : e.holders.entrySet()) {
+                    if (h.getValue() == Mode.EXCLUSIVE && !h.getKey().equals(tid)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            s.latch.unlock();
+        }
+    }
+
+    /**
+     * @return a snapshot of the pages a transaction holds locks on, in any
+     *         mode
+     */
+    public PageId[] lockedPages(TransactionId tid) {
+        Set<Object> locked = _locked.get(tid);
+        if (locked == null) {
+            return new PageId[0];
+        }
+        List<PageId> pages = new ArrayList<>(locked.size());
+        for (Object key : locked) {
+            if (key instanceof PageId) {
+                pages.add((PageId) key);
+            }
+        }
+        return pages.toArray(new PageId[0]);
+    }
+
+    private static boolean grantable(Entry e, TransactionId tid, Mode mode) {
+        for (Map.Entry<TransactionId, Mode> h : e.holders.entrySet()) {
+            if (!h.getKey().equals(tid) && !mode.compatible(h.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void grant(Entry e, TransactionId tid, Object key, Mode mode) {
+        Mode held = e.holders.get(tid);
+        e.holders.put(tid, held == null ? mode : held.join(mode));
+        _locked.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet()).add(key);
+    }
+
+    /** Grants the requests at the head of the queue that fit, in order. */
+    private void grantWaiters(Stripe s, Entry e, Object key) {
+        Request r;
+        boolean changed = false;
+        while ((r = e.waiters.peekFirst()) != null && grantable(e, r.tid, r.mode)) {
+            e.waiters.pollFirst();
+            grant(e, r.tid, key, r.mode);
+            r.granted = true;
+            r.cond.signal();
+            synchronized (_waiting) {
+                removeWaiting(r);
+            }
+            changed = true;
+        }
+        if (e.holders.isEmpty() && e.waiters.isEmpty()) {
+            s.entries.remove(key);
+        } else if (changed || !e.waiters.isEmpty()) {
+            // the remaining waiters may wait for fewer transactions now
+            updateEdges(e, false);
+        }
+    }
+
+    /**
+     * Recomputes the waits-for edges of the requests queued on a page: each
+     * waits for the other transactions that hold the page, or are queued
+     * ahead of it, in a conflicting mode.
+     *
+     * @param detect true to search for cycles through edges that are new
+     * @return the transactions to abort to break the cycles found
+     */
+    private List<TransactionId> updateEdges(Entry e, boolean detect) {
+        List<TransactionId> victims = new ArrayList<>(0);
+        synchronized (_waiting) {
+            List<Request> ahead = new ArrayList<>(e.waiters.size());
+            for (Request r : e.waiters) {
+                Set<TransactionId> waitsFor = new HashSet<>();
+                for (Map.Entry<TransactionId, Mode> h : e.holders.entrySet()) {
+                    if (!h.getKey().equals(r.tid) && !r.mode.compatible(h.getValue())) {
+                        waitsFor.add(h.getKey());
+                    }
+                }
+                for (Request q : ahead) {
+                    if (!q.tid.equals(r.tid) && !r.mode.compatible(q.mode)) {
+                        waitsFor.add(q.tid);
+                    }
+                }
+                ahead.add(r);
+
+                boolean grown = !r.waitsFor.containsAll(waitsFor);
+                r.waitsFor = waitsFor;
+                List<Request> mine = _waiting.computeIfAbsent(r.tid, t -> new ArrayList<>(1));
+                if (!mine.contains(r)) {
+                    mine.add(r);
+                }
+                // the new edges may close several cycles; the victims
+                // chosen so far count as gone
+                List<TransactionId> cycle;
+                while (detect && grown && !victims.contains(r.tid)
+                        && (cycle = findCycle(r.tid, victims)) != null) {
+                    victims.add(chooseVictim(cycle));
+                }
+            }
+        }
+        return victims;
+    }
+
+    /** Removes a request from the waits-for graph; needs its monitor. */
+    private void removeWaiting(Request r) {
+        List<Request> mine = _waiting.get(r.tid);
+        if (mine != null && mine.remove(r) && mine.isEmpty()) {
+            _waiting.remove(r.tid);
+        }
+    }
+
+    /**
+     * Searches the waits-for graph for a cycle through start that avoids the
+     * given transactions; needs its monitor.
+     *
+     * @return the transactions on the cycle, or null if there is none
+     */
+    private List<TransactionId> findCycle(TransactionId start, List<TransactionId> excluded) {
+        List<TransactionId> path = new ArrayList<>();
+        Set<TransactionId> visited = new HashSet<>(excluded);
+        return dfs(start, start, path, visited) ? path : null;
+    }
+
+    private boolean dfs(TransactionId tid, TransactionId start, List<TransactionId> path,
+            Set<TransactionId> visited) {
+        path.add(tid);
+        List<Request> reqs = _waiting.get(tid);
+        if (reqs != null) {
+            for (Request r : reqs) {
+                for (TransactionId next : r.waitsFor) {
+                    if (next.equals(start)) {
+                        return true;
+                    }
+                    if (visited.add(next) && dfs(next, start, path, visited)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        path.remove(path.size() - 1);
+        return false;
+    }
+
+    private TransactionId chooseVictim(List<TransactionId> cycle) {
+        Comparator<TransactionId> younger = Comparator.comparingLong(TransactionId::getId);
+        Comparator<TransactionId> better = younger;
+        if (_victimPolicy == VictimPolicy.FEWEST_LOCKS) {
+            Comparator<TransactionId> fewer = Comparator.comparingInt(t -> {
+                Set<Object> locked = _locked.get(t);
+                return locked == null ? 0 : -locked.size();
+            });
+            better = fewer.thenComparing(younger);
+        }
+        return Collections.max(cycle, better);
+    }
+
+    /**
+     * Fails the waiting requests of a deadlock victim. Must be called
+     * without holding any stripe latch.
+     */
+    private void abortWaiting(TransactionId victim) {
+        List<Request> reqs;
+        synchronized (_waiting) {
+            List<Request> mine = _waiting.get(victim);
+            reqs = mine == null ? Collections.<Request>emptyList() : new ArrayList<>(mine);
+        }
+        for (Request r : reqs) {
+            Stripe s = _stripes[stripeIndex(r.key)];
+            s.latch.lock();
+            try {
+                if (!r.granted && !r.aborted) {
+                    r.aborted = true;
+                    r.cond.signal();
+                }
+            } finally {
+                s.latch.unlock();
+            }
+        }
+    }
+
+    private void releaseLocked(Stripe s, TransactionId tid, Object key) {
+        Entry e = s.entries.get(key);
+        if (e == null || e.holders.remove(tid) == null) {
+            return;
+        }
+        grantWaiters(s, e, key);
+    }
+}
@@ -2,8 +2,16 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -32,6 +40,10 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<p> Checkpoints are the exception: they do not write pages, so
+logCheckpoint() only takes the log's monitor and leaves writing the pages
+to the buffer pool's background writer.
 */
 
 /**
@@ -39,33 +51,56 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log file itself holds two long integers: the LSN of the last
+written checkpoint, or -1 if there are no checkpoints, and the LSN of the
+first record the log still holds.
+
+<li> The records are kept in segment files next to the log file, as one
+stream of bytes in which the LSN of a record is its position (see {@link
+SegmentedLog}).  Records keep their LSNs when the log is truncated, which
+deletes the segments below the first record still needed, and a new log
+goes on from past the end of the old one.  Heap and B+ tree leaf and
+internal pages store the LSN of the last record that updated them, which
+tells recovery whether the page on disk has an update.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> All data in the segments consists of log records.  Log records
+are variable length.  Segments are preallocated, so the last record is
+followed by zeros.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer holding its LSN, the
+position in the log where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, DELTA, BEGIN,
+and CHECKPOINT
 
-<li> ABORT, COMMIT, and BEGIN records contain no additional data
+<li> ABORT, COMMIT, and BEGIN records contain no additional data.
+recover() writes ABORT records for the transactions it rolls back.
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+after image.  Each image is the id of the page, as a one-byte {@link
+PageType} code, table id and page number, followed by the length and
+bytes of the page; they can be accessed with the
+LogFile.readPageData() and LogFile.writePageData() methods.  See
+LogFile.print() for an example.
+
+<li>DELTA records log an update as the byte ranges of the page it
+changed, before and after, in the format of {@link PageDelta#write}.
+logWrite() uses them instead of UPDATE records whenever it can, so a
+small change to a page takes little room in the log; rollback and
+recovery rebuild each page by applying its records in order.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed by
+the dirty page table.  The format of the record is an integer count of
+the number of transactions, as well as a long integer transaction id and
+a long integer first record offset for each active transaction; then an
+integer count of dirty pages, and for each a long integer holding the
+table id and page number of the page (table id in the high half) and the
+long integer recovery LSN of the page, the LSN of the first update of it
+that may not be on disk.  Redo starts at the smallest recovery LSN.
 
 </ul>
 
@@ -74,7 +109,8 @@ for each active transaction.
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private RandomAccessFile header; // the checkpoint and the first record
+    private SegmentedLog log;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,17 +118,44 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
+    static final long NO_LSN = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    final static int HEADER_SIZE = 2 * LONG_SIZE;
+
+    // the size of each segment file of the log
+    static final int SEGMENT_SIZE = 1 << 20;
+    // the LSN a brand new log starts at; pages that were never logged
+    // carry LSN 0
+    static final long FIRST_LSN = 1;
+
+    // threads that redo pages in parallel during recovery
+    static final int REDO_THREADS = Runtime.getRuntime().availableProcessors();
 
     long currentOffset = -1;//protected by this
+    long firstLSN = FIRST_LSN; // LSN of the first record held //protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    // the dirty page table: for each page whose logged updates may not all
+    // be on disk, the LSNs of the first and the last of them
+    final ConcurrentHashMap<PageId,long[]> dirtyPages =
+        new ConcurrentHashMap<PageId,long[]>();
+
+    // group commit: commits waiting for the next force of the log, and
+    // the flusher thread that forces it for them, started by the first
+    // commit and told to exit by stopFlusher
+    ArrayList<CompletableFuture<Void>> pendingCommits =
+        new ArrayList<CompletableFuture<Void>>(); //protected by this
+    Thread flusher = null; //protected by this
+    boolean closed = false; //protected by this
+    volatile long groupCommitWindow = 0; // microseconds
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -106,7 +169,8 @@ public class LogFile {
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        header = new RandomAccessFile(f, "rw");
+        log = new SegmentedLog(f, SEGMENT_SIZE);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -127,14 +191,29 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            // LSNs go on past the end of the old log, since the pages on
+            // disk may carry LSNs from it
+            long start = Math.max(log.limit(), FIRST_LSN);
+            if (header.length() >= HEADER_SIZE) {
+                header.seek(LONG_SIZE);
+                start = Math.max(start, header.readLong());
+            }
+            log.reset(start);
+            writeHeader(NO_CHECKPOINT_ID, start);
+            currentOffset = start;
         }
     }
 
+    /** Points the log file at the last checkpoint and the first record,
+        and forces it. */
+    private void writeHeader(long checkpoint, long first) throws IOException {
+        header.seek(0);
+        header.writeLong(checkpoint);
+        header.writeLong(first);
+        header.getChannel().force(true);
+        firstLSN = first;
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
@@ -158,10 +237,10 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                log.writeInt(ABORT_RECORD);
+                log.writeLong(tid.getId());
+                log.writeLong(currentOffset);
+                currentOffset = log.getFilePointer();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -171,23 +250,144 @@ public class LogFile {
     /** Write a commit record to disk for the specified tid,
         and force the log to disk.
 
+        <p> Commits are forced in groups: the record is appended, and
+        the caller waits until the flusher thread has forced the log past
+        it. The flusher forces once for every commit that arrived since
+        its last force, so concurrent commits share a force. Must not be
+        called holding the monitor of the log.
+
         @param tid The committing transaction.
+        @see #setGroupCommitWindow
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        CompletableFuture<Void> forced = new CompletableFuture<Void>();
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            log.writeInt(COMMIT_RECORD);
+            log.writeLong(tid.getId());
+            log.writeLong(currentOffset);
+            currentOffset = log.getFilePointer();
+            tidToFirstLogRecord.remove(tid.getId());
+
+            pendingCommits.add(forced);
+            if (flusher == null) {
+                flusher = new Thread(this::flushCommits, "simpledb-log-flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            } else {
+                notifyAll();
+            }
+        }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    forced.get();
+                    return;
+                } catch (InterruptedException e) {
+                    // the commit record is written; it must be durable
+                    // before the caller goes on
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new IOException("cannot force commit of " + tid.getId(), e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** Set how long the flusher waits for more commits to join a force
+        of the log. With 0, the default, commits that arrive while a
+        force is in progress wait for the next one, and nobody waits
+        longer than that.
+
+        @param micros the batch window in microseconds
+    */
+    public void setGroupCommitWindow(long micros) {
+        groupCommitWindow = micros;
+    }
+
+    /** Tells the flusher thread to exit once it has forced the commits
+        waiting for it. */
+    synchronized void stopFlusher() {
+        closed = true;
+        notifyAll();
+    }
+
+    /** Body of the flusher thread: waits for commits and forces the log
+        for them, batch by batch, until the log is shut down. */
+    private void flushCommits() {
+        while (true) {
+            synchronized (this) {
+                while (pendingCommits.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // only shutdown stops the flusher
+                    }
+                }
+                if (pendingCommits.isEmpty()) {
+                    flusher = null;
+                    return;
+                }
+            }
+
+            long window = groupCommitWindow;
+            if (window > 0) {
+                try {
+                    TimeUnit.MICROSECONDS.sleep(window);
+                } catch (InterruptedException e) {
+                    // force right away
+                }
+            }
+
+            ArrayList<CompletableFuture<Void>> batch;
+            synchronized (this) {
+                batch = pendingCommits;
+                pendingCommits = new ArrayList<CompletableFuture<Void>>();
+            }
+
+            // appends go on while we force
+            try {
+                SegmentedLog.Sync sync;
+                synchronized (this) {
+                    sync = log.sync();
+                }
+                for (FileChannel channel : sync.channels) {
+                    try {
+                        channel.force(false);
+                    } catch (ClosedChannelException e) {
+                        // the segment was truncated away in the meantime
+                    }
+                }
+                synchronized (this) {
+                    log.forced(sync);
+                }
+                for (CompletableFuture<Void> f : batch) {
+                    f.complete(null);
+                }
+            } catch (IOException e) {
+                for (CompletableFuture<Void> f : batch) {
+                    f.completeExceptionally(e);
+                }
+            }
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
         (with provided         before and after images.)
+        The LSN of the record is stored in after, so it must be the
+        page that is written to disk later.
+        A DELTA record of the bytes that differ is written instead, if
+        there is one; before must then be the image of the page after
+        its last logged update.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
@@ -197,7 +397,7 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + log.getFilePointer());
         preAppend();
         /* update record conists of
 
@@ -206,93 +406,68 @@ public class LogFile {
            before page data (see writePageData)
            after page data
            start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+           or of a delta in place of the page data
+        */
+        // the after image carries the LSN of the record, so that recovery
+        // can tell whether the page on disk has the update
+        final long lsn = currentOffset;
+        setPageLSN(after, lsn);
+        PageDelta delta = PageDelta.diff(before, after);
+        if (delta != null) {
+            log.writeInt(DELTA_RECORD);
+            log.writeLong(tid.getId());
+            delta.write(log);
+        } else {
+            log.writeInt(UPDATE_RECORD);
+            log.writeLong(tid.getId());
+
+            writePageData(log,before);
+            writePageData(log,after);
+        }
+        log.writeLong(currentOffset);
+        currentOffset = log.getFilePointer();
+        dirtyPages.compute(after.getId(), (pid, lsns) ->
+                           new long[] { lsns == null ? lsn : lsns[0], lsn });
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+    /** Notes that the buffer pool wrote a page to its file, which takes
+        the page out of the dirty page table unless it was logged again
+        since.
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+        @param pid The page that was written
+        @param lsn The LSN the page carried before it was written, or
+        NO_LSN for pages without one
+    */
+    void pageWritten(PageId pid, long lsn) {
+        dirtyPages.computeIfPresent(pid, (id, lsns) ->
+                                    lsn == NO_LSN || lsns[1] <= lsn ? null : lsns);
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    /** Notes that the buffer pool dropped a page without writing it,
+        because it was rolled back or freed. */
+    void pageDiscarded(PageId pid) {
+        dirtyPages.remove(pid);
+    }
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
+    void writePageData(DataOutput out, Page p) throws IOException{
+        //page data is:
+        // page id (see PageType.writeId)
+        // page data length
+        // page data
+        PageType.writeId(out, p.getId());
         byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        out.writeInt(pageData.length);
+        out.write(pageData);
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
-        }
-        return newPage;
-
+    Page readPageData(DataInput in) throws IOException {
+        PageId pid = PageType.readId(in);
+        byte[] pageData = new byte[in.readInt()];
+        in.readFully(pageData);
+        return PageType.page(pid, pageData);
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,149 +482,127 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        log.writeInt(BEGIN_RECORD);
+        log.writeLong(tid.getId());
+        log.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset = log.getFilePointer();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.
+
+        <p> The checkpoint is fuzzy: it writes the active transactions and
+        the dirty page table without flushing any pages, so transactions
+        keep running while it is taken. The pages in the table are then
+        written out by the buffer pool's background writer, which moves
+        their recovery LSNs, and so the start of the log, forward for
+        the next checkpoint.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        ArrayList<PageId> dirty;
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + log.getFilePointer());
+            preAppend();
+            long startCpOffset;
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            startCpOffset = log.getFilePointer();
+            log.writeInt(CHECKPOINT_RECORD);
+            log.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            log.writeInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                log.writeLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                log.writeLong(tidToFirstLogRecord.get(key));
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table; updates are only logged under
+            //this monitor, so it holds every page logged before the record
+            Map<Long,Long> recLSNs = new HashMap<Long,Long>();
+            dirty = new ArrayList<PageId>();
+            for (Map.Entry<PageId,long[]> e : dirtyPages.entrySet()) {
+                recLSNs.merge(Image.place(e.getKey()), e.getValue()[0], Math::min);
+                dirty.add(e.getKey());
             }
+            log.writeInt(recLSNs.size());
+            for (Map.Entry<Long,Long> e : recLSNs.entrySet()) {
+                log.writeLong(e.getKey());
+                log.writeLong(e.getValue());
+            }
+
+            log.writeLong(currentOffset);
+            currentOffset = log.getFilePointer();
+            force();
+
+            //once the CP is durable, point the log file at it
+            writeHeader(startCpOffset, firstLSN);
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
         logTruncate();
+        Database.getBufferPool().cleanPages(dirty);
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  The log is cut at the first record of the oldest
+        transaction active at the last checkpoint or the smallest recovery
+        LSN in its dirty page table, whichever comes first; the segments
+        wholly below the cut are deleted. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        header.seek(0);
+        long cpLoc = header.readLong();
 
         long minLogRecord = cpLoc;
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
+        if (cpLoc != NO_CHECKPOINT_ID) {
+            log.seek(cpLoc);
+            int cpType = log.readInt();
             @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+            long cpTid = log.readLong();
 
             if (cpType != CHECKPOINT_RECORD) {
                 throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
             }
 
-            int numOutstanding = raf.readInt();
+            int numOutstanding = log.readInt();
 
             for (int i = 0; i < numOutstanding; i++) {
                 @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
+                long tid = log.readLong();
+                long firstLogRecord = log.readLong();
                 if (firstLogRecord < minLogRecord) {
                     minLogRecord = firstLogRecord;
                 }
             }
-        }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
 
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
+            // redo needs the log from the smallest recovery LSN on
+            int numDirty = log.readInt();
+            for (int i = 0; i < numDirty; i++) {
+                @SuppressWarnings("unused")
+                long place = log.readLong();
+                long recLSN = log.readLong();
+                if (recLSN < minLogRecord) {
+                    minLogRecord = Math.max(recLSN, firstLSN);
                 }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
             }
+            log.seek(currentOffset);
+        }
+        if (minLogRecord <= firstLSN) {
+            return;
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
+        // the log file moves first, so that it never points at a record
+        // that is gone
+        Debug.log("TRUNCATING LOG; WAS " + (currentOffset - firstLSN) + " BYTES; NEW START: " + minLogRecord);
+        writeHeader(cpLoc, minLogRecord);
+        log.truncate(minLogRecord);
         //print();
     }
 
@@ -459,6 +612,9 @@ public class LogFile {
         transactions that have already committed (though this may not
         be enforced by this method.)
 
+        <p> Only the updates that reached the disk are undone, as the LSN
+        of each page on disk tells; the others were never written.
+
         @param tid The transaction to rollback
     */
     public void rollback(TransactionId tid)
@@ -467,18 +623,238 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null) {
+                    return;
+                }
+                ArrayList<Update> updates = new ArrayList<Update>();
+                long end = log.getFilePointer();
+                log.seek(first);
+                while (log.getFilePointer() < end) {
+                    long start = log.getFilePointer();
+                    int type = log.readInt();
+                    long record_tid = log.readLong();
+                    if (type == UPDATE_RECORD || type == DELTA_RECORD) {
+                        Update u = readUpdate(type, record_tid, start);
+                        if (record_tid == tid.getId()) {
+                            updates.add(u);
+                        }
+                    } else if (type == CHECKPOINT_RECORD) {
+                        skipCheckpoint();
+                    }
+                    log.readLong();
+                }
+                log.seek(end);
+
+                // undo the updates in reverse, on top of the pages on disk
+                Map<Long, Image> images = new LinkedHashMap<Long, Image>();
+                for (int i = updates.size() - 1; i >= 0; i--) {
+                    Update u = updates.get(i);
+                    Image img = Image.of(images, u.pid(), u.pageSize());
+                    if (img.needsUndo(u)) {
+                        u.undo(img);
+                    }
+                }
+                restore(images.values());
+            }
+        }
+    }
+
+    /** An UPDATE or DELTA record read back from the log. */
+    private static final class Update {
+        final long tid;
+        final long lsn;
+        final PageId pid;
+        final byte[] before, after; // the images of an UPDATE record
+        final PageDelta delta;      // or the delta of a DELTA record
+
+        Update(long tid, long lsn, PageId pid, byte[] before, byte[] after, PageDelta delta) {
+            this.tid = tid;
+            this.lsn = lsn;
+            this.pid = pid;
+            this.before = before;
+            this.after = after;
+            this.delta = delta;
+        }
+
+        PageId pid() {
+            return pid;
+        }
+
+        int pageSize() {
+            return delta != null ? delta.pageSize() : after.length;
+        }
+
+        void redo(Image img) {
+            if (delta != null) {
+                delta.redo(img.data);
+            } else {
+                img.data = after.clone();
+            }
+            img.pid = pid();
+            img.changed = true;
+        }
+
+        void undo(Image img) {
+            if (delta != null) {
+                delta.undo(img.data);
+            } else {
+                img.data = before.clone();
+            }
+            img.pid = pid();
+            img.changed = true;
+        }
+    }
+
+    /** The image of a page being rebuilt by rollback or recovery. Pages
+        are keyed by their place in their file, since a B+ tree page may
+        change its category when it is reused. */
+    private static final class Image {
+        PageId pid;
+        byte[] data;
+        boolean changed;
+
+        static Long place(PageId pid) {
+            return ((long) pid.getTableId() << 32) | (pid.getPageNumber() & 0xffffffffL);
+        }
+
+        /** @return the page as it is on disk, or zero bytes past the end
+            of its file */
+        static Image read(PageId pid, int size) {
+            Image img = new Image();
+            Page p = null;
+            try {
+                p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+            } catch (RuntimeException e) {
+                // past the end of the file
+            }
+            img.pid = pid;
+            img.data = p != null ? p.getPageData() : new byte[size];
+            return img;
+        }
+
+        /** @return the image of a page, read from disk the first time */
+        static Image of(Map<Long, Image> images, PageId pid, int size) {
+            Image img = images.get(place(pid));
+            if (img == null) {
+                img = read(pid, size);
+                images.put(place(pid), img);
+            }
+            return img;
+        }
+
+        /** @return the LSN of the image, or NO_LSN for pages without one */
+        long lsn() {
+            return pageLSN(pid, data);
+        }
+
+        /** @return true if the update is not in the image yet. Pages
+            without an LSN are redone from the oldest update on. */
+        boolean needsRedo(Update u) {
+            return lsn() < u.lsn;
+        }
+
+        /** @return true if the update is in the image */
+        boolean needsUndo(Update u) {
+            long lsn = lsn();
+            return lsn == NO_LSN || lsn >= u.lsn;
+        }
+    }
+
+    /** @return the LSN stored in the bytes of a page, or NO_LSN if pages
+        of its kind do not have one */
+    static long pageLSN(PageId pid, byte[] data) {
+        if (pid instanceof BTreePageId) {
+            int categ = ((BTreePageId) pid).pgcateg();
+            if (categ != BTreePageId.LEAF && categ != BTreePageId.INTERNAL) {
+                return NO_LSN;
+            }
+        } else if (!(pid instanceof HeapPageId)) {
+            return NO_LSN;
+        }
+        long lsn = 0;
+        for (int i = 0; i < LONG_SIZE; i++) {
+            lsn = (lsn << 8) | (data[i] & 0xff);
+        }
+        return lsn;
+    }
+
+    /** @return the LSN of a page, or NO_LSN if pages of its kind do not
+        have one */
+    static long pageLSN(Page p) {
+        if (p instanceof HeapPage) {
+            return ((HeapPage) p).getLSN();
+        } else if (p instanceof BTreePage) {
+            return ((BTreePage) p).getLSN();
+        }
+        return NO_LSN;
+    }
+
+    /** Stores the LSN of the update record being logged in a page. */
+    private static void setPageLSN(Page p, long lsn) {
+        if (p instanceof HeapPage) {
+            ((HeapPage) p).setLSN(lsn);
+        } else if (p instanceof BTreePage) {
+            ((BTreePage) p).setLSN(lsn);
+        }
+    }
+
+    /** Reads the rest of an UPDATE or DELTA record, up to its offset. */
+    private Update readUpdate(int type, long tid, long lsn) throws IOException {
+        if (type == DELTA_RECORD) {
+            PageDelta delta = PageDelta.read(log);
+            return new Update(tid, lsn, delta.getId(), null, null, delta);
+        }
+        // the images are not turned into pages until they are written
+        PageId pid = PageType.readId(log);
+        byte[] before = new byte[log.readInt()];
+        log.readFully(before);
+        PageType.readId(log);
+        byte[] after = new byte[log.readInt()];
+        log.readFully(after);
+        return new Update(tid, lsn, pid, before, after, null);
+    }
+
+    /** Writes rebuilt page images that changed to their files, replacing
+        any copy of the pages in the buffer pool. */
+    private void restore(Collection<Image> images) throws IOException {
+        for (Image img : images) {
+            if (img.changed) {
+                write(img);
+                Database.getBufferPool().discardPage(img.pid);
             }
         }
     }
 
+    private static void write(Image img) throws IOException {
+        Page p = PageType.page(img.pid, img.data);
+        Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+    }
+
+    /** Skips the body of a checkpoint record. */
+    private void skipCheckpoint() throws IOException {
+        int numXactions = log.readInt();
+        log.seek(log.getFilePointer() + 2L * numXactions * LONG_SIZE);
+        int numDirty = log.readInt();
+        log.seek(log.getFilePointer() + 2L * numDirty * LONG_SIZE);
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // write the pages out first, so that the checkpoint leaves
+            // nothing to redo
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                stopFlusher();
+                log.close();
+                header.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -488,23 +864,308 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+
+        <p> Recovery runs in three passes. Analysis reads the log from
+        the smallest recovery LSN in the dirty page table of the last
+        checkpoint (or from the checkpoint, if no page was dirty), starting
+        from the transactions the checkpoint found active, to learn which
+        transactions committed and which were still running at the crash
+        (the losers). Redo installs the updates of committed transactions
+        from there on, except those logged before the checkpoint for
+        pages that were not in its table, or before their recovery LSN;
+        the pages are split among worker threads, and an update is skipped
+        if the LSN of its page on disk shows the page already has it.
+        Undo walks the log backwards from its end to the first record of
+        the oldest loser and takes out those updates of the losers that
+        reached the disk, then logs an ABORT record for each loser.
+        Transactions that aborted before the crash rolled their pages
+        back before writing their ABORT records.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+
+                if (header.length() < HEADER_SIZE) {
+                    // nothing was ever logged; the first append starts the log
+                    recoveryUndecided = true;
+                    return;
+                }
+                header.seek(0);
+                long cpLoc = header.readLong();
+                firstLSN = header.readLong();
+                if (log.length() < firstLSN) {
+                    // no record reached a segment
+                    log.reset(firstLSN);
+                }
+
+                // analysis
+                Map<Long, Long> losers = new HashMap<Long, Long>(); // tid -> first record
+                Map<Long, Long> recLSNs = new HashMap<Long, Long>(); // place -> recovery LSN
+                Set<Long> committed = new HashSet<Long>();
+                ArrayList<Update> updates = new ArrayList<Update>();
+                long end = firstLSN;
+                long afterCp = firstLSN; // updates from here on are all redone
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    log.seek(cpLoc);
+                    log.readInt();
+                    log.readLong();
+                    int numXactions = log.readInt();
+                    while (numXactions-- > 0) {
+                        long tid = log.readLong();
+                        losers.put(tid, log.readLong());
+                    }
+                    int numDirty = log.readInt();
+                    while (numDirty-- > 0) {
+                        long place = log.readLong();
+                        recLSNs.put(place, log.readLong());
+                    }
+                    log.readLong();
+                    end = afterCp = log.getFilePointer();
+                    for (long recLSN : recLSNs.values()) {
+                        end = Math.min(end, Math.max(recLSN, firstLSN));
+                    }
+                }
+                log.seek(end);
+                while (true) {
+                    try {
+                        int type = log.readInt();
+                        if (type < ABORT_RECORD || type > DELTA_RECORD) {
+                            // the zeros past the last record
+                            break;
+                        }
+                        long record_tid = log.readLong();
+                        Update u = null;
+                        if (type == UPDATE_RECORD || type == DELTA_RECORD) {
+                            u = readUpdate(type, record_tid, end);
+                        } else if (type == CHECKPOINT_RECORD) {
+                            skipCheckpoint();
+                        }
+                        if (log.readLong() != end) {
+                            // a record cut short by the crash is dropped
+                            break;
+                        }
+                        switch (type) {
+                        case UPDATE_RECORD:
+                        case DELTA_RECORD:
+                            Long recLSN = recLSNs.get(Image.place(u.pid()));
+                            if (end >= afterCp || (recLSN != null && u.lsn >= recLSN)) {
+                                updates.add(u);
+                            }
+                            break;
+                        case BEGIN_RECORD:
+                            losers.put(record_tid, end);
+                            break;
+                        case COMMIT_RECORD:
+                            committed.add(record_tid);
+                            losers.remove(record_tid);
+                            break;
+                        case ABORT_RECORD:
+                            losers.remove(record_tid);
+                            break;
+                        }
+                        end = log.getFilePointer();
+                    } catch (EOFException e) {
+                        // a record cut short by the end of the last segment
+                        break;
+                    }
+                }
+
+                // redo
+                Map<Long, ArrayList<Update>> pages = new LinkedHashMap<Long, ArrayList<Update>>();
+                for (Update u : updates) {
+                    if (committed.contains(u.tid)) {
+                        Long place = Image.place(u.pid());
+                        ArrayList<Update> page = pages.get(place);
+                        if (page == null) {
+                            page = new ArrayList<Update>();
+                            pages.put(place, page);
+                        }
+                        page.add(u);
+                    }
+                }
+                for (PageId pid : redo(pages)) {
+                    Database.getBufferPool().discardPage(pid);
+                }
+
+                // undo
+                if (!losers.isEmpty()) {
+                    long stop = Collections.min(losers.values());
+                    Map<Long, Image> images = new LinkedHashMap<Long, Image>();
+                    long pos = end;
+                    while (pos > stop && pos > firstLSN) {
+                        log.seek(pos - LONG_SIZE);
+                        long start = log.readLong();
+                        log.seek(start);
+                        int type = log.readInt();
+                        long record_tid = log.readLong();
+                        if ((type == UPDATE_RECORD || type == DELTA_RECORD)
+                                && losers.containsKey(record_tid)) {
+                            Update u = readUpdate(type, record_tid, start);
+                            Image img = Image.of(images, u.pid(), u.pageSize());
+                            if (img.needsUndo(u)) {
+                                u.undo(img);
+                            }
+                        }
+                        pos = start;
+                    }
+                    restore(images.values());
+                }
+
+                log.setLength(end);
+                log.seek(end);
+                currentOffset = end;
+                for (Long tid : losers.keySet()) {
+                    log.writeInt(ABORT_RECORD);
+                    log.writeLong(tid);
+                    log.writeLong(currentOffset);
+                    currentOffset = log.getFilePointer();
+                }
+                force();
+                tidToFirstLogRecord.clear();
+                dirtyPages.clear();
             }
          }
     }
 
+    /** Redoes updates on the pages on disk, with the pages partitioned
+        among worker threads by their place in their files.
+
+        @param pages the updates to redo, in log order for each page
+        @return the pages that were written
+    */
+    private List<PageId> redo(Map<Long, ArrayList<Update>> pages) throws IOException {
+        int n = Math.min(REDO_THREADS, pages.size());
+        if (n == 0) {
+            return Collections.emptyList();
+        }
+        final ArrayList<ArrayList<ArrayList<Update>>> parts =
+            new ArrayList<ArrayList<ArrayList<Update>>>();
+        for (int i = 0; i < n; i++) {
+            parts.add(new ArrayList<ArrayList<Update>>());
+        }
+        for (Map.Entry<Long, ArrayList<Update>> e : pages.entrySet()) {
+            parts.get(Math.floorMod(e.getKey().hashCode(), n)).add(e.getValue());
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(n, r -> {
+            Thread t = new Thread(r, "simpledb-redo");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            ArrayList<Future<List<PageId>>> done = new ArrayList<Future<List<PageId>>>();
+            for (final ArrayList<ArrayList<Update>> part : parts) {
+                done.add(workers.submit(() -> {
+                    ArrayList<PageId> written = new ArrayList<PageId>();
+                    for (ArrayList<Update> page : part) {
+                        Update first = page.get(0);
+                        Image img = Image.read(first.pid(), first.pageSize());
+                        for (Update u : page) {
+                            if (img.needsRedo(u)) {
+                                u.redo(img);
+                            }
+                        }
+                        if (img.changed) {
+                            write(img);
+                            written.add(img.pid);
+                        }
+                    }
+                    return written;
+                }));
+            }
+            ArrayList<PageId> written = new ArrayList<PageId>();
+            for (Future<List<PageId>> f : done) {
+                try {
+                    written.addAll(f.get());
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted during redo");
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+            return written;
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
+
+        synchronized (this) {
+            if (header.length() < HEADER_SIZE) {
+                return;
+            }
+            long end = log.getFilePointer();
+            header.seek(0);
+            long cpLoc = header.readLong(), first = header.readLong();
+            System.out.println("checkpoint at " + cpLoc + ", first record at " + first
+                               + ", " + log.segments() + " segments");
+            log.seek(Math.max(first, log.start()));
+            while (true) {
+                try {
+                    long start = log.getFilePointer();
+                    int type = log.readInt();
+                    if (type < ABORT_RECORD || type > DELTA_RECORD) {
+                        break;
+                    }
+                    long record_tid = log.readLong();
+                    switch (type) {
+                    case UPDATE_RECORD:
+                        Page before = readPageData(log);
+                        Page after = readPageData(log);
+                        System.out.println(start + ": UPDATE tid " + record_tid
+                                           + " page " + before.getId() + " LSN "
+                                           + pageLSN(after.getId(), after.getPageData()));
+                        break;
+                    case DELTA_RECORD:
+                        System.out.println(start + ": DELTA tid " + record_tid
+                                           + " page " + PageDelta.read(log));
+                        break;
+                    case CHECKPOINT_RECORD:
+                        int numXactions = log.readInt();
+                        StringBuilder active = new StringBuilder();
+                        while (numXactions-- > 0) {
+                            active.append(" ").append(log.readLong())
+                                .append("@").append(log.readLong());
+                        }
+                        int numDirty = log.readInt();
+                        StringBuilder dirty = new StringBuilder();
+                        while (numDirty-- > 0) {
+                            long place = log.readLong();
+                            dirty.append(" ").append(place >>> 32).append(":")
+                                .append((int) place).append("@").append(log.readLong());
+                        }
+                        System.out.println(start + ": CHECKPOINT active" + active
+                                           + " dirty" + dirty);
+                        break;
+                    case COMMIT_RECORD:
+                        System.out.println(start + ": COMMIT tid " + record_tid);
+                        break;
+                    case ABORT_RECORD:
+                        System.out.println(start + ": ABORT tid " + record_tid);
+                        break;
+                    case BEGIN_RECORD:
+                        System.out.println(start + ": BEGIN tid " + record_tid);
+                        break;
+                    }
+                    log.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+            log.seek(end);
+        }
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        log.force();
     }
 
 }
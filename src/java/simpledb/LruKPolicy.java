@@ -0,0 +1,121 @@
+package simpledb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntPredicate;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum, SIGMOD '93). Each frame
+ * remembers the logical times of the last K references to its page, and the
+ * victim is the page whose K-th most recent reference lies furthest in the
+ * past. Pages with fewer than K references count as infinitely old and are
+ * evicted first, oldest last reference first.
+ * <p>
+ * The reference history of an evicted page is retained for a while, so a page
+ * that comes back soon keeps its credit. References from sequential scans are
+ * not counted, which keeps scanned pages at a single reference and makes them
+ * the preferred victims.
+ *
+ * @Threadsafe
+ */
+public class LruKPolicy implements ReplacementPolicy {
+    private final int _k;
+    private final int _numFrames;
+    private final AtomicLong _clock = new AtomicLong(0);
+    // history of each frame, most recent first; replaced as a whole on update
+    private final AtomicReferenceArray<long[]> _history;
+    private final LinkedHashMap<PageId, long[]> _retained;
+
+    /** Creates an LRU-2 policy. */
+    public LruKPolicy(int numFrames) {
+        this(numFrames, 2);
+    }
+
+    /**
+     * @param numFrames the number of frames of the cache
+     * @param k the number of references remembered per page
+     */
+    public LruKPolicy(int numFrames, int k) {
+        _k = k;
+        _numFrames = numFrames;
+        _history = new AtomicReferenceArray<>(numFrames);
+        final int maxRetained = numFrames;
+        _retained = new LinkedHashMap<PageId, long[]>() {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<PageId, long[]> e) {
+                return size() > maxRetained;
+            }
+        };
+    }
+
+    private long[] push(long[] hist, long now) {
+        long[] h = new long[_k];
+        h[0] = now;
+        if (hist != null) {
+            System.arraycopy(hist, 0, h, 1, _k - 1);
+        }
+        return h;
+    }
+
+    public void admitted(int frame, PageId pid, boolean scan) {
+        long[] old = null;
+        if (!scan) {
+            synchronized (_retained) {
+                old = _retained.remove(pid);
+            }
+        }
+        _history.set(frame, push(old, _clock.incrementAndGet()));
+    }
+
+    public void accessed(int frame, boolean scan) {
+        long now = _clock.incrementAndGet();
+        while (true) {
+            long[] h = _history.get(frame);
+            if (h == null) {
+                return;
+            }
+            long[] n;
+            if (scan) {
+                // keep the reference count, only refresh the recency
+                n = h.clone();
+                n[0] = now;
+            } else {
+                n = push(h, now);
+            }
+            if (_history.compareAndSet(frame, h, n)) {
+                return;
+            }
+        }
+    }
+
+    public void removed(int frame, PageId pid, boolean evicted) {
+        long[] h = _history.getAndSet(frame, null);
+        if (evicted && h != null && h[_k - 1] != 0) {
+            synchronized (_retained) {
+                _retained.put(pid, h);
+            }
+        }
+    }
+
+    public int victim(IntPredicate eligible) {
+        int best = -1;
+        long bestKth = Long.MAX_VALUE;
+        long bestLast = Long.MAX_VALUE;
+        for (int f = 0; f < _numFrames; f++) {
+            long[] h = _history.get(f);
+            if (h == null || !eligible.test(f)) {
+                continue;
+            }
+            long kth = h[_k - 1];
+            if (kth < bestKth || (kth == bestKth && h[0] < bestLast)) {
+                best = f;
+                bestKth = kth;
+                bestLast = h[0];
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,540 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+/**
+ * PageCache is the frame table behind BufferPool. Resident pages live in a
+ * fixed array of frames; the mapping from PageId to frame is split into hash
+ * partitions, each guarded by its own read/write lock, so that lookups of
+ * different pages never contend on a shared monitor.
+ * <p>
+ * Which frame to give up on a miss is decided by a pluggable
+ * {@link ReplacementPolicy}; the default is {@link ClockPolicy}.
+ * <p>
+ * The cache never drops a dirty page or a pinned one. Every frame carries a
+ * pin count; a frame whose count is above zero is skipped by eviction, so a
+ * page stays resident for as long as somebody is using it. Eviction prefers
+ * clean pages, which can be dropped without I/O; a dirty victim is handed to
+ * an {@link Evictor}, which writes it out or vetoes its eviction. Dirty pages
+ * may also be cleaned ahead of time with {@link #pinDirty} and
+ * {@link #unpinClean}, which is what the background {@link PageWriter} does.
+ * <p>
+ * A page may be pinned, changed and unpinned by somebody else while it is
+ * being written out, so every frame also counts the times it was pinned for
+ * writing, see {@link #writing}. A write only makes a page clean, or lets it
+ * be dropped, if the count and the dirty state of the page are what they
+ * were when the write began.
+ *
+ * @Threadsafe
+ */
+public class PageCache {
+
+    /**
+     * Callback used to prepare a victim page for eviction.
+     */
+    public interface Evictor {
+        /**
+         * Called without holding any cache lock, so implementations may do
+         * I/O (e.g. flush the page). The victim is pinned by the cache for
+         * the duration of the call.
+         *
+         * @return true if the current contents of the page are on disk and
+         *         it may be dropped, false if the page must stay resident
+         */
+        boolean evictPage(Page victim) throws DbException;
+    }
+
+    private static final int DEFAULT_PARTITIONS = 16;
+
+    private final int _numFrames;
+    private final AtomicReferenceArray<Page> _frames;
+    private final AtomicIntegerArray _pins;
+    // times each frame was pinned for writing
+    private final AtomicLongArray _stamps;
+    // stamp and dirtier of each frame when it was pinned to be written out
+    private final AtomicLongArray _heldStamps;
+    private final AtomicReferenceArray<TransactionId> _heldDirtiers;
+    private final ReplacementPolicy _policy;
+    private final ConcurrentLinkedQueue<Integer> _free;
+    private final Partition[] _partitions;
+
+    /** A slice of the PageId to frame mapping. */
+    private static class Partition {
+        final HashMap<PageId, Integer> map = new HashMap<>();
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Creates a cache of numFrames frames using CLOCK replacement.
+     *
+     * @param numFrames maximum number of resident pages
+     */
+    public PageCache(int numFrames) {
+        this(numFrames, new ClockPolicy(numFrames));
+    }
+
+    /**
+     * Creates a cache of numFrames frames.
+     *
+     * @param numFrames maximum number of resident pages
+     * @param policy the replacement policy, sized for numFrames frames
+     */
+    public PageCache(int numFrames, ReplacementPolicy policy) {
+        _numFrames = numFrames;
+        _frames = new AtomicReferenceArray<>(numFrames);
+        _pins = new AtomicIntegerArray(numFrames);
+        _stamps = new AtomicLongArray(numFrames);
+        _heldStamps = new AtomicLongArray(numFrames);
+        _heldDirtiers = new AtomicReferenceArray<>(numFrames);
+        _policy = policy;
+        _free = new ConcurrentLinkedQueue<>();
+        for (int i = 0; i < numFrames; i++) {
+            _free.offer(i);
+        }
+
+        int np = Math.max(1, Math.min(DEFAULT_PARTITIONS, numFrames));
+        _partitions = new Partition[np];
+        for (int i = 0; i < np; i++) {
+            _partitions[i] = new Partition();
+        }
+    }
+
+    /** @return the number of frames of this cache */
+    public int capacity() {
+        return _numFrames;
+    }
+
+    private Partition partitionFor(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return _partitions[(h & 0x7fffffff) % _partitions.length];
+    }
+
+    /**
+     * Looks up a resident page and records the access.
+     *
+     * @param scan true if the page is read by a sequential scan
+     * @return the page, or null if it is not resident
+     */
+    public Page get(PageId pid, boolean scan) {
+        return lookup(pid, scan, false);
+    }
+
+    /**
+     * Looks up a resident page, records the access and pins the page. The
+     * page cannot be evicted until it is unpinned.
+     *
+     * @param scan true if the page is read by a sequential scan
+     * @return the page, or null if it is not resident
+     * @see #unpin(PageId)
+     */
+    public Page pin(PageId pid, boolean scan) {
+        return lookup(pid, scan, true);
+    }
+
+    private Page lookup(PageId pid, boolean scan, boolean pin) {
+        Partition part = partitionFor(pid);
+        part.lock.readLock().lock();
+        try {
+            Integer f = part.map.get(pid);
+            if (f == null) {
+                return null;
+            }
+            // pins are taken under the partition lock so that eviction,
+            // which holds the write lock, sees them
+            if (pin) {
+                _pins.incrementAndGet(f);
+            }
+            _policy.accessed(f, scan);
+            return _frames.get(f);
+        } finally {
+            part.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Releases one pin on a resident page.
+     *
+     * @return false if the page is not resident or was not pinned
+     */
+    public boolean unpin(PageId pid) {
+        Partition part = partitionFor(pid);
+        part.lock.readLock().lock();
+        try {
+            Integer f = part.map.get(pid);
+            if (f == null) {
+                return false;
+            }
+            while (true) {
+                int c = _pins.get(f);
+                if (c == 0) {
+                    return false;
+                }
+                if (_pins.compareAndSet(f, c, c - 1)) {
+                    return true;
+                }
+            }
+        } finally {
+            part.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Notes that a page pinned by the caller is about to be changed. Must be
+     * called before each change, so that a write of the page that is in
+     * progress does not make it clean or drop it.
+     */
+    public void writing(PageId pid) {
+        Partition part = partitionFor(pid);
+        part.lock.readLock().lock();
+        try {
+            Integer f = part.map.get(pid);
+            if (f != null) {
+                _stamps.incrementAndGet(f);
+            }
+        } finally {
+            part.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the pin count of a page, 0 if it is not resident
+     */
+    public int pinCount(PageId pid) {
+        Partition part = partitionFor(pid);
+        part.lock.readLock().lock();
+        try {
+            Integer f = part.map.get(pid);
+            return f == null ? 0 : _pins.get(f);
+        } finally {
+            part.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Looks up a resident page without recording an access.
+     *
+     * @return the page, or null if it is not resident
+     */
+    public Page peek(PageId pid) {
+        Partition part = partitionFor(pid);
+        part.lock.readLock().lock();
+        try {
+            Integer f = part.map.get(pid);
+            return f == null ? null : _frames.get(f);
+        } finally {
+            part.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Installs a freshly read page unless another thread installed the same
+     * page first. Evicts a page if no frame is free.
+     *
+     * @param scan true if the page is read by a sequential scan
+     * @return the resident page, which is not necessarily p
+     */
+    public Page putIfAbsent(Page p, boolean scan, Evictor evictor) throws DbException {
+        return putIfAbsent(p, scan, false, evictor);
+    }
+
+    /**
+     * Like {@link #putIfAbsent(Page, boolean, Evictor)}, optionally pinning
+     * the resident page.
+     *
+     * @param pin true to pin the returned page
+     */
+    public Page putIfAbsent(Page p, boolean scan, boolean pin, Evictor evictor)
+            throws DbException {
+        Page cur = lookup(p.getId(), scan, pin);
+        if (cur != null) {
+            return cur;
+        }
+        return install(p, scan, pin, evictor, false);
+    }
+
+    /**
+     * Installs a page, replacing any resident version of it. Evicts a page if
+     * no frame is free.
+     */
+    public void put(Page p, Evictor evictor) throws DbException {
+        Partition part = partitionFor(p.getId());
+        part.lock.writeLock().lock();
+        try {
+            Integer f = part.map.get(p.getId());
+            if (f != null) {
+                _frames.set(f, p);
+                _policy.accessed(f, false);
+                return;
+            }
+        } finally {
+            part.lock.writeLock().unlock();
+        }
+        install(p, false, false, evictor, true);
+    }
+
+    private Page install(Page p, boolean scan, boolean pin, Evictor evictor, boolean replace)
+            throws DbException {
+        // never hold a partition lock while looking for a frame, since
+        // eviction locks the partition of the victim
+        int f = allocateFrame(evictor);
+
+        Partition part = partitionFor(p.getId());
+        part.lock.writeLock().lock();
+        try {
+            Integer existing = part.map.get(p.getId());
+            if (existing != null) {
+                _free.offer(f);
+                if (replace) {
+                    _frames.set(existing, p);
+                }
+                if (pin) {
+                    _pins.incrementAndGet(existing);
+                }
+                _policy.accessed(existing, scan);
+                return _frames.get(existing);
+            }
+            _frames.set(f, p);
+            _pins.set(f, pin ? 1 : 0);
+            part.map.put(p.getId(), f);
+            _policy.admitted(f, p.getId(), scan);
+            return p;
+        } finally {
+            part.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a page from the cache without writing it out. The page is
+     * removed even if it is pinned, and its pins are dropped with it; the
+     * caller must see that nobody releases them afterwards.
+     *
+     * @return the removed page, or null if it was not resident
+     */
+    public Page remove(PageId pid) {
+        Partition part = partitionFor(pid);
+        part.lock.writeLock().lock();
+        try {
+            Integer f = part.map.remove(pid);
+            if (f == null) {
+                return null;
+            }
+            Page p = _frames.getAndSet(f, null);
+            _pins.set(f, 0);
+            _policy.removed(f, pid, false);
+            _free.offer(f);
+            return p;
+        } finally {
+            part.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Pins up to max dirty pages that nobody else has pinned, so that they
+     * can be written out. Each returned page must be released with
+     * {@link #unpinClean}.
+     */
+    public List<Page> pinDirty(int max) {
+        return pinDirty(max, p -> true);
+    }
+
+    /**
+     * Like {@link #pinDirty(int)}, but only pins pages the filter accepts.
+     * The filter is asked about unpinned dirty pages only.
+     */
+    public List<Page> pinDirty(int max, Predicate<Page> filter) {
+        List<Page> res = new ArrayList<>();
+        for (int i = 0; i < _numFrames && res.size() < max; i++) {
+            Page p = _frames.get(i);
+            if (p == null || p.isDirty() == null || _pins.get(i) != 0
+                    || !filter.test(p)) {
+                continue;
+            }
+            Partition part = partitionFor(p.getId());
+            part.lock.writeLock().lock();
+            try {
+                if (_frames.get(i) == p && _pins.get(i) == 0) {
+                    hold(i, p);
+                    res.add(p);
+                }
+            } finally {
+                part.lock.writeLock().unlock();
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Releases a page pinned by {@link #pinDirty} after its contents were
+     * written out. The page is marked clean unless somebody else pinned it
+     * in the meantime, or pinned it for writing or changed its dirty state
+     * since it was pinned, since the write may then miss their changes.
+     */
+    public void unpinClean(Page p) {
+        Partition part = partitionFor(p.getId());
+        part.lock.writeLock().lock();
+        try {
+            Integer f = part.map.get(p.getId());
+            if (f == null || _frames.get(f) != p) {
+                return;
+            }
+            if (_pins.get(f) == 1 && unchanged(f, p)) {
+                p.markDirty(false, null);
+            }
+            _pins.decrementAndGet(f);
+        } finally {
+            part.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of frames that can be reused without I/O: free
+     *         frames and frames holding a clean, unpinned page
+     */
+    public int cleanFrames() {
+        int n = 0;
+        for (int i = 0; i < _numFrames; i++) {
+            Page p = _frames.get(i);
+            if (p == null || (p.isDirty() == null && _pins.get(i) == 0)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return a snapshot of the resident pages
+     */
+    public List<Page> pages() {
+        List<Page> res = new ArrayList<>();
+        for (int i = 0; i < _numFrames; i++) {
+            Page p = _frames.get(i);
+            if (p != null) {
+                res.add(p);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Returns a free frame, evicting an unpinned page if there is none. Clean
+     * pages are considered first, so a miss only has to write a page out when
+     * every unpinned page is dirty.
+     *
+     * @throws DbException if every resident page is pinned or refused
+     *         eviction
+     */
+    private int allocateFrame(Evictor evictor) throws DbException {
+        Integer f = _free.poll();
+        if (f != null) {
+            return f;
+        }
+
+        BitSet tried = new BitSet(_numFrames);
+        for (boolean cleanOnly : new boolean[] { true, false }) {
+            int victim;
+            while ((victim = _policy.victim(v -> !tried.get(v) && _pins.get(v) == 0
+                    && (!cleanOnly || isClean(v)))) != -1) {
+                tried.set(victim);
+                f = _free.poll();
+                if (f != null) {
+                    return f;
+                }
+                Page p = _frames.get(victim);
+                if (p == null || !tryPin(victim, p)) {
+                    continue;
+                }
+                boolean written;
+                try {
+                    written = p.isDirty() == null || evictor.evictPage(p);
+                } catch (DbException e) {
+                    release(victim, p, false);
+                    throw e;
+                }
+                if (release(victim, p, written)) {
+                    return victim;
+                }
+            }
+        }
+        throw new DbException("no evictable page in buffer pool");
+    }
+
+    private boolean isClean(int frame) {
+        Page p = _frames.get(frame);
+        return p != null && p.isDirty() == null;
+    }
+
+    /** Pins the page held by a frame if nobody else has it pinned. */
+    private boolean tryPin(int frame, Page p) {
+        Partition part = partitionFor(p.getId());
+        part.lock.writeLock().lock();
+        try {
+            if (_frames.get(frame) != p || _pins.get(frame) != 0) {
+                return false;
+            }
+            hold(frame, p);
+            return true;
+        } finally {
+            part.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Pins an unpinned frame to write its page out, and records the stamp
+     * and dirtier the write starts from. Called under the partition write
+     * lock.
+     */
+    private void hold(int frame, Page p) {
+        _pins.set(frame, 1);
+        _heldStamps.set(frame, _stamps.get(frame));
+        _heldDirtiers.set(frame, p.isDirty());
+    }
+
+    /**
+     * @return true if nobody pinned a frame held by {@link #hold} for
+     *         writing, and its page is dirty as it was then. Called under the
+     *         partition write lock.
+     */
+    private boolean unchanged(int frame, Page p) {
+        return _stamps.get(frame) == _heldStamps.get(frame)
+            && p.isDirty() == _heldDirtiers.get(frame);
+    }
+
+    /**
+     * Drops the pin taken by {@link #tryPin} and, if evict is set, removes
+     * the page from its frame.
+     *
+     * @return true if the page was evicted
+     */
+    private boolean release(int frame, Page p, boolean evict) {
+        Partition part = partitionFor(p.getId());
+        part.lock.writeLock().lock();
+        try {
+            if (_frames.get(frame) != p) {
+                return false;
+            }
+            // somebody pinned the page while it was being written out and
+            // may have changed it since
+            if (!evict || _pins.get(frame) != 1 || !unchanged(frame, p)) {
+                _pins.decrementAndGet(frame);
+                return false;
+            }
+            _pins.set(frame, 0);
+            part.map.remove(p.getId());
+            _frames.set(frame, null);
+            _policy.removed(frame, p.getId(), true);
+            return true;
+        } finally {
+            part.lock.writeLock().unlock();
+        }
+    }
+}
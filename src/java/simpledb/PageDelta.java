@@ -0,0 +1,180 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * PageDelta is the physiological form of an update the {@link LogFile}
+ * logs: the byte ranges of one page that an update changed, with their
+ * contents before and after it, instead of two images of the whole page.
+ * Inserting a tuple into a heap page, for instance, changes a byte of the
+ * header and the bytes of one slot; a B+ tree entry insert changes the
+ * header and the entries it shifts.
+ * <p>
+ * Redo writes the after bytes of the ranges into an image of the page and
+ * undo writes the before bytes; bytes outside the ranges are left alone, so
+ * applying the deltas of a page in log order (or reverse log order for
+ * undo) to any image of it from the same history rebuilds the page. That
+ * requires each delta to start where the previous one logged for the page
+ * ended, which the {@link BufferPool} ensures by logging against the last
+ * image it logged.
+ * <p>
+ * Only heap and B+ tree pages have deltas, and only when the page did not
+ * start out empty: files write empty pages without logging them, so a page
+ * may have been reset since its last delta, and its first update after that
+ * is logged as full images.
+ *
+ * @Threadsafe, immutable
+ */
+public class PageDelta {
+    /** Unchanged bytes between two changed runs that are logged anyway,
+        since a range of its own would take more room. */
+    private static final int MAX_GAP = 4;
+
+    private final PageId _pid;
+    private final int _length;      // the size of the page
+    private final int[] _offsets;   // the start of each changed range
+    private final int[] _lengths;   // the length of each changed range
+    private final byte[] _before;   // the ranges as they were, back to back
+    private final byte[] _after;    // the ranges as they are now
+
+    private PageDelta(PageId pid, int length, int[] offsets, int[] lengths,
+                      byte[] before, byte[] after) {
+        _pid = pid;
+        _length = length;
+        _offsets = offsets;
+        _lengths = lengths;
+        _before = before;
+        _after = after;
+    }
+
+    /**
+     * Computes the delta between two images of a page.
+     *
+     * @return the delta, or null if the update must be logged as full
+     *         images
+     */
+    public static PageDelta diff(Page before, Page after) {
+        PageId pid = after.getId();
+        if (!pid.equals(before.getId())
+                || !(pid instanceof HeapPageId || pid instanceof BTreePageId)) {
+            return null;
+        }
+        byte[] b = before.getPageData(), a = after.getPageData();
+        if (b.length != a.length || isEmpty(b)) {
+            return null;
+        }
+
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        int changed = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == b[i]) {
+                continue;
+            }
+            int end = i + 1;
+            while (end < a.length && a[end] != b[end]) {
+                end++;
+            }
+            int[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (last != null && i - (last[0] + last[1]) <= MAX_GAP) {
+                changed += end - (last[0] + last[1]);
+                last[1] = end - last[0];
+            } else {
+                ranges.add(new int[] { i, end - i });
+                changed += end - i;
+            }
+            i = end;
+        }
+        if (2 * changed + 8 * ranges.size() >= 2 * a.length) {
+            // no smaller than the images
+            return null;
+        }
+
+        int[] offsets = new int[ranges.size()], lengths = new int[ranges.size()];
+        byte[] bb = new byte[changed], ab = new byte[changed];
+        int pos = 0;
+        for (int r = 0; r < ranges.size(); r++) {
+            offsets[r] = ranges.get(r)[0];
+            lengths[r] = ranges.get(r)[1];
+            System.arraycopy(b, offsets[r], bb, pos, lengths[r]);
+            System.arraycopy(a, offsets[r], ab, pos, lengths[r]);
+            pos += lengths[r];
+        }
+        return new PageDelta(pid, a.length, offsets, lengths, bb, ab);
+    }
+
+    private static boolean isEmpty(byte[] data) {
+        for (byte x : data) {
+            if (x != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return the page the delta applies to */
+    public PageId getId() {
+        return _pid;
+    }
+
+    /** @return the size of the page in bytes */
+    public int pageSize() {
+        return _length;
+    }
+
+    /** Writes the after bytes of the delta into an image of the page. */
+    public void redo(byte[] data) {
+        apply(_after, data);
+    }
+
+    /** Writes the before bytes of the delta into an image of the page. */
+    public void undo(byte[] data) {
+        apply(_before, data);
+    }
+
+    private void apply(byte[] bytes, byte[] data) {
+        int pos = 0;
+        for (int r = 0; r < _offsets.length; r++) {
+            System.arraycopy(bytes, pos, data, _offsets[r], _lengths[r]);
+            pos += _lengths[r];
+        }
+    }
+
+    /** Writes the delta in the format {@link #read} expects. */
+    public void write(DataOutput out) throws IOException {
+        PageType.writeId(out, _pid);
+        out.writeInt(_length);
+        out.writeInt(_offsets.length);
+        for (int r = 0; r < _offsets.length; r++) {
+            out.writeInt(_offsets[r]);
+            out.writeInt(_lengths[r]);
+        }
+        out.write(_before);
+        out.write(_after);
+    }
+
+    /** Reads a delta written by {@link #write}. */
+    public static PageDelta read(DataInput in) throws IOException {
+        PageId pid = PageType.readId(in);
+        int length = in.readInt();
+        int n = in.readInt();
+        int[] offsets = new int[n], lengths = new int[n];
+        int changed = 0;
+        for (int r = 0; r < n; r++) {
+            offsets[r] = in.readInt();
+            lengths[r] = in.readInt();
+            changed += lengths[r];
+        }
+        byte[] before = new byte[changed], after = new byte[changed];
+        in.readFully(before);
+        in.readFully(after);
+        return new PageDelta(pid, length, offsets, lengths, before, after);
+    }
+
+    @Override
+    public String toString() {
+        return _pid + ": " + _offsets.length + " ranges, " + _after.length + " bytes";
+    }
+}
@@ -0,0 +1,119 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * PageType is the registry of the kinds of pages the {@link LogFile} logs.
+ * Each kind has a one-byte code, which log records carry in place of the
+ * names of the page and page id classes, and factories that build its page
+ * ids and pages directly, without reflection.
+ * <p>
+ * A page id is logged as the code of its kind, its table id and its page
+ * number; the kind tells the category of a B+ tree page.
+ */
+public enum PageType {
+    HEAP(0, (table, pgNo) -> new HeapPageId(table, pgNo),
+         (pid, data) -> new HeapPage((HeapPageId) pid, data)),
+    BTREE_ROOT_PTR(1, (table, pgNo) -> new BTreePageId(table, pgNo, BTreePageId.ROOT_PTR),
+                   (pid, data) -> new BTreeRootPtrPage((BTreePageId) pid, data)),
+    BTREE_INTERNAL(2, (table, pgNo) -> new BTreePageId(table, pgNo, BTreePageId.INTERNAL),
+                   (pid, data) -> new BTreeInternalPage((BTreePageId) pid, data, keyField(pid))),
+    BTREE_LEAF(3, (table, pgNo) -> new BTreePageId(table, pgNo, BTreePageId.LEAF),
+               (pid, data) -> new BTreeLeafPage((BTreePageId) pid, data, keyField(pid))),
+    BTREE_HEADER(4, (table, pgNo) -> new BTreePageId(table, pgNo, BTreePageId.HEADER),
+                 (pid, data) -> new BTreeHeaderPage((BTreePageId) pid, data));
+
+    /** Builds the id of a page of one kind. */
+    interface IdFactory {
+        PageId create(int tableId, int pgNo);
+    }
+
+    /** Builds a page of one kind from its bytes, as its file would. */
+    interface PageFactory {
+        Page create(PageId pid, byte[] data) throws IOException;
+    }
+
+    private static final PageType[] BY_CODE = new PageType[values().length];
+    static {
+        for (PageType t : values()) {
+            BY_CODE[t._code] = t;
+        }
+    }
+
+    private final byte _code;
+    private final IdFactory _ids;
+    private final PageFactory _pages;
+
+    private PageType(int code, IdFactory ids, PageFactory pages) {
+        _code = (byte) code;
+        _ids = ids;
+        _pages = pages;
+    }
+
+    private static int keyField(PageId pid) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).keyField();
+    }
+
+    /** @return the code of this kind of page in the log */
+    public byte code() {
+        return _code;
+    }
+
+    /**
+     * @return the kind of a page
+     * @throws IllegalArgumentException if pages of its kind cannot be logged
+     */
+    public static PageType of(PageId pid) {
+        if (pid instanceof HeapPageId) {
+            return HEAP;
+        }
+        if (pid instanceof BTreePageId) {
+            switch (((BTreePageId) pid).pgcateg()) {
+            case BTreePageId.ROOT_PTR:
+                return BTREE_ROOT_PTR;
+            case BTreePageId.INTERNAL:
+                return BTREE_INTERNAL;
+            case BTreePageId.LEAF:
+                return BTREE_LEAF;
+            case BTreePageId.HEADER:
+                return BTREE_HEADER;
+            }
+        }
+        throw new IllegalArgumentException("no page type for " + pid);
+    }
+
+    /**
+     * @return the kind of page with the given code
+     * @throws IOException if no kind has the code
+     */
+    public static PageType of(byte code) throws IOException {
+        if (code < 0 || code >= BY_CODE.length) {
+            throw new IOException("unknown page type " + code);
+        }
+        return BY_CODE[code];
+    }
+
+    /** Writes a page id in the format {@link #readId} expects. */
+    public static void writeId(DataOutput out, PageId pid) throws IOException {
+        out.writeByte(of(pid)._code);
+        out.writeInt(pid.getTableId());
+        out.writeInt(pid.getPageNumber());
+    }
+
+    /** Reads a page id written by {@link #writeId}. */
+    public static PageId readId(DataInput in) throws IOException {
+        PageType t = of(in.readByte());
+        int table = in.readInt();
+        return t._ids.create(table, in.readInt());
+    }
+
+    /**
+     * Builds a page of the given id from its bytes, as the file it belongs
+     * to would read it.
+     */
+    public static Page page(PageId pid, byte[] data) throws IOException {
+        return of(pid)._pages.create(pid, data);
+    }
+}
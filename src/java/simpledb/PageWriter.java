@@ -0,0 +1,165 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PageWriter cleans dirty pages of a {@link PageCache} in the background, so
+ * that a cache miss usually finds a clean victim and does not have to write
+ * a page out before it can read its own.
+ * <p>
+ * The writer tries to keep a target number of frames reusable without I/O
+ * (see {@link PageCache#cleanFrames}). Whenever the count falls below the
+ * target, up to the configured number of writer threads pin dirty, unpinned
+ * pages and hand them to a {@link PageFlusher}, which is responsible for the
+ * write-ahead rule and may refuse pages the buffer policy keeps in memory.
+ * Pages pinned by a transaction are never touched. Writer
+ * threads are started on demand and exit when there is nothing to do.
+ * <p>
+ * The writer also writes out given pages on request, a batch at a time,
+ * which checkpoints use to clean the pages in their dirty page table.
+ *
+ * @Threadsafe
+ */
+public class PageWriter {
+
+    /**
+     * Writes a single page to disk, logging it first if needed.
+     */
+    public interface PageFlusher {
+        /**
+         * @return false if the page may not be written yet, e.g. because the
+         *         buffer policy keeps uncommitted changes off the disk; the
+         *         page is then left dirty
+         */
+        boolean writePage(Page p) throws IOException;
+    }
+
+    /** Number of dirty pages a writer thread claims at a time. */
+    private static final int BATCH_SIZE = 8;
+
+    private final PageCache _cache;
+    private final PageFlusher _flusher;
+    private final int _threads;
+    private volatile int _target;
+    private final AtomicInteger _running = new AtomicInteger(0);
+    private final ThreadPoolExecutor _executor;
+
+    /**
+     * @param cache the cache to clean
+     * @param flusher writes pages out
+     * @param threads the maximum number of writer threads
+     * @param target the number of clean frames to maintain; 0 disables
+     *        background cleaning
+     */
+    public PageWriter(PageCache cache, PageFlusher flusher, int threads, int target) {
+        _cache = cache;
+        _flusher = flusher;
+        _threads = Math.max(1, threads);
+        _target = target;
+        _executor = new ThreadPoolExecutor(_threads, _threads, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), r -> {
+                    Thread t = new Thread(r, "simpledb-page-writer");
+                    t.setDaemon(true);
+                    return t;
+                });
+        _executor.allowCoreThreadTimeOut(true);
+    }
+
+    /** @return the number of clean frames the writer maintains */
+    public int getTarget() {
+        return _target;
+    }
+
+    /**
+     * @param target the number of clean frames to maintain; 0 disables
+     *        background cleaning
+     */
+    public void setTarget(int target) {
+        _target = target;
+    }
+
+    /**
+     * Starts writer threads if the cache is short of clean frames. Cheap
+     * enough to call after every miss.
+     */
+    public void wake() {
+        if (_running.get() >= _threads || _cache.cleanFrames() >= _target) {
+            return;
+        }
+        int r = _running.incrementAndGet();
+        if (r > _threads) {
+            _running.decrementAndGet();
+            return;
+        }
+        _executor.execute(this::clean);
+    }
+
+    /**
+     * Writes out the given pages in the background, those of them that are
+     * still dirty and not pinned. Each page is tried once. Does nothing if
+     * background cleaning is disabled.
+     */
+    public void clean(Collection<PageId> pids) {
+        if (pids.isEmpty() || _target == 0) {
+            return;
+        }
+        Set<PageId> pending = ConcurrentHashMap.newKeySet();
+        pending.addAll(pids);
+        _executor.execute(() -> {
+            List<Page> batch;
+            do {
+                batch = _cache.pinDirty(BATCH_SIZE, p -> pending.remove(p.getId()));
+            } while (!batch.isEmpty() && write(batch) >= 0);
+        });
+    }
+
+    private void clean() {
+        try {
+            while (_cache.cleanFrames() < _target) {
+                List<Page> batch = _cache.pinDirty(BATCH_SIZE);
+                if (batch.isEmpty() || write(batch) <= 0) {
+                    // nothing we may write; try again on the next wake
+                    return;
+                }
+            }
+        } finally {
+            _running.decrementAndGet();
+        }
+    }
+
+    /**
+     * Writes a batch of pinned pages and unpins them.
+     *
+     * @return the number of pages written, or -1 if a write failed
+     */
+    private int write(List<Page> batch) {
+        int written = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            Page p = batch.get(i);
+            try {
+                if (_flusher.writePage(p)) {
+                    _cache.unpinClean(p);
+                    written++;
+                } else {
+                    _cache.unpin(p.getId());
+                }
+            } catch (IOException e) {
+                // leave the pages dirty; eviction will retry the write
+                e.printStackTrace();
+                for (Page q : batch.subList(i, batch.size())) {
+                    _cache.unpin(q.getId());
+                }
+                return -1;
+            }
+        }
+        return written;
+    }
+}
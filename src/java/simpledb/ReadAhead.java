@@ -0,0 +1,240 @@
+package simpledb;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ReadAhead loads pages into a {@link PageCache} on a miss and prefetches the
+ * pages a sequential scan is about to ask for.
+ * <p>
+ * Sequential access is detected per file from the pages read by scans: heap
+ * page numbers going up one at a time, or a B+ tree leaf followed by its
+ * right sibling. Once two pages of a file have been read in order, a
+ * background thread reads a window of the following pages into the cache;
+ * the window doubles with every further page read in order, up to a
+ * configurable maximum, and starts over when the order breaks. Prefetched
+ * pages only take frames that can be reused without I/O, and prefetching
+ * stops while the cache is short of those.
+ * <p>
+ * Reads are single-flight: a page is never read twice at the same time, and
+ * a miss on a page that is being prefetched waits for that read instead of
+ * issuing its own.
+ *
+ * @Threadsafe
+ */
+public class ReadAhead {
+    /** Initial number of pages read ahead of a scan. */
+    private static final int MIN_WINDOW = 4;
+    /** Default maximum number of pages read ahead of a scan. */
+    public static final int DEFAULT_MAX_WINDOW = 16;
+    /** Number of background threads reading pages. */
+    private static final int THREADS = 2;
+    // prefetching never evicts a dirty page
+    private static final PageCache.Evictor NO_WRITES = p -> false;
+
+    /** The sequential access pattern observed on one file. */
+    private static class Stream {
+        PageId next;  // the page that continues the pattern
+        int run;      // pages read in order so far
+        int window = MIN_WINDOW;
+        int pages;    // pages of a heap file, as of the last look at its size
+    }
+
+    private final PageCache _cache;
+    private final int _reserve;
+    private volatile int _maxWindow = DEFAULT_MAX_WINDOW;
+    private final ConcurrentHashMap<PageId, CompletableFuture<Void>> _inFlight =
+        new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Stream> _streams = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor _executor;
+
+    /**
+     * @param cache the cache to load pages into
+     */
+    public ReadAhead(PageCache cache) {
+        _cache = cache;
+        // leave some clean frames to the misses of other transactions
+        _reserve = Math.max(2, cache.capacity() / 8);
+        _executor = new ThreadPoolExecutor(THREADS, THREADS, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), r -> {
+                    Thread t = new Thread(r, "simpledb-read-ahead");
+                    t.setDaemon(true);
+                    return t;
+                });
+        _executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param pages the maximum number of pages read ahead of a scan; 0
+     *        disables prefetching
+     */
+    public void setMaxWindow(int pages) {
+        _maxWindow = pages;
+    }
+
+    private Page lookup(PageId pid, boolean scan, boolean pin) {
+        return pin ? _cache.pin(pid, scan) : _cache.get(pid, scan);
+    }
+
+    /**
+     * Returns a page from the cache, reading it from its file if it is not
+     * resident. If the page is already being read, waits for that read.
+     *
+     * @param scan true if the page is read by a sequential scan
+     * @param pin true to pin the returned page
+     * @param evictor prepares victims if a frame has to be freed
+     */
+    public Page load(PageId pid, boolean scan, boolean pin, PageCache.Evictor evictor)
+            throws DbException {
+        while (true) {
+            Page p = lookup(pid, scan, pin);
+            if (p != null) {
+                return p;
+            }
+            CompletableFuture<Void> mine = new CompletableFuture<>();
+            CompletableFuture<Void> other = _inFlight.putIfAbsent(pid, mine);
+            if (other != null) {
+                other.join();
+                continue;
+            }
+            try {
+                // the page may have been installed before we registered
+                p = lookup(pid, scan, pin);
+                if (p == null) {
+                    DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                    p = _cache.putIfAbsent(file.readPage(pid), scan, pin, evictor);
+                }
+                return p;
+            } finally {
+                _inFlight.remove(pid, mine);
+                mine.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Records that a scan read the given page, and schedules prefetching if
+     * the scan reads its file sequentially.
+     */
+    public void accessed(Page p) {
+        int maxWindow = _maxWindow;
+        if (maxWindow <= 0) {
+            return;
+        }
+        PageId pid = p.getId();
+        Stream s = _streams.computeIfAbsent(pid.getTableId(), t -> new Stream());
+        PageId next;
+        int window;
+        int pages;
+        synchronized (s) {
+            // the size of a heap file is only looked at again when a scan
+            // reaches the end it was last seen at
+            if (p instanceof HeapPage && pid.getPageNumber() + 1 >= s.pages) {
+                s.pages = numPages(pid);
+            }
+            pages = s.pages;
+            next = successor(p, pages);
+            if (next == null) {
+                _streams.remove(pid.getTableId(), s);
+                return;
+            }
+            if (pid.equals(s.next)) {
+                s.run++;
+            } else {
+                s.run = 1;
+                s.window = MIN_WINDOW;
+            }
+            s.next = next;
+            if (s.run < 2) {
+                return;
+            }
+            window = Math.min(s.window, maxWindow);
+            s.window = Math.min(s.window * 2, maxWindow);
+        }
+
+        // skip the part of the window that is already resident
+        int ahead = 0;
+        Page q;
+        while (next != null && ahead < window && (q = _cache.peek(next)) != null) {
+            next = successor(q, pages);
+            ahead++;
+        }
+        if (next == null || ahead == window || _inFlight.containsKey(next)) {
+            return;
+        }
+        final PageId start = next;
+        final int count = window - ahead;
+        _executor.execute(() -> prefetch(start, count, pages));
+    }
+
+    /**
+     * Reads up to count pages into the cache, starting at pid and following
+     * the sequential order of the file.
+     *
+     * @param pages the number of pages of a heap file
+     */
+    private void prefetch(PageId pid, int count, int pages) {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        for (int i = 0; i < count && pid != null; i++) {
+            if (_cache.cleanFrames() <= _reserve) {
+                return;
+            }
+            CompletableFuture<Void> mine = new CompletableFuture<>();
+            if (_inFlight.putIfAbsent(pid, mine) != null) {
+                // somebody else is reading this stretch of the file
+                return;
+            }
+            Page p;
+            try {
+                p = _cache.peek(pid);
+                if (p == null) {
+                    p = _cache.putIfAbsent(file.readPage(pid), true, NO_WRITES);
+                    // count the prefetch as a reference, so that the page
+                    // outlives the pages the scan has already consumed
+                    _cache.get(pid, true);
+                }
+            } catch (Exception e) {
+                // no clean frame or no such page; the scan will read it
+                return;
+            } finally {
+                _inFlight.remove(pid, mine);
+                mine.complete(null);
+            }
+            pid = successor(p, pages);
+        }
+    }
+
+    /**
+     * @return the number of pages of the heap file of a page, or 0 if there
+     *         is nothing to prefetch from it
+     */
+    private static int numPages(PageId pid) {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        // a memory-mapped file is read by the OS, there is nothing to prefetch
+        if (file instanceof HeapFile && !((HeapFile) file).isMemoryMapped()) {
+            return ((HeapFile) file).numPages();
+        }
+        return 0;
+    }
+
+    /**
+     * @param pages the number of pages of the file, if it is a heap file
+     * @return the page that follows p in a sequential scan of its file, or
+     *         null if there is none or p is not part of a sequential order
+     */
+    private static PageId successor(Page p, int pages) {
+        if (p instanceof BTreeLeafPage) {
+            return ((BTreeLeafPage) p).getRightSiblingId();
+        }
+        if (p instanceof HeapPage) {
+            int n = p.getId().getPageNumber() + 1;
+            if (n < pages) {
+                return new HeapPageId(p.getId().getTableId(), n);
+            }
+        }
+        return null;
+    }
+}
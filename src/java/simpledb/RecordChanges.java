@@ -0,0 +1,136 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * RecordChanges keeps the uncommitted changes transactions made to the
+ * records of heap pages while the {@link BufferPool} locks records rather
+ * than pages. Several running transactions may then have changed the same
+ * page, so the page can neither be written nor dropped as a whole when one
+ * of them completes: commit writes the page as it would be with only the
+ * committed changes applied, and abort undoes the changes of the aborting
+ * transaction in place.
+ * <p>
+ * A changed record is locked exclusively by the transaction that changed
+ * it, so the changes of different transactions never touch the same slot
+ * and can be undone independently of each other. Methods taking a page must
+ * be called holding the monitor of the page, which also guards its contents
+ * while records are changed.
+ *
+ * @Threadsafe
+ */
+public class RecordChanges {
+
+    /** A change to one slot: the tuple the slot held, or null if it was empty. */
+    private static final class Change {
+        final int slot;
+        final Tuple before;
+
+        Change(int slot, Tuple before) {
+            this.slot = slot;
+            this.before = before;
+        }
+    }
+
+    // page -> transaction -> its changes to the page, oldest first. The inner
+    // maps are guarded by the monitor of the page.
+    private final ConcurrentHashMap<PageId, Map<TransactionId, ArrayList<Change>>> _changes =
+        new ConcurrentHashMap<>();
+
+    /** Notes that tid put a tuple into an empty slot of a page. */
+    public void inserted(TransactionId tid, HeapPage page, int slot) {
+        add(tid, page, new Change(slot, null));
+    }
+
+    /** Notes that tid deleted a tuple, as it was stored, from a page. */
+    public void deleted(TransactionId tid, HeapPage page, Tuple before) {
+        add(tid, page, new Change(before.getRecordId().getTupleNumber(), before));
+    }
+
+    private void add(TransactionId tid, HeapPage page, Change c) {
+        _changes.computeIfAbsent(page.getId(), p -> new LinkedHashMap<>(4))
+            .computeIfAbsent(tid, t -> new ArrayList<>())
+            .add(c);
+        page.markDirty(true, tid);
+    }
+
+    /** @return true if tid has changed records of the page */
+    public boolean changed(TransactionId tid, HeapPage page) {
+        Map<TransactionId, ArrayList<Change>> byTid = _changes.get(page.getId());
+        return byTid != null && byTid.containsKey(tid);
+    }
+
+    /**
+     * @return a copy of the page holding the committed changes and those of
+     *         tid, but none of the other running transactions
+     */
+    public HeapPage committedImage(TransactionId tid, HeapPage page) throws IOException {
+        HeapPage image = new HeapPage(page.getId(), page.getPageData());
+        Map<TransactionId, ArrayList<Change>> byTid = _changes.get(page.getId());
+        if (byTid != null) {
+            for (Map.Entry<TransactionId, ArrayList<Change>> e : byTid.entrySet()) {
+                if (!e.getKey().equals(tid)) {
+                    undo(image, e.getValue());
+                }
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Forgets the changes tid made to a page, which are now part of its
+     * committed contents.
+     */
+    public void commit(TransactionId tid, HeapPage page) {
+        forget(tid, page);
+    }
+
+    /** Undoes the changes tid made to a page. */
+    public void rollback(TransactionId tid, HeapPage page) {
+        Map<TransactionId, ArrayList<Change>> byTid = _changes.get(page.getId());
+        ArrayList<Change> mine = byTid == null ? null : byTid.get(tid);
+        if (mine != null) {
+            undo(page, mine);
+        }
+        forget(tid, page);
+    }
+
+    /**
+     * Drops the changes of tid and leaves the page dirty only if another
+     * transaction still has changes on it. A page tid fetched for writing
+     * but did not change is clean again.
+     */
+    private void forget(TransactionId tid, HeapPage page) {
+        Map<TransactionId, ArrayList<Change>> byTid = _changes.get(page.getId());
+        if (byTid != null) {
+            byTid.remove(tid);
+            if (byTid.isEmpty()) {
+                _changes.remove(page.getId());
+            } else {
+                page.markDirty(true, byTid.keySet().iterator().next());
+                return;
+            }
+        }
+        page.markDirty(false, null);
+    }
+
+    private static void undo(HeapPage page, ArrayList<Change> changes) {
+        try {
+            for (int i = changes.size() - 1; i >= 0; i--) {
+                Change c = changes.get(i);
+                if (c.before == null) {
+                    page.deleteTuple(page.tupleAt(c.slot));
+                } else {
+                    page.insertTuple(c.before, c.slot);
+                }
+            }
+        } catch (DbException e) {
+            // the slots are locked, nobody else can have touched them
+            throw new IllegalStateException("cannot undo changes to " + page.getId(), e);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package simpledb;
+
+import java.util.function.IntPredicate;
+
+/**
+ * ReplacementPolicy decides which frame of a {@link PageCache} is given up
+ * when a new page has to be brought in. The cache reports every admission,
+ * hit and removal of a frame; the policy keeps whatever bookkeeping it needs
+ * and proposes victims on request.
+ * <p>
+ * Every access carries a scan hint. Pages read by a sequential scan are
+ * unlikely to be re-referenced soon, so scan-resistant policies admit them
+ * on probation only and never let them displace the hot working set.
+ * <p>
+ * Implementations must be thread safe. {@link #accessed} is on the hit path
+ * of the buffer pool and should not block.
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * A page was installed in a free frame.
+     *
+     * @param frame the frame now holding the page
+     * @param pid the id of the page
+     * @param scan true if the page was read by a sequential scan
+     */
+    public void admitted(int frame, PageId pid, boolean scan);
+
+    /**
+     * The page held by a frame was referenced again.
+     *
+     * @param frame the frame that was hit
+     * @param scan true if the reference comes from a sequential scan
+     */
+    public void accessed(int frame, boolean scan);
+
+    /**
+     * A frame was emptied, either because its page was evicted or because
+     * the page was discarded.
+     *
+     * @param frame the frame that is now free
+     * @param pid the id of the page that left the frame
+     * @param evicted true if the page was chosen by {@link #victim}
+     */
+    public void removed(int frame, PageId pid, boolean evicted);
+
+    /**
+     * Proposes the next frame to evict.
+     *
+     * @param eligible frames the cache is still willing to consider
+     * @return an occupied, eligible frame, or -1 if there is none
+     */
+    public int victim(IntPredicate eligible);
+}
@@ -0,0 +1,489 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * SegmentedLog stores the {@link LogFile} as a single stream of bytes
+ * addressed by LSN, split into segment files of a fixed size. Byte x of
+ * the stream is in the file named after the log with the suffix
+ * <tt>.(x / segment size)</tt>, so LSNs need no translation and stay the
+ * same for the life of the log. Dropping the start of the log deletes the
+ * segments below the new start; nothing is copied.
+ * <p>
+ * Segments are preallocated at their full size when they are created, so
+ * appends write into space the file system already knows about, and
+ * forcing them never has to update file metadata. The end of the stream
+ * is therefore not the end of the last file: a reopened log ends with the
+ * last segment, and the reader must recognize the zeros past its last
+ * record.
+ * <p>
+ * Writes are buffered in memory until the stream is forced or read.
+ *
+ * @NotThreadsafe; calls must be serialized, except for forcing the channels
+ * returned by {@link #sync}
+ */
+public class SegmentedLog implements DataInput, DataOutput, Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final File _base;
+    private final int _segmentSize;
+    private final TreeMap<Long, FileChannel> _segments = new TreeMap<Long, FileChannel>();
+    // the segments written since they were last forced, with the number
+    // of the last write to each
+    private final Map<FileChannel, Long> _unforced = new HashMap<FileChannel, Long>();
+    private long _writes;   // number of the last write to a segment
+    private long _start;    // first byte held
+    private long _end;      // end of the stream
+    private long _pos;      // position of the next read or write
+
+    private final ByteBuffer _wbuf = ByteBuffer.allocate(BUFFER_SIZE);
+    private long _wstart;   // position of the first buffered write
+    private final ByteBuffer _rbuf = ByteBuffer.allocate(BUFFER_SIZE);
+    private long _rstart = -1; // position of the bytes in _rbuf, or -1
+
+    private final DataInputStream _in = new DataInputStream(new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return get(b, off, len);
+        }
+    });
+
+    private final DataOutputStream _out = new DataOutputStream(new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            put(b, off, len);
+        }
+    });
+
+    /**
+     * Opens the segments of a log, if there are any. The stream then
+     * starts with the first segment and ends with the last one.
+     *
+     * @param base the log; segments are named after it
+     * @param segmentSize the size of each segment in bytes
+     */
+    public SegmentedLog(File base, int segmentSize) throws IOException {
+        _base = base.getAbsoluteFile();
+        _segmentSize = segmentSize;
+        String prefix = _base.getName() + ".";
+        File[] files = _base.getParentFile().listFiles();
+        for (File f : files != null ? files : new File[0]) {
+            String suffix = f.getName().startsWith(prefix)
+                ? f.getName().substring(prefix.length()) : "";
+            if (!suffix.isEmpty() && suffix.chars().allMatch(Character::isDigit)) {
+                _segments.put(Long.parseLong(suffix), open(f));
+            }
+        }
+        _start = _segments.isEmpty() ? 0 : _segments.firstKey() * _segmentSize;
+        _end = _pos = limit();
+    }
+
+    private FileChannel open(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        if (raf.length() < _segmentSize) {
+            raf.setLength(_segmentSize);
+        }
+        return raf.getChannel();
+    }
+
+    private File file(long index) {
+        return new File(_base.getPath() + "." + index);
+    }
+
+    /** @return the segment holding a position, created if need be */
+    private FileChannel segment(long pos) throws IOException {
+        long index = pos / _segmentSize;
+        FileChannel c = _segments.get(index);
+        if (c == null) {
+            if (pos < _start) {
+                throw new IOException("log position " + pos + " was truncated");
+            }
+            c = open(file(index));
+            _segments.put(index, c);
+        }
+        return c;
+    }
+
+    /** @return the size of each segment in bytes */
+    public int segmentSize() {
+        return _segmentSize;
+    }
+
+    /** @return the number of segment files */
+    public int segments() {
+        return _segments.size();
+    }
+
+    /** @return the end of the last segment, or 0 if there is none */
+    public long limit() {
+        return _segments.isEmpty() ? 0 : (_segments.lastKey() + 1) * _segmentSize;
+    }
+
+    /** @return the first position that is still held */
+    public long start() {
+        return _start;
+    }
+
+    /** @return the end of the stream */
+    public long length() {
+        return _end;
+    }
+
+    public long getFilePointer() {
+        return _pos;
+    }
+
+    public void seek(long pos) throws IOException {
+        if (pos < _start || pos > _end) {
+            throw new IOException("log position " + pos + " out of [" + _start + ", " + _end + "]");
+        }
+        _pos = pos;
+    }
+
+    /**
+     * Ends the stream at the given position. The rest of its segment is
+     * zeroed and the segments after it are deleted, so that nothing past
+     * the end looks like a record when the log is reopened.
+     */
+    public void setLength(long end) throws IOException {
+        flushWrites();
+        _rstart = -1;
+        FileChannel c = segment(end);
+        long off = end % _segmentSize;
+        ByteBuffer zeros = ByteBuffer.allocate(BUFFER_SIZE);
+        while (off < _segmentSize) {
+            zeros.clear();
+            zeros.limit((int) Math.min(BUFFER_SIZE, _segmentSize - off));
+            off += c.write(zeros, off);
+        }
+        _unforced.put(c, ++_writes);
+        drop(_segments.tailMap(end / _segmentSize, false));
+        _end = end;
+        _pos = Math.min(_pos, end);
+    }
+
+    /** Drops the start of the stream, deleting the segments wholly below
+        the given position. */
+    public void truncate(long start) throws IOException {
+        flushWrites();
+        _rstart = -1;
+        drop(_segments.headMap(start / _segmentSize, false));
+        _start = Math.max(_start, start);
+    }
+
+    /** Deletes every segment; the stream starts over, empty, at the given
+        position. */
+    public void reset(long start) throws IOException {
+        _wbuf.clear();
+        _rstart = -1;
+        drop(_segments);
+        _start = _end = _pos = start;
+    }
+
+    private void drop(Map<Long, FileChannel> segments) throws IOException {
+        for (Map.Entry<Long, FileChannel> e : new ArrayList<Map.Entry<Long, FileChannel>>(segments.entrySet())) {
+            e.getValue().close();
+            _unforced.remove(e.getValue());
+            file(e.getKey()).delete();
+        }
+        segments.clear();
+    }
+
+    /**
+     * The segments written up to a {@link #sync}; forcing them makes
+     * everything written before the sync durable.
+     */
+    public static final class Sync {
+        public final List<FileChannel> channels;
+        private final long _mark;   // number of the last write synced
+
+        private Sync(List<FileChannel> channels, long mark) {
+            this.channels = Collections.unmodifiableList(channels);
+            _mark = mark;
+        }
+    }
+
+    /**
+     * Hands the buffered writes to the file system.
+     *
+     * @return the segments written since they were last forced
+     */
+    public Sync sync() throws IOException {
+        flushWrites();
+        return new Sync(new ArrayList<FileChannel>(_unforced.keySet()), _writes);
+    }
+
+    /** Makes everything written so far durable. */
+    public void force() throws IOException {
+        for (FileChannel c : sync().channels) {
+            try {
+                c.force(false);
+            } catch (ClosedChannelException e) {
+                // the segment was deleted
+            }
+        }
+        _unforced.clear();
+    }
+
+    /** Notes that the channels of a {@link Sync} were forced. A segment
+        written to after the sync stays unforced, since the force may have
+        begun before that write. */
+    public void forced(Sync sync) {
+        for (FileChannel c : sync.channels) {
+            Long last = _unforced.get(c);
+            if (last != null && last <= sync._mark) {
+                _unforced.remove(c);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flushWrites();
+        for (FileChannel c : _segments.values()) {
+            c.close();
+        }
+        _segments.clear();
+        _unforced.clear();
+    }
+
+    private int get(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (_pos >= _end) {
+            return -1;
+        }
+        flushWrites();
+        if (_rstart < 0 || _pos < _rstart || _pos >= _rstart + _rbuf.limit()) {
+            fill();
+        }
+        int n = (int) Math.min(len, _rstart + _rbuf.limit() - _pos);
+        System.arraycopy(_rbuf.array(), (int) (_pos - _rstart), b, off, n);
+        _pos += n;
+        return n;
+    }
+
+    /** Reads the bytes from the current position on into the read buffer,
+        up to the end of the segment. */
+    private void fill() throws IOException {
+        FileChannel c = segment(_pos);
+        long off = _pos % _segmentSize;
+        _rbuf.clear();
+        _rbuf.limit((int) Math.min(BUFFER_SIZE, Math.min(_end - _pos, _segmentSize - off)));
+        while (_rbuf.hasRemaining()) {
+            if (c.read(_rbuf, off + _rbuf.position()) < 0) {
+                throw new EOFException("segment of log position " + _pos + " is short");
+            }
+        }
+        _rbuf.flip();
+        _rstart = _pos;
+    }
+
+    private void put(byte[] b, int off, int len) throws IOException {
+        _rstart = -1;
+        if (_wbuf.position() > 0 && _wstart + _wbuf.position() != _pos) {
+            flushWrites();
+        }
+        if (_wbuf.position() == 0) {
+            _wstart = _pos;
+        }
+        while (len > 0) {
+            if (!_wbuf.hasRemaining()) {
+                flushWrites();
+                _wstart = _pos;
+            }
+            int n = Math.min(len, _wbuf.remaining());
+            _wbuf.put(b, off, n);
+            off += n;
+            len -= n;
+            _pos += n;
+        }
+        _end = Math.max(_end, _pos);
+    }
+
+    /** Writes the buffered bytes to their segments. */
+    private void flushWrites() throws IOException {
+        _wbuf.flip();
+        long pos = _wstart;
+        while (_wbuf.hasRemaining()) {
+            FileChannel c = segment(pos);
+            long off = pos % _segmentSize;
+            int n = (int) Math.min(_wbuf.remaining(), _segmentSize - off);
+            ByteBuffer chunk = _wbuf.slice();
+            chunk.limit(n);
+            while (chunk.hasRemaining()) {
+                c.write(chunk, off + chunk.position());
+            }
+            _wbuf.position(_wbuf.position() + n);
+            _unforced.put(c, ++_writes);
+            pos += n;
+        }
+        _wbuf.clear();
+    }
+
+    // DataInput
+
+    public void readFully(byte[] b) throws IOException {
+        _in.readFully(b);
+    }
+
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        _in.readFully(b, off, len);
+    }
+
+    public int skipBytes(int n) throws IOException {
+        int skipped = (int) Math.max(0, Math.min(n, _end - _pos));
+        _pos += skipped;
+        return skipped;
+    }
+
+    public boolean readBoolean() throws IOException {
+        return _in.readBoolean();
+    }
+
+    public byte readByte() throws IOException {
+        return _in.readByte();
+    }
+
+    public int readUnsignedByte() throws IOException {
+        return _in.readUnsignedByte();
+    }
+
+    public short readShort() throws IOException {
+        return _in.readShort();
+    }
+
+    public int readUnsignedShort() throws IOException {
+        return _in.readUnsignedShort();
+    }
+
+    public char readChar() throws IOException {
+        return _in.readChar();
+    }
+
+    public int readInt() throws IOException {
+        return _in.readInt();
+    }
+
+    public long readLong() throws IOException {
+        return _in.readLong();
+    }
+
+    public float readFloat() throws IOException {
+        return _in.readFloat();
+    }
+
+    public double readDouble() throws IOException {
+        return _in.readDouble();
+    }
+
+    /**
+     * Reads a line as RandomAccessFile does: one char per byte, up to a
+     * '\n', '\r' or "\r\n", or the end of the stream.
+     *
+     * @return the line without its end, or null at the end of the stream
+     */
+    public String readLine() throws IOException {
+        if (_pos >= _end) {
+            return null;
+        }
+        StringBuilder line = new StringBuilder();
+        while (_pos < _end) {
+            int c = readUnsignedByte();
+            if (c == '\n') {
+                break;
+            }
+            if (c == '\r') {
+                if (_pos < _end && readUnsignedByte() != '\n') {
+                    _pos--;
+                }
+                break;
+            }
+            line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    public String readUTF() throws IOException {
+        return _in.readUTF();
+    }
+
+    // DataOutput
+
+    public void write(int b) throws IOException {
+        _out.write(b);
+    }
+
+    public void write(byte[] b) throws IOException {
+        _out.write(b);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        _out.write(b, off, len);
+    }
+
+    public void writeBoolean(boolean v) throws IOException {
+        _out.writeBoolean(v);
+    }
+
+    public void writeByte(int v) throws IOException {
+        _out.writeByte(v);
+    }
+
+    public void writeShort(int v) throws IOException {
+        _out.writeShort(v);
+    }
+
+    public void writeChar(int v) throws IOException {
+        _out.writeChar(v);
+    }
+
+    public void writeInt(int v) throws IOException {
+        _out.writeInt(v);
+    }
+
+    public void writeLong(long v) throws IOException {
+        _out.writeLong(v);
+    }
+
+    public void writeFloat(float v) throws IOException {
+        _out.writeFloat(v);
+    }
+
+    public void writeDouble(double v) throws IOException {
+        _out.writeDouble(v);
+    }
+
+    public void writeBytes(String s) throws IOException {
+        _out.writeBytes(s);
+    }
+
+    public void writeChars(String s) throws IOException {
+        _out.writeChars(s);
+    }
+
+    public void writeUTF(String s) throws IOException {
+        _out.writeUTF(s);
+    }
+}
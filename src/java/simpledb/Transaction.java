@@ -25,6 +25,15 @@ public class Transaction {
         }
     }
 
+    /**
+     * Start the transaction as a read-only one, reading a snapshot of the
+     * database as of now without taking locks
+     */
+    public void startSnapshot() {
+        start();
+        Database.getBufferPool().beginSnapshot(tid);
+    }
+
     public TransactionId getId() {
         return tid;
     }
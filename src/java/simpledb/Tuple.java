@@ -12,7 +12,7 @@ import java.util.NoSuchElementException;
 public class Tuple implements Serializable {
     private RecordId _rid;
     private TupleDesc _td;
-    private Field[] _fields;
+    private final Field[] _fields;
     private static final long serialVersionUID = 1L;
 
     /**
@@ -106,7 +106,7 @@ public class Tuple implements Serializable {
 
         String s = "";
         for (int i = 0; i < _fields.length; i++) {
-            s += _fields[i].toString();
+            s += getField(i).toString();
             if (i != _fields.length - 1)
                 s += "\t";
         }
@@ -131,7 +131,7 @@ public class Tuple implements Serializable {
 
             @Override
             public Field next() {
-                return _fields[currentIndex++];
+                return getField(currentIndex++);
             }
         };
     }
@@ -0,0 +1,123 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntPredicate;
+
+/**
+ * 2Q replacement (Johnson and Shasha, VLDB '94). New pages enter a FIFO
+ * probationary queue, A1in. A page evicted from A1in leaves its id in a
+ * ghost queue, A1out; if the page is requested again while its ghost is
+ * remembered, it has proven to be re-referenced and is admitted to the main
+ * LRU queue, Am. Repeated hits while a page sits in A1in are treated as
+ * correlated references and do not promote it.
+ * <p>
+ * Pages read by a sequential scan are kept in A1in and never leave a ghost,
+ * so a large scan only recycles the probationary frames.
+ * <p>
+ * A hit only sets flags of its frame, so the hit path takes no lock. The
+ * frames of Am that were hit since the last victim search move to the tail
+ * of Am, in queue order, when the next search begins.
+ *
+ * @Threadsafe
+ */
+public class TwoQPolicy implements ReplacementPolicy {
+    private final int _kin;
+    private final int _kout;
+    private final LinkedHashSet<Integer> _a1in = new LinkedHashSet<>();
+    private final LinkedHashSet<Integer> _am = new LinkedHashSet<>();
+    private final LinkedHashSet<PageId> _a1out = new LinkedHashSet<>();
+    // per frame: 1 while only sequential scans have referenced the page
+    private final AtomicIntegerArray _scanOnly;
+    // per frame: 1 if the page was hit since the last victim search
+    private final AtomicIntegerArray _hit;
+
+    /**
+     * Creates a 2Q policy with the customary queue sizes: a quarter of the
+     * frames for A1in and ghosts for half as many pages as there are frames.
+     */
+    public TwoQPolicy(int numFrames) {
+        this(numFrames, Math.max(1, numFrames / 4), Math.max(1, numFrames / 2));
+    }
+
+    /**
+     * @param numFrames the number of frames of the cache
+     * @param kin the target size of A1in
+     * @param kout the number of ghosts remembered in A1out
+     */
+    public TwoQPolicy(int numFrames, int kin, int kout) {
+        _kin = kin;
+        _kout = kout;
+        _scanOnly = new AtomicIntegerArray(numFrames);
+        _hit = new AtomicIntegerArray(numFrames);
+    }
+
+    public synchronized void admitted(int frame, PageId pid, boolean scan) {
+        _scanOnly.set(frame, scan ? 1 : 0);
+        _hit.set(frame, 0);
+        if (!scan && _a1out.remove(pid)) {
+            _am.add(frame);
+        } else {
+            _a1in.add(frame);
+        }
+    }
+
+    public void accessed(int frame, boolean scan) {
+        if (!scan && _scanOnly.get(frame) != 0) {
+            _scanOnly.set(frame, 0);
+        }
+        if (_hit.get(frame) == 0) {
+            _hit.set(frame, 1);
+        }
+    }
+
+    public synchronized void removed(int frame, PageId pid, boolean evicted) {
+        if (_a1in.remove(frame)) {
+            if (evicted && _scanOnly.get(frame) == 0) {
+                _a1out.add(pid);
+                if (_a1out.size() > _kout) {
+                    Iterator<PageId> it = _a1out.iterator();
+                    it.next();
+                    it.remove();
+                }
+            }
+        } else {
+            _am.remove(frame);
+        }
+    }
+
+    public synchronized int victim(IntPredicate eligible) {
+        touch();
+        int f;
+        if (_a1in.size() > _kin || _am.isEmpty()) {
+            f = first(_a1in, eligible);
+            return f != -1 ? f : first(_am, eligible);
+        }
+        f = first(_am, eligible);
+        return f != -1 ? f : first(_a1in, eligible);
+    }
+
+    /** Moves the frames of Am hit since the last search to its tail. */
+    private void touch() {
+        ArrayList<Integer> hit = new ArrayList<>();
+        for (Iterator<Integer> it = _am.iterator(); it.hasNext();) {
+            int f = it.next();
+            if (_hit.getAndSet(f, 0) != 0) {
+                it.remove();
+                hit.add(f);
+            }
+        }
+        _am.addAll(hit);
+    }
+
+    private static int first(LinkedHashSet<Integer> queue, IntPredicate eligible) {
+        for (int f : queue) {
+            if (eligible.test(f)) {
+                return f;
+            }
+        }
+        return -1;
+    }
+}
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.text.ParseException;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Class representing a type in SimpleDB.
@@ -24,6 +25,15 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer bb, int index) throws ParseException {
+            try {
+                return new IntField(bb.getInt(index));
+            } catch (IndexOutOfBoundsException e) {
+                throw new ParseException("couldn't parse", index);
+            }
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -42,6 +52,23 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer bb, int index) throws ParseException {
+            try {
+                int strLen = bb.getInt(index);
+                if (strLen < 0 || strLen > STRING_LEN) {
+                    throw new ParseException("bad string length " + strLen, index);
+                }
+                byte bs[] = new byte[strLen];
+                ByteBuffer src = bb.duplicate();
+                src.position(index + 4);
+                src.get(bs);
+                return new StringField(new String(bs), STRING_LEN);
+            } catch (RuntimeException e) {
+                throw new ParseException("couldn't parse", index);
+            }
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -60,4 +87,15 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object that has contents
+   *   read from the given index of the specified buffer. The position of
+   *   the buffer is not changed.
+   * @param bb The buffer to read from
+   * @param index The index of the first byte of the field
+   * @throws ParseException if the buffer does not hold a field of the
+   *   appropriate type.
+   */
+    public abstract Field parse(ByteBuffer bb, int index) throws ParseException;
+
 }
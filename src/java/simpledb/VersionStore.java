@@ -0,0 +1,217 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionStore lets read-only transactions read a consistent snapshot of
+ * the database without taking locks (multi-version concurrency control).
+ * <p>
+ * Commits are numbered by a clock, and a snapshot is the number of the
+ * last commit it sees. The committed contents of a page resident in the
+ * {@link BufferPool} are its before image, which commit replaces with the
+ * new contents. While snapshots are open, commit first hands the old
+ * before image to the store, tagged with the range of commits it was
+ * current for; a snapshot then reads the current committed contents of a
+ * page if they are old enough for it, and the saved version from its range
+ * otherwise. Versions are dropped as soon as no open snapshot needs them,
+ * so nothing is kept while no snapshot is open.
+ * <p>
+ * The {@link BufferPool} may also write uncommitted changes to disk before
+ * their transaction completes (STEAL), and read the page back later with
+ * them. It then hands the committed contents to the store first, which
+ * keeps them as the committed version of the page until the next commit to
+ * it, and gives them back to abort.
+ * <p>
+ * Commits must be serialized by the caller. A snapshot that starts while a
+ * commit is in progress waits for it to finish, so that it sees either all
+ * of the commit or none of it.
+ *
+ * @Threadsafe
+ */
+public class VersionStore {
+
+    /** An old committed version of a page. */
+    private static final class Version {
+        final long from;  // the commit that made it current
+        final long until; // the commit that replaced it
+        final Page page;
+
+        Version(long from, long until, Page page) {
+            this.from = from;
+            this.until = until;
+            this.page = page;
+        }
+    }
+
+    /** The versions of one page committed while snapshots were open. */
+    private static final class Chain {
+        long lastCommit;
+        final ArrayList<Version> versions = new ArrayList<>(2);
+    }
+
+    private long _clock;        // the last finished commit
+    private boolean _committing;
+    // open snapshots; changed under our monitor, but read without it
+    private final ConcurrentHashMap<TransactionId, Long> _snapshots = new ConcurrentHashMap<>();
+    private final HashMap<PageId, Chain> _chains = new HashMap<>();
+    // committed contents of pages whose uncommitted changes were written out
+    private final HashMap<PageId, Page> _stolen = new HashMap<>();
+
+    /**
+     * Opens a snapshot for tid, seeing every commit finished so far.
+     *
+     * @return the snapshot
+     */
+    public synchronized long begin(TransactionId tid) {
+        boolean interrupted = false;
+        while (_committing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        _snapshots.put(tid, _clock);
+        return _clock;
+    }
+
+    /** @return true if tid reads from a snapshot */
+    public boolean inSnapshot(TransactionId tid) {
+        return _snapshots.containsKey(tid);
+    }
+
+    /** Closes the snapshot of tid, if it has one. */
+    public synchronized void end(TransactionId tid) {
+        if (_snapshots.remove(tid) != null) {
+            prune();
+        }
+    }
+
+    /**
+     * Starts a commit; the caller must call {@link #endCommit} when all its
+     * pages have been saved.
+     *
+     * @return the number of the commit
+     */
+    public synchronized long beginCommit() {
+        _committing = true;
+        return _clock + 1;
+    }
+
+    /**
+     * Keeps the committed contents a commit is about to replace, if an open
+     * snapshot may still need them.
+     *
+     * @param pid the page being committed
+     * @param before the contents committed before, which must not change, or
+     *        null if the committing transaction only changed the page before
+     *        it was stolen
+     * @param commit the number of the commit replacing them
+     * @return true if the commit replaces the contents of the page
+     */
+    public synchronized boolean save(PageId pid, Page before, long commit) {
+        Page stolen = _stolen.remove(pid);
+        if (stolen != null) {
+            // the page may have been read back with the uncommitted changes
+            before = stolen;
+        }
+        if (before == null) {
+            return false;
+        }
+        if (!_snapshots.isEmpty()) {
+            // without a chain, every open snapshot saw the page as it is
+            Chain c = _chains.computeIfAbsent(pid, p -> new Chain());
+            c.versions.add(new Version(c.lastCommit, commit, before));
+            c.lastCommit = commit;
+        }
+        return true;
+    }
+
+    /**
+     * Notes that uncommitted changes to a page are about to be written to
+     * disk. Call before the write, so that nobody reads the page back
+     * without finding its committed contents here.
+     *
+     * @param committed the committed contents of the page, which must not
+     *        change
+     */
+    public synchronized void stolen(PageId pid, Page committed) {
+        _stolen.putIfAbsent(pid, committed);
+    }
+
+    /**
+     * @return the committed contents of a page if uncommitted changes to it
+     *         were written out since its last commit, null otherwise
+     */
+    public synchronized Page stolenImage(PageId pid) {
+        return _stolen.get(pid);
+    }
+
+    /**
+     * Finishes a commit and makes it visible to snapshots opened from now on.
+     *
+     * @param wrote false if the commit changed nothing, so it does not use
+     *        up a number
+     */
+    public synchronized void endCommit(long commit, boolean wrote) {
+        if (wrote) {
+            _clock = commit;
+        }
+        _committing = false;
+        notifyAll();
+    }
+
+    /**
+     * Returns the version of a page visible to the snapshot of tid.
+     *
+     * @param current the page as resident in the buffer pool
+     * @return a copy of the page that nobody changes, or null if tid has no
+     *         snapshot
+     */
+    public synchronized Page read(TransactionId tid, Page current) {
+        Long snapshot = _snapshots.get(tid);
+        if (snapshot == null) {
+            return null;
+        }
+        Chain c = _chains.get(current.getId());
+        if (c != null && c.lastCommit > snapshot) {
+            for (int i = c.versions.size() - 1; i >= 0; i--) {
+                Version v = c.versions.get(i);
+                if (v.from <= snapshot && snapshot < v.until) {
+                    return v.page;
+                }
+            }
+        }
+        // the committed contents, without changes of running transactions;
+        // commit saves the old ones before replacing them, under our monitor
+        Page stolen = _stolen.get(current.getId());
+        return stolen != null ? stolen : current.getBeforeImage();
+    }
+
+    /** Drops the versions no open snapshot can see. */
+    private void prune() {
+        long oldest = Long.MAX_VALUE;
+        for (long s : _snapshots.values()) {
+            oldest = Math.min(oldest, s);
+        }
+        for (Iterator<Map.Entry<PageId, Chain>> it = _chains.entrySet().iterator(); it.hasNext(); ) {
+            Chain c = it.next().getValue();
+            if (c.lastCommit <= oldest) {
+                it.remove();
+                continue;
+            }
+            for (Iterator<Version> vi = c.versions.iterator(); vi.hasNext(); ) {
+                if (vi.next().until <= oldest) {
+                    vi.remove();
+                }
+            }
+        }
+    }
+}
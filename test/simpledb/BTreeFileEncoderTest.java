@@ -0,0 +1,182 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeFileEncoderTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * @return the leaf pages of the file from left to right, following the
+	 *   sibling pointers from the left-most leaf
+	 */
+	private ArrayList<BTreeLeafPage> leaves(BTreeFile f) throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) f.readPage(BTreeRootPtrPage.getId(f.getId()));
+		BTreePageId pid = rootPtr.getRootId();
+		while (pid.pgcateg() == BTreePageId.INTERNAL) {
+			BTreeInternalPage p = (BTreeInternalPage) f.readPage(pid);
+			assertEquals(BTreePageId.INTERNAL, pid.pgcateg());
+			pid = p.iterator().next().getLeftChild();
+		}
+		ArrayList<BTreeLeafPage> leaves = new ArrayList<BTreeLeafPage>();
+		while (pid != null) {
+			BTreeLeafPage leaf = (BTreeLeafPage) f.readPage(pid);
+			leaves.add(leaf);
+			pid = leaf.getRightSiblingId();
+		}
+		return leaves;
+	}
+
+	/**
+	 * Input larger than one sort run is spilled and merged back in key order.
+	 */
+	@Test
+	public void externalSort() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 60000, null, tuples, 0);
+		Database.resetBufferPool(500);
+		BTreeChecker.checkRep(f, tid, new HashMap<PageId, Page>(), true);
+
+		int[] keys = new int[tuples.size()];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = tuples.get(i).get(0);
+		}
+		Arrays.sort(keys);
+
+		int i = 0;
+		for (BTreeLeafPage leaf : leaves(f)) {
+			Iterator<Tuple> it = leaf.iterator();
+			while (it.hasNext()) {
+				assertEquals(keys[i++], ((IntField) it.next().getField(0)).getValue());
+			}
+		}
+		assertEquals(keys.length, i);
+	}
+
+	/**
+	 * Convert a table of n rows keyed on its second field, which counts up
+	 * from 1, and check that its leaves hold the given numbers of tuples.
+	 */
+	private void convertFilled(int n, double fillFactor, int[] expected) throws Exception {
+		File in = File.createTempFile("table", ".txt");
+		in.deleteOnExit();
+		BufferedWriter bw = new BufferedWriter(new FileWriter(in));
+		for (int i = 0; i < n; i++) {
+			bw.write(i + "," + (n - i) + "\n");
+		}
+		bw.close();
+		File hFile = File.createTempFile("table", ".dat");
+		hFile.deleteOnExit();
+		FreeSpaceMap.sideFile(hFile).deleteOnExit();
+		File bFile = File.createTempFile("table_index", ".dat");
+		bFile.deleteOnExit();
+
+		Type[] typeAr = new Type[] { Type.INT_TYPE, Type.INT_TYPE };
+		BTreeFile f = BTreeFileEncoder.convert(in, hFile, bFile, BufferPool.getPageSize(),
+				2, typeAr, ',', 1, fillFactor);
+		BTreeChecker.checkRep(f, tid, new HashMap<PageId, Page>(), true);
+
+		ArrayList<BTreeLeafPage> leaves = leaves(f);
+		assertEquals(expected.length, leaves.size());
+		int key = 1;
+		for (int i = 0; i < leaves.size(); i++) {
+			BTreeLeafPage leaf = leaves.get(i);
+			assertEquals(expected[i], leaf.getMaxTuples() - leaf.getNumEmptySlots());
+			Iterator<Tuple> it = leaf.iterator();
+			while (it.hasNext()) {
+				assertEquals(key++, ((IntField) it.next().getField(1)).getValue());
+			}
+		}
+		assertEquals(expected.length + 1, f.numPages());
+	}
+
+	/**
+	 * Leaves hold the fill factor's share of their capacity, and the last two
+	 * share the rest, but no leaf is less than half full.
+	 */
+	@Test
+	public void fillFactor() throws Exception {
+		// 501 tuples fit on a page, so 375 go on each of the first four leaves
+		// and the last two share the remaining 500
+		convertFilled(2000, 0.75, new int[] { 375, 375, 375, 375, 250, 250 });
+
+		// at half fill, 754 tuples make three leaves, not four of which the
+		// last two would be a quarter full
+		convertFilled(754, 0.5, new int[] { 250, 252, 252 });
+
+		// the last two would share only 376, so the leaf before them gives up
+		// enough for both to be half full
+		convertFilled(1501, 0.75, new int[] { 375, 375, 251, 250, 250 });
+	}
+
+	/**
+	 * A string-keyed index gets internal pages of short separators, so one
+	 * root holds all of the leaves that would need two levels of
+	 * fixed-length internal pages.
+	 */
+	@Test public void stringKeys() throws Exception {
+		File in = File.createTempFile("table", ".txt");
+		in.deleteOnExit();
+		BufferedWriter bw = new BufferedWriter(new FileWriter(in));
+		for (int i = 0; i < 5000; i++) {
+			bw.write(i + "," + String.format("customer-%06d", (i * 7919) % 5000) + "\n");
+		}
+		bw.close();
+		File hFile = File.createTempFile("table", ".dat");
+		hFile.deleteOnExit();
+		FreeSpaceMap.sideFile(hFile).deleteOnExit();
+		File bFile = File.createTempFile("table_index", ".dat");
+		bFile.deleteOnExit();
+
+		Type[] typeAr = new Type[] { Type.INT_TYPE, Type.STRING_TYPE };
+		BTreeFile f = BTreeFileEncoder.convert(in, hFile, bFile, BufferPool.getPageSize(),
+				2, typeAr, ',', 1);
+		Database.resetBufferPool(500);
+		BTreeChecker.checkRep(f, tid, new HashMap<PageId, Page>(), true);
+
+		// 29 tuples fit on a leaf, and 29 keys on an internal page with
+		// fixed-length slots
+		ArrayList<BTreeLeafPage> leaves = leaves(f);
+		assertEquals(173, leaves.size());
+		assertEquals(leaves.size() + 1, f.numPages());
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) f.readPage(BTreeRootPtrPage.getId(f.getId()));
+		BTreeInternalPage root = (BTreeInternalPage) f.readPage(rootPtr.getRootId());
+		assertEquals(leaves.size() - 1, root.getNumEntries());
+
+		for (int i : new int[] { 0, 28, 29, 2500, 4999 }) {
+			StringField key = new StringField(String.format("customer-%06d", i), Type.STRING_LEN);
+			DbFileIterator it = f.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, key));
+			it.open();
+			assertTrue(it.hasNext());
+			assertEquals(key, it.next().getField(1));
+			assertFalse(it.hasNext());
+			it.close();
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeFileEncoderTest.class);
+	}
+}
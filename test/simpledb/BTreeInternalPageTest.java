@@ -171,7 +171,7 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 	 */
 	@Test public void getNumEmptySlots() throws Exception {
 		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
-		assertEquals(483, page.getNumEmptySlots());
+		assertEquals(482, page.getNumEmptySlots());
 	}
 
 	/**
@@ -184,7 +184,7 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		for (int i = 0; i < 21; ++i)
 			assertTrue(page.isSlotUsed(i));
 
-		for (int i = 21; i < 504; ++i)
+		for (int i = 21; i < 503; ++i)
 			assertFalse(page.isSlotUsed(i));
 	}
 
@@ -238,7 +238,7 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		int free = page.getNumEmptySlots();
 
 		// NOTE(ghuo): this nested loop existence check is slow, but it
-		// shouldn't make a difference for n = 503 slots.
+		// shouldn't make a difference for n = 502 slots.
 
 		for (int i = 0; i < free; ++i) {
 			BTreeEntry addition = BTreeUtility.getBTreeEntry(i+21, 70000+i, pid.getTableId());
@@ -313,6 +313,167 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * @return entries with keys "customer-" followed by the zero-padded numbers,
+	 *   each between child pages numbered after its position
+	 */
+	private static ArrayList<BTreeEntry> stringEntries(int tableid, int[] numbers) {
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		for (int i = 0; i < numbers.length; i++) {
+			entries.add(new BTreeEntry(new StringField(String.format("customer-%06d", numbers[i]), Type.STRING_LEN),
+					new BTreePageId(tableid, i + 1, BTreePageId.LEAF),
+					new BTreePageId(tableid, i + 2, BTreePageId.LEAF)));
+		}
+		return entries;
+	}
+
+	/**
+	 * String keys are stored in the variable-length format, which holds many
+	 * more keys than fit in fixed-length slots.
+	 */
+	@Test public void stringKeys() throws Exception {
+		BTreePageId spid = new BTreePageId(-2, -1, BTreePageId.INTERNAL);
+		Database.getCatalog().addTable(new SkeletonFile(-2, new TupleDesc(new Type[] { Type.STRING_TYPE })), 
+				SystemTestUtil.getUUID());
+		int[] numbers = new int[200];
+		for (int i = 0; i < numbers.length; i++)
+			numbers[i] = 2 * i;
+		ArrayList<BTreeEntry> entries = stringEntries(-2, numbers);
+		byte[] data = BTreeFileEncoder.convertToInternalPage(entries, 
+				BufferPool.getPageSize(), Type.STRING_TYPE, BTreePageId.LEAF);
+		BTreeInternalPage page = new BTreeInternalPage(spid, data, 0);
+
+		// fixed-length slots of 132 bytes would hold 29 keys
+		assertEquals(200, page.getNumEntries());
+		Iterator<BTreeEntry> it = page.iterator();
+		for (BTreeEntry e : entries) {
+			BTreeEntry next = it.next();
+			assertEquals(e.getKey(), next.getKey());
+			assertEquals(e.getLeftChild(), next.getLeftChild());
+			assertEquals(e.getRightChild(), next.getRightChild());
+		}
+		assertFalse(it.hasNext());
+		assertTrue(Arrays.equals(data, page.getPageData()));
+	}
+
+	/**
+	 * Entries inserted into a page of string keys keep their order and
+	 * survive serialization.
+	 */
+	@Test public void addStringEntry() throws Exception {
+		BTreePageId spid = new BTreePageId(-2, -1, BTreePageId.INTERNAL);
+		Database.getCatalog().addTable(new SkeletonFile(-2, new TupleDesc(new Type[] { Type.STRING_TYPE })), 
+				SystemTestUtil.getUUID());
+		BTreeInternalPage page = new BTreeInternalPage(spid, BTreeInternalPage.createEmptyPageData(), 0);
+		int[] numbers = { 10, 20, 30 };
+		ArrayList<BTreeEntry> entries = stringEntries(-2, numbers);
+		for (BTreeEntry e : entries)
+			page.insertEntry(e);
+		assertTrue(page.getNumEmptySlots() > 0);
+
+		// split the last child with a key that shares no prefix with the others
+		BTreeEntry e = new BTreeEntry(new StringField("d", Type.STRING_LEN), 
+				new BTreePageId(-2, 4, BTreePageId.LEAF), new BTreePageId(-2, 5, BTreePageId.LEAF));
+		page.insertEntry(e);
+
+		page = new BTreeInternalPage(spid, page.getPageData(), 0);
+		String[] keys = { "customer-000010", "customer-000020", "customer-000030", "d" };
+		int[] rights = { 2, 3, 4, 5 };
+		Iterator<BTreeEntry> it = page.iterator();
+		for (int i = 0; i < keys.length; i++) {
+			BTreeEntry next = it.next();
+			assertEquals(new StringField(keys[i], Type.STRING_LEN), next.getKey());
+			assertEquals(rights[i], next.getRightChild().getPageNumber());
+		}
+
+		// the empty slots are sure to take keys of the longest length
+		int free = page.getNumEmptySlots();
+		for (int i = 0; i < free; i++) {
+			page.insertEntry(new BTreeEntry(new StringField(String.format("e%0127d", i), Type.STRING_LEN), 
+					new BTreePageId(-2, 5 + i, BTreePageId.LEAF), new BTreePageId(-2, 6 + i, BTreePageId.LEAF)));
+		}
+		assertEquals(0, page.getNumEmptySlots());
+	}
+
+	/**
+	 * Separators are the shortest prefix of the right key that is above the
+	 * left key.
+	 */
+	@Test public void separator() throws Exception {
+		assertEquals(new StringField("customer-005", Type.STRING_LEN), BTreeInternalPage.separator(
+				new StringField("customer-0041", Type.STRING_LEN), new StringField("customer-0057", Type.STRING_LEN)));
+		assertEquals(new StringField("abcd", Type.STRING_LEN), BTreeInternalPage.separator(
+				new StringField("abc", Type.STRING_LEN), new StringField("abcde", Type.STRING_LEN)));
+		assertEquals(new StringField("abc", Type.STRING_LEN), BTreeInternalPage.separator(
+				new StringField("abc", Type.STRING_LEN), new StringField("abc", Type.STRING_LEN)));
+		assertEquals(new IntField(7), BTreeInternalPage.separator(new IntField(3), new IntField(7)));
+	}
+
+	/**
+	 * @return the child found by iterating over the entries of the page: the
+	 *   left child of the first key not less than f, or the last child
+	 */
+	private static BTreePageId linearChild(BTreeInternalPage page, Field f) {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while (it.hasNext()) {
+			e = it.next();
+			if (f == null || f.compare(Predicate.Op.LESS_THAN_OR_EQ, e.getKey()))
+				return e.getLeftChild();
+		}
+		return (e == null ? null : e.getRightChild());
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.findChild()
+	 */
+	@Test public void findChild() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		assertEquals(new BTreePageId(-1, 1, BTreePageId.LEAF), page.findChild(null));
+		for (int[] entry : EXAMPLE_VALUES) {
+			for (int d = -1; d <= 1; d++) {
+				Field f = new IntField(entry[1] + d);
+				assertEquals(linearChild(page, f), page.findChild(f));
+			}
+		}
+		assertEquals(new BTreePageId(-1, 21, BTreePageId.LEAF), page.findChild(new IntField(70000)));
+
+		// the search sees entries deleted since the last one
+		Iterator<BTreeEntry> it = page.iterator();
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			if (((IntField) e.getKey()).getValue() == 22064)
+				page.deleteKeyAndRightChild(e);
+		}
+		assertEquals(linearChild(page, new IntField(22064)), page.findChild(new IntField(22064)));
+		assertEquals(new BTreePageId(-1, 8, BTreePageId.LEAF), page.findChild(new IntField(22064)));
+
+		// and an empty page has no children
+		page = new BTreeInternalPage(pid, BTreeInternalPage.createEmptyPageData(), 0);
+		assertEquals(null, page.findChild(new IntField(0)));
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.findChild() on string keys
+	 */
+	@Test public void findStringChild() throws Exception {
+		BTreePageId spid = new BTreePageId(-2, -1, BTreePageId.INTERNAL);
+		Database.getCatalog().addTable(new SkeletonFile(-2, new TupleDesc(new Type[] { Type.STRING_TYPE })),
+				SystemTestUtil.getUUID());
+		int[] numbers = new int[200];
+		for (int i = 0; i < numbers.length; i++)
+			numbers[i] = 2 * i;
+		byte[] data = BTreeFileEncoder.convertToInternalPage(stringEntries(-2, numbers),
+				BufferPool.getPageSize(), Type.STRING_TYPE, BTreePageId.LEAF);
+		BTreeInternalPage page = new BTreeInternalPage(spid, data, 0);
+		for (int i = -1; i <= 2 * numbers.length; i++) {
+			Field f = new StringField(String.format("customer-%06d", i), Type.STRING_LEN);
+			assertEquals(linearChild(page, f), page.findChild(f));
+		}
+		assertEquals(new BTreePageId(-2, 1, BTreePageId.LEAF), page.findChild(new StringField("a", Type.STRING_LEN)));
+		assertEquals(new BTreePageId(-2, 201, BTreePageId.LEAF), page.findChild(new StringField("d", Type.STRING_LEN)));
+	}
+
 	/**
 	 * JUnit suite target
 	 */
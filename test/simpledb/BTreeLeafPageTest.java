@@ -190,7 +190,7 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 	 */
 	@Test public void getNumEmptySlots() throws Exception {
 		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
-		assertEquals(482, page.getNumEmptySlots());
+		assertEquals(481, page.getNumEmptySlots());
 	}
 
 	/**
@@ -202,7 +202,7 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		for (int i = 0; i < 20; ++i)
 			assertTrue(page.isSlotUsed(i));
 
-		for (int i = 20; i < 502; ++i)
+		for (int i = 20; i < 501; ++i)
 			assertFalse(page.isSlotUsed(i));
 	}
 
@@ -262,7 +262,7 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		int free = page0.getNumEmptySlots();
 
 		// NOTE(ghuo): this nested loop existence check is slow, but it
-		// shouldn't make a difference for n = 502 slots.
+		// shouldn't make a difference for n = 501 slots.
 
 		for (int i = 0; i < free; ++i) {
 			Tuple addition = BTreeUtility.getBTreeTuple(i, 2);
@@ -336,6 +336,52 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * @return the tuples of the page iterator from the first key not less than f
+	 */
+	private static List<Tuple> linearFrom(BTreeLeafPage page, Field f) {
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		Iterator<Tuple> it = page.iterator();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			if (!tuples.isEmpty() || t.getField(0).compare(Predicate.Op.GREATER_THAN_OR_EQ, f))
+				tuples.add(t);
+		}
+		return tuples;
+	}
+
+	private static List<Tuple> list(Iterator<Tuple> it) {
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		while (it.hasNext())
+			tuples.add(it.next());
+		return tuples;
+	}
+
+	/**
+	 * Unit test for BTreeLeafPage.iterator(Field)
+	 */
+	@Test public void iteratorFrom() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		for (int[] tuple : EXAMPLE_VALUES) {
+			for (int d = -1; d <= 1; d++) {
+				Field f = new IntField(tuple[0] + d);
+				assertEquals(linearFrom(page, f), list(page.iterator(f)));
+			}
+		}
+		assertEquals(20, list(page.iterator(new IntField(0))).size());
+		assertFalse(page.iterator(new IntField(70000)).hasNext());
+
+		// the search sees tuples inserted and deleted since the last one
+		Tuple tup = BTreeUtility.getBTreeTuple(1468, 2);
+		page.insertTuple(tup);
+		List<Tuple> from = list(page.iterator(new IntField(1468)));
+		assertEquals(linearFrom(page, new IntField(1468)), from);
+		assertTrue(from.subList(0, 2).contains(tup));
+		page.deleteTuple(tup);
+		assertEquals(linearFrom(page, new IntField(1468)), list(page.iterator(new IntField(1468))));
+		assertEquals(19, list(page.iterator(new IntField(1469))).size());
+	}
+
 	/**
 	 * JUnit suite target
 	 */
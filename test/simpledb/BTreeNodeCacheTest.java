@@ -0,0 +1,164 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeNodeCacheTest extends SimpleDbTestBase {
+	/**
+	 * A BTreeFile that notes the pages read from disk.
+	 */
+	private static class CountingBTreeFile extends BTreeFile {
+		final ArrayList<PageId> reads = new ArrayList<PageId>();
+
+		CountingBTreeFile(File f, int key, TupleDesc td) {
+			super(f, key, td);
+		}
+
+		@Override
+		public Page readPage(PageId pid) {
+			synchronized(reads) {
+				reads.add(pid);
+			}
+			return super.readPage(pid);
+		}
+	}
+
+	/**
+	 * A BufferPool that notes the internal and root pointer pages asked of it.
+	 */
+	private static class CountingBufferPool extends BufferPool {
+		final List<PageId> nodes = Collections.synchronizedList(new ArrayList<PageId>());
+
+		CountingBufferPool() {
+			super(BufferPool.DEFAULT_PAGES);
+		}
+
+		@Override
+		public Page getPage(TransactionId tid, PageId pid, Permissions perm, boolean scan, boolean readAhead)
+				throws TransactionAbortedException, DbException {
+			if (pid instanceof BTreePageId && ((BTreePageId) pid).pgcateg() != BTreePageId.LEAF) {
+				nodes.add(pid);
+			}
+			return super.getPage(tid, pid, perm, scan, readAhead);
+		}
+	}
+
+	private TransactionId tid;
+	private CountingBTreeFile f;
+	private BTreePageId rootPtrId;
+	private BTreePageId rootId;
+
+	/**
+	 * Set up a two-level tree: a root internal page over two half-full leaves.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 600, null, null, 0);
+		f = new CountingBTreeFile(bf.getFile(), bf.keyField(), bf.getTupleDesc());
+		Database.getCatalog().addTable(f, UUID.randomUUID().toString());
+		tid = new TransactionId();
+		rootPtrId = BTreeRootPtrPage.getId(f.getId());
+		rootId = ((BTreeRootPtrPage) f.readPage(rootPtrId)).getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/** @return the number of tuples with the key */
+	private int search(int key) throws Exception {
+		DbFileIterator it = f.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+		it.open();
+		int count = 0;
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		return count;
+	}
+
+	/**
+	 * Once the root is cached, a search goes from the cache to its leaf,
+	 * without asking the buffer pool for the root pointer or root.
+	 */
+	@Test
+	public void searchSkipsCachedLevels() throws Exception {
+		CountingBufferPool bp = new CountingBufferPool();
+		Database.resetBufferPool(bp);
+		int before = search(42);
+		assertTrue(bp.nodes.contains(rootId));
+		bp.nodes.clear();
+
+		assertEquals(before, search(42));
+		assertEquals(Collections.emptyList(), bp.nodes);
+	}
+
+	/**
+	 * The cache is rebuilt for a new buffer pool, and after the pool
+	 * discards an internal page, as recovery and aborts do.
+	 */
+	@Test
+	public void rebuiltForNewPoolOrDiscard() throws Exception {
+		int before = search(42);
+		Database.getBufferPool().transactionComplete(tid);
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		f.reads.clear();
+
+		tid = new TransactionId();
+		assertEquals(before, search(42));
+		assertTrue(f.reads.contains(rootPtrId));
+		assertTrue(f.reads.contains(rootId));
+
+		Database.getBufferPool().transactionComplete(tid);
+		Database.getBufferPool().discardPage(rootId);
+		f.reads.clear();
+		tid = new TransactionId();
+		assertEquals(before, search(42));
+		assertTrue(f.reads.contains(rootId));
+	}
+
+	/**
+	 * The cache finds the same leaves as the pages it decodes, and reads the
+	 * root again for a new version of the structure.
+	 */
+	@Test
+	public void versions() throws Exception {
+		BTreeNodeCache cache = new BTreeNodeCache(f.getId(), 2);
+		BTreeInternalPage root = (BTreeInternalPage) f.readPage(rootId);
+		Iterator<BTreeEntry> it = root.iterator();
+		BTreeEntry e = it.next();
+		assertFalse(it.hasNext());
+
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		f.reads.clear();
+		assertEquals(e.getLeftChild(), cache.descend(e.getKey(), 0));
+		assertEquals(e.getLeftChild(), cache.descend(null, 0));
+		assertEquals(e.getRightChild(), cache.descend(new IntField(((IntField) e.getKey()).getValue() + 1), 0));
+		assertEquals(Arrays.asList(rootPtrId, rootId), f.reads);
+
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		f.reads.clear();
+		assertEquals(e.getLeftChild(), cache.descend(e.getKey(), 1));
+		assertEquals(Arrays.asList(rootPtrId, rootId), f.reads);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeNodeCacheTest.class);
+	}
+}
@@ -0,0 +1,104 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.Predicate.Op;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeStructureLockTest extends SimpleDbTestBase {
+	private static final int POLL_INTERVAL = 100;
+
+	private TransactionId tid;
+	private BTreeFile f;
+	private BTreePageId rootPtrId;
+	private BTreePageId rootId;
+
+	/**
+	 * Set up a two-level tree: a root internal page over two half-full leaves.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		f = BTreeUtility.createRandomBTreeFile(2, 600, null, null, 0);
+		tid = new TransactionId();
+		rootPtrId = BTreeRootPtrPage.getId(f.getId());
+		rootId = ((BTreeRootPtrPage) f.readPage(rootPtrId)).getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/** @return the number of tuples with the key */
+	private int search(TransactionId tid, int key) throws Exception {
+		DbFileIterator it = f.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+		it.open();
+		int count = 0;
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		return count;
+	}
+
+	/**
+	 * A search and an insert that fits in its leaf lock the leaf only.
+	 */
+	@Test
+	public void leafLocksOnly() throws Exception {
+		int before = search(tid, 42);
+		Database.getBufferPool().insertTuple(tid, f.getId(), BTreeUtility.getBTreeTuple(42, 2));
+		assertEquals(before + 1, search(tid, 42));
+
+		BufferPool bp = Database.getBufferPool();
+		assertFalse(bp.holdsLock(tid, rootPtrId));
+		assertFalse(bp.holdsLock(tid, rootId));
+		assertTrue(bp.holdsLock(tid, f.findLeafPage(tid, Permissions.READ_ONLY, new IntField(42)).getId()));
+	}
+
+	/**
+	 * While another transaction holds the structure lock, searches lock their
+	 * path and wait for it to complete.
+	 */
+	@Test
+	public void waitForStructureChange() throws Exception {
+		TransactionId smo = new TransactionId();
+		Database.getBufferPool().lockPage(smo, rootPtrId, Permissions.READ_WRITE);
+
+		final int[] found = { -1 };
+		Thread reader = new Thread() {
+			public void run() {
+				try {
+					found[0] = search(tid, -1);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		reader.start();
+		reader.join(POLL_INTERVAL);
+		assertTrue(reader.isAlive());
+
+		Database.getBufferPool().transactionComplete(smo);
+		reader.join();
+		assertEquals(0, found[0]);
+		assertTrue(Database.getBufferPool().holdsLock(tid, rootPtrId));
+		assertTrue(Database.getBufferPool().holdsLock(tid, rootId));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeStructureLockTest.class);
+	}
+}
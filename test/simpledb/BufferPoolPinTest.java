@@ -0,0 +1,117 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolPinTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 503 * 3, null, null);
+        tid = new TransactionId();
+    }
+
+    private HeapPageId pid(int pgNo) {
+        return new HeapPageId(hf.getId(), pgNo);
+    }
+
+    /**
+     * Pinned pages are never evicted; unpinning makes them evictable again.
+     */
+    @Test public void pinnedPagesStayResident() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        Page p0 = bp.getPage(tid, pid(0), Permissions.READ_ONLY);
+        bp.getPage(tid, pid(1), Permissions.READ_ONLY);
+        try {
+            bp.getPage(tid, pid(2), Permissions.READ_ONLY);
+            fail("expected DbException when every frame is pinned");
+        } catch (DbException e) {
+            // expected
+        }
+
+        bp.unpinPage(tid, pid(1));
+        bp.getPage(tid, pid(2), Permissions.READ_ONLY);
+        assertSame(p0, bp.getPage(tid, pid(0), Permissions.READ_ONLY));
+    }
+
+    /**
+     * Pins nest, and the pins of a transaction are released when it
+     * completes.
+     */
+    @Test public void transactionCompleteReleasesPins() throws Exception {
+        BufferPool bp = Database.resetBufferPool(1);
+        bp.getPage(tid, pid(0), Permissions.READ_ONLY);
+        bp.getPage(tid, pid(0), Permissions.READ_ONLY);
+        bp.unpinPage(tid, pid(0));
+        try {
+            bp.getPage(tid, pid(1), Permissions.READ_ONLY);
+            fail("expected DbException while page 0 is still pinned");
+        } catch (DbException e) {
+            // expected
+        }
+
+        bp.transactionComplete(tid);
+        bp.getPage(new TransactionId(), pid(1), Permissions.READ_ONLY);
+    }
+
+    /**
+     * Discarding a page drops its pins, so releasing them later does not
+     * unpin the next copy of the page, which someone else has pinned.
+     */
+    @Test public void discardDropsPins() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        bp.getPage(tid, pid(0), Permissions.READ_ONLY);
+        bp.discardPage(pid(0));
+
+        TransactionId other = new TransactionId();
+        Page p0 = bp.getPage(other, pid(0), Permissions.READ_ONLY);
+        bp.unpinPage(tid, pid(0));
+        bp.transactionComplete(tid);
+
+        TransactionId third = new TransactionId();
+        bp.getPage(third, pid(1), Permissions.READ_ONLY);
+        try {
+            bp.getPage(third, pid(2), Permissions.READ_ONLY);
+            fail("expected DbException while page 0 is still pinned");
+        } catch (DbException e) {
+            // expected
+        }
+        assertSame(p0, bp.getPage(other, pid(0), Permissions.READ_ONLY));
+        bp.transactionComplete(other);
+        bp.transactionComplete(third);
+    }
+
+    /**
+     * A scan unpins each page as it moves on, so it only needs one frame.
+     */
+    @Test public void scanUnpinsAsItAdvances() throws Exception {
+        Database.resetBufferPool(1);
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(503 * 3, count);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolPinTest.class);
+    }
+}
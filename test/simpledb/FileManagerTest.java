@@ -0,0 +1,100 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.EOFException;
+import java.io.File;
+import java.util.Arrays;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileManagerTest {
+    private File f;
+    private FileManager fm;
+
+    @Before public void setUp() throws Exception {
+        f = File.createTempFile("filemanager", ".dat");
+        f.deleteOnExit();
+        fm = new FileManager();
+    }
+
+    private static byte[] filled(int len, int b) {
+        byte[] data = new byte[len];
+        Arrays.fill(data, (byte) b);
+        return data;
+    }
+
+    /**
+     * Positional writes and reads of different pages of one file.
+     */
+    @Test public void readWrite() throws Exception {
+        fm.write(f, filled(4096, 2), 4096);
+        fm.write(f, filled(4096, 1), 0);
+        assertEquals(8192, f.length());
+
+        byte[] buf = new byte[4096];
+        fm.read(f, buf, 4096);
+        assertArrayEquals(filled(4096, 2), buf);
+        fm.read(f, buf, 0);
+        assertArrayEquals(filled(4096, 1), buf);
+    }
+
+    /**
+     * The channel of a file is opened once and kept until closeAll.
+     */
+    @Test public void channelIsShared() throws Exception {
+        assertSame(fm.channel(f), fm.channel(new File(f.getAbsolutePath())));
+        java.nio.channels.FileChannel ch = fm.channel(f);
+        fm.closeAll();
+        assertFalse(ch.isOpen());
+        assertNotSame(ch, fm.channel(f));
+    }
+
+    /**
+     * A thread interrupted during I/O closes the channel; the next user of
+     * the file gets a fresh one.
+     */
+    @Test public void reopensAfterInterrupt() throws Exception {
+        fm.write(f, filled(4096, 1), 0);
+        Thread.currentThread().interrupt();
+        try {
+            fm.read(f, new byte[4096], 0);
+            fail("expected ClosedByInterruptException");
+        } catch (java.nio.channels.ClosedByInterruptException e) {
+            // expected
+        } finally {
+            Thread.interrupted();
+        }
+        byte[] buf = new byte[4096];
+        fm.read(f, buf, 0);
+        assertArrayEquals(filled(4096, 1), buf);
+    }
+
+    /**
+     * Unit test for FileManager.append()
+     */
+    @Test public void append() throws Exception {
+        assertEquals(0, fm.append(f, filled(10, 1)));
+        assertEquals(10, fm.append(f, filled(5, 2)));
+        assertEquals(15, f.length());
+    }
+
+    /**
+     * Reading past the end of the file fails rather than returning a
+     * partial page.
+     */
+    @Test(expected = EOFException.class) public void readPastEnd() throws Exception {
+        fm.write(f, filled(100, 1), 0);
+        fm.read(f, new byte[4096], 0);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FileManagerTest.class);
+    }
+}
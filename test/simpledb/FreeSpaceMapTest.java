@@ -0,0 +1,164 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+    private static final int FULL_PAGES = 20;
+
+    /** Counts the pages read from disk. */
+    class InstrumentedHeapFile extends HeapFile {
+        public InstrumentedHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            reads.incrementAndGet();
+            return super.readPage(pid);
+        }
+
+        AtomicInteger reads = new AtomicInteger();
+    }
+
+    private File f;
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        // FULL_PAGES full pages followed by one page with a single tuple
+        f = SystemTestUtil.createRandomHeapFileUnopened(2, 503 * FULL_PAGES + 1, 1000, null, null);
+        FreeSpaceMap.sideFile(f).deleteOnExit();
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private InstrumentedHeapFile open() {
+        InstrumentedHeapFile hf = new InstrumentedHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        return hf;
+    }
+
+    /**
+     * Inserts go straight to the page with room; once the map is on disk,
+     * a new instance of the file does not read the full pages either.
+     */
+    @Test public void insertSkipsFullPages() throws Exception {
+        InstrumentedHeapFile hf = open();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(1, 2));
+        // building the map reads each page once, outside the buffer pool;
+        // then the insert reads the page it goes to
+        assertEquals(FULL_PAGES + 2, hf.reads.get());
+
+        hf.reads.set(0);
+        Tuple t = Utility.getHeapTuple(2, 2);
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        assertEquals(FULL_PAGES, t.getRecordId().getPageId().getPageNumber());
+        assertEquals(0, hf.reads.get());
+        Database.getBufferPool().transactionComplete(tid);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+        hf = open();
+        t = Utility.getHeapTuple(3, 2);
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        assertEquals(FULL_PAGES, t.getRecordId().getPageId().getPageNumber());
+        assertEquals(1, hf.reads.get());
+    }
+
+    /**
+     * A delete makes its page the target of the next insert.
+     */
+    @Test public void deleteFreesPage() throws Exception {
+        InstrumentedHeapFile hf = open();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        for (int i = 0; i < 503 * 3; i++) {
+            it.next();
+        }
+        Tuple victim = it.next();
+        it.close();
+        assertEquals(3, victim.getRecordId().getPageId().getPageNumber());
+
+        Database.getBufferPool().deleteTuple(tid, victim);
+        Tuple t = Utility.getHeapTuple(4, 2);
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        assertEquals(victim.getRecordId(), t.getRecordId());
+    }
+
+    /**
+     * Filling the last page appends a new one, and a stale map that claims
+     * a full page has room only costs a look at that page, which is not
+     * locked.
+     */
+    @Test public void appendsAndRecoversFromStaleMap() throws Exception {
+        InstrumentedHeapFile hf = open();
+        for (int i = 0; i < 503; i++) {
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(i, 2));
+        }
+        Tuple t = Utility.getHeapTuple(-1, 2);
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        assertEquals(FULL_PAGES + 1, t.getRecordId().getPageId().getPageNumber());
+        Database.getBufferPool().transactionComplete(tid);
+
+        // claim page 0 has room
+        Database.getFileManager().write(FreeSpaceMap.sideFile(f), new byte[] { 0 },
+                FreeSpaceMap.HEADER_SIZE);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+        hf = open();
+        t = Utility.getHeapTuple(-2, 2);
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        assertEquals(FULL_PAGES + 1, t.getRecordId().getPageId().getPageNumber());
+        assertEquals(2, hf.reads.get());
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), 0)));
+    }
+
+    /**
+     * A table written again at the same path gets a new map, so pages the
+     * old map had as full are used.
+     */
+    @Test public void rewrittenTableGetsNewMap() throws Exception {
+        InstrumentedHeapFile hf = open();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(1, 2));
+        Database.getBufferPool().transactionComplete(tid);
+
+        // one page with a single tuple, where the old map has a full page
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        tuples.add(new ArrayList<Integer>(Arrays.asList(1, 2)));
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+        hf = open();
+        Tuple t = Utility.getHeapTuple(2, 2);
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+        assertEquals(1, hf.numPages());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
@@ -0,0 +1,109 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class HeapPageLazyTest extends SimpleDbTestBase {
+    private HeapPageId pid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void addTable() throws Exception {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    /**
+     * The iterator skips empty slots anywhere on the page.
+     */
+    @Test public void iteratorSkipsHoles() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Iterator<Tuple> it = page.iterator();
+        Tuple first = it.next();
+        it.next();
+        Tuple third = it.next();
+        page.deleteTuple(first);
+        page.deleteTuple(third);
+
+        int[][] values = HeapPageReadTest.EXAMPLE_VALUES;
+        int i = 1;
+        for (it = page.iterator(); it.hasNext(); i++) {
+            if (i == 2) {
+                i++;
+            }
+            Tuple t = it.next();
+            assertEquals(i, t.getRecordId().getTupleNumber());
+            assertEquals(new IntField(values[i][0]), t.getField(0));
+            assertEquals(new IntField(values[i][1]), t.getField(1));
+        }
+        assertEquals(values.length, i);
+        try {
+            it.next();
+            fail("expected NoSuchElementException");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A tuple handed out before its slot was reused keeps its contents, and
+     * the page writes out the new tuple.
+     */
+    @Test public void slotReuse() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple old = page.iterator().next();
+        page.deleteTuple(old);
+        Tuple t = Utility.getHeapTuple(new int[] { 7, 8 });
+        page.insertTuple(t);
+        assertEquals(old.getRecordId(), t.getRecordId());
+        assertEquals(new IntField(HeapPageReadTest.EXAMPLE_VALUES[0][0]), old.getField(0));
+
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        Tuple first = copy.iterator().next();
+        assertEquals(new IntField(7), first.getField(0));
+        assertEquals(new IntField(8), first.getField(1));
+    }
+
+    /**
+     * Fields are decoded only when they are asked for, and changing a field
+     * of a tuple changes what the page writes out.
+     */
+    @Test public void decodesOnDemand() throws Exception {
+        byte[] data = HeapPageReadTest.EXAMPLE_DATA.clone();
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        HeapPage page = new HeapPage(pid, bb);
+
+        // change the second field of the first tuple after the page was
+        // built; the change shows because nothing was decoded yet
+        int slots = (BufferPool.getPageSize() - HeapPage.LSN_SIZE) * 8 / (Utility.getTupleDesc(2).getSize() * 8 + 1);
+        bb.putInt(HeapPage.LSN_SIZE + (slots + 7) / 8 + 4, 42);
+        Tuple t = page.iterator().next();
+        assertEquals(new IntField(42), t.getField(1));
+
+        t.setField(0, new IntField(-1));
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        Tuple c = copy.iterator().next();
+        assertEquals(new IntField(-1), c.getField(0));
+        assertEquals(new IntField(42), c.getField(1));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapPageLazyTest.class);
+    }
+}
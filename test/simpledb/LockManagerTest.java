@@ -0,0 +1,205 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.LockManager.Mode;
+
+public class LockManagerTest {
+    /** Time to wait before deciding that a request is blocked, in ms. */
+    private static final int TIMEOUT = 100;
+
+    private LockManager lm;
+    private PageId p0, p1;
+
+    /** Acquires a lock in a thread of its own. */
+    private class Acquirer extends Thread {
+        final TransactionId tid;
+        final PageId pid;
+        final Mode mode;
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Acquirer(TransactionId tid, PageId pid, Mode mode) {
+            this.tid = tid;
+            this.pid = pid;
+            this.mode = mode;
+            setDaemon(true);
+            start();
+        }
+
+        public void run() {
+            try {
+                lm.acquire(tid, pid, mode);
+                done.countDown();
+            } catch (TransactionAbortedException e) {
+                // leave done at 1
+            }
+        }
+
+        boolean acquired() throws InterruptedException {
+            return done.await(TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+    }
+
+    /**
+     * Shared locks coexist, exclusive locks do not, and locks on different
+     * pages are independent.
+     */
+    @Test public void compatibility() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        lm.acquire(t1, p0, Mode.SHARED);
+        assertTrue(new Acquirer(t2, p0, Mode.SHARED).acquired());
+        assertFalse(new Acquirer(new TransactionId(), p0, Mode.EXCLUSIVE).acquired());
+        assertTrue(new Acquirer(t2, p1, Mode.EXCLUSIVE).acquired());
+        assertEquals(Mode.SHARED, lm.holds(t1, p0));
+        assertEquals(Mode.EXCLUSIVE, lm.holds(t2, p1));
+        assertNull(lm.holds(t1, p1));
+    }
+
+    /**
+     * Waiters are served in arrival order: a shared request behind a waiting
+     * exclusive one waits too.
+     */
+    @Test public void fifo() throws Exception {
+        TransactionId t1 = new TransactionId();
+        lm.acquire(t1, p0, Mode.SHARED);
+        Acquirer writer = new Acquirer(new TransactionId(), p0, Mode.EXCLUSIVE);
+        assertFalse(writer.acquired());
+        Acquirer reader = new Acquirer(new TransactionId(), p0, Mode.SHARED);
+        assertFalse(reader.acquired());
+
+        lm.releaseAll(t1);
+        assertTrue(writer.acquired());
+        assertFalse(reader.acquired());
+        lm.releaseAll(writer.tid);
+        assertTrue(reader.acquired());
+    }
+
+    /**
+     * A shared lock is upgraded once the other readers are gone, ahead of
+     * requests that arrived earlier.
+     */
+    @Test public void upgrade() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        lm.acquire(t1, p0, Mode.SHARED);
+        lm.acquire(t2, p0, Mode.SHARED);
+        Acquirer writer = new Acquirer(new TransactionId(), p0, Mode.EXCLUSIVE);
+        assertFalse(writer.acquired());
+        Acquirer upgrade = new Acquirer(t1, p0, Mode.EXCLUSIVE);
+        assertFalse(upgrade.acquired());
+
+        lm.release(t2, p0);
+        assertTrue(upgrade.acquired());
+        assertFalse(writer.acquired());
+        assertEquals(Mode.EXCLUSIVE, lm.holds(t1, p0));
+
+        // the sole holder upgrades at once, and a weaker request is a no-op
+        lm.acquire(t1, p1, Mode.SHARED);
+        lm.acquire(t1, p1, Mode.EXCLUSIVE);
+        lm.acquire(t1, p1, Mode.SHARED);
+        assertEquals(Mode.EXCLUSIVE, lm.holds(t1, p1));
+    }
+
+    /**
+     * releaseAll drops every lock of a transaction.
+     */
+    @Test public void releaseAll() throws Exception {
+        TransactionId t1 = new TransactionId();
+        for (int i = 0; i < 200; i++) {
+            lm.acquire(t1, new HeapPageId(2, i), i % 2 == 0 ? Mode.SHARED : Mode.EXCLUSIVE);
+        }
+        assertEquals(200, lm.lockedPages(t1).length);
+        lm.releaseAll(t1);
+        assertEquals(0, lm.lockedPages(t1).length);
+        for (int i = 0; i < 200; i++) {
+            assertNull(lm.holds(t1, new HeapPageId(2, i)));
+        }
+        assertTrue(new Acquirer(new TransactionId(), new HeapPageId(2, 1), Mode.EXCLUSIVE).acquired());
+    }
+
+    /**
+     * Two readers upgrading the same page deadlock; the younger one is
+     * aborted at once and the older one gets the page once it is gone.
+     */
+    @Test public void upgradeDeadlock() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        lm.acquire(t1, p0, Mode.SHARED);
+        lm.acquire(t2, p0, Mode.SHARED);
+        Acquirer older = new Acquirer(t1, p0, Mode.EXCLUSIVE);
+        assertFalse(older.acquired());
+        try {
+            lm.acquire(t2, p0, Mode.EXCLUSIVE);
+            fail("expected TransactionAbortedException");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        lm.releaseAll(t2);
+        assertTrue(older.acquired());
+    }
+
+    /**
+     * A cycle over two pages aborts the victim chosen by the policy, even if
+     * it is not the transaction that closed the cycle.
+     */
+    @Test public void victimPolicy() throws Exception {
+        lm.setVictimPolicy(LockManager.VictimPolicy.FEWEST_LOCKS);
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        lm.acquire(t1, p0, Mode.EXCLUSIVE);
+        lm.acquire(t2, p1, Mode.EXCLUSIVE);
+        lm.acquire(t2, new HeapPageId(1, 2), Mode.SHARED);
+        Acquirer a1 = new Acquirer(t1, p1, Mode.SHARED);
+        assertFalse(a1.acquired());
+
+        // t2 holds more locks, so t1 is aborted although t2 closed the cycle
+        Acquirer a2 = new Acquirer(t2, p0, Mode.SHARED);
+        a1.join();
+        assertFalse(a1.acquired());
+        lm.releaseAll(t1);
+        assertTrue(a2.acquired());
+    }
+
+    /**
+     * Intention locks let writers of different records share a page, but
+     * not with a reader of the whole page; a reader that also writes
+     * records holds both.
+     */
+    @Test public void intentionModes() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        lm.acquire(t1, p0, Mode.INTENTION_EXCLUSIVE);
+        assertTrue(new Acquirer(t2, p0, Mode.INTENTION_EXCLUSIVE).acquired());
+        assertFalse(new Acquirer(new TransactionId(), p0, Mode.SHARED).acquired());
+
+        TransactionId t3 = new TransactionId();
+        lm.acquire(t3, p1, Mode.SHARED);
+        lm.acquire(t3, p1, Mode.INTENTION_EXCLUSIVE);
+        assertEquals(Mode.SHARED_INTENTION_EXCLUSIVE, lm.holds(t3, p1));
+        assertTrue(new Acquirer(new TransactionId(), p1, Mode.INTENTION_SHARED).acquired());
+        assertFalse(new Acquirer(new TransactionId(), p1, Mode.SHARED).acquired());
+
+        RecordId r = new RecordId(p0, 3);
+        lm.acquire(t1, r, Mode.EXCLUSIVE);
+        assertFalse(lm.tryAcquire(t2, r, Mode.SHARED));
+        assertTrue(lm.lockedByOthers(t2, r));
+        assertTrue(lm.tryAcquire(t2, new RecordId(p0, 4), Mode.EXCLUSIVE));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,90 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class MappedHeapFileTest extends SimpleDbTestBase {
+    private HeapFile mapped;
+    private HeapFile plain;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 1200, 1000, null, tuples);
+        plain = new HeapFile(f, Utility.getTupleDesc(2));
+        mapped = new HeapFile(f, Utility.getTupleDesc(2), true);
+        // both objects share the id of the file; register the mapped one
+        Database.getCatalog().addTable(mapped, SystemTestUtil.getUUID());
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Pages built from the mapping match pages read from the file.
+     */
+    @Test public void readPage() throws Exception {
+        assertTrue(mapped.isMemoryMapped());
+        assertEquals(plain.numPages(), mapped.numPages());
+        for (int i = 0; i < mapped.numPages(); i++) {
+            HeapPageId pid = new HeapPageId(mapped.getId(), i);
+            HeapPage m = (HeapPage) mapped.readPage(pid);
+            HeapPage p = (HeapPage) plain.readPage(pid);
+            assertArrayEquals(p.getPageData(), m.getPageData());
+            assertArrayEquals(p.getPageData(), m.getBeforeImage().getPageData());
+            assertNull(m.isDirty());
+        }
+    }
+
+    /**
+     * A scan through the buffer pool returns every tuple.
+     */
+    @Test public void scan() throws Exception {
+        SeqScan scan = new SeqScan(tid, mapped.getId(), "");
+        SystemTestUtil.matchTuples(scan, tuples);
+    }
+
+    /**
+     * Updates are rejected.
+     */
+    @Test public void readOnly() throws Exception {
+        Iterator<Tuple> it = ((HeapPage) mapped.readPage(new HeapPageId(mapped.getId(), 0))).iterator();
+        try {
+            mapped.deleteTuple(tid, it.next());
+            fail("expected DbException on delete");
+        } catch (DbException e) {
+            // expected
+        }
+        try {
+            mapped.insertTuple(tid, Utility.getHeapTuple(1, 2));
+            fail("expected DbException on insert");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MappedHeapFileTest.class);
+    }
+}
@@ -0,0 +1,164 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PageCacheTest extends TestUtil.CreateHeapFile {
+
+    private static final PageCache.Evictor ANY = p -> true;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    private HeapPage page(int pgNo) throws Exception {
+        return new HeapPage(new HeapPageId(empty.getId(), pgNo), HeapPage.createEmptyPageData());
+    }
+
+    /**
+     * Unit test for PageCache.putIfAbsent() and PageCache.get()
+     */
+    @Test public void putIfAbsent() throws Exception {
+        PageCache cache = new PageCache(4);
+        HeapPage p0 = page(0);
+        assertSame(p0, cache.putIfAbsent(p0, false, ANY));
+        assertSame(p0, cache.putIfAbsent(page(0), false, ANY));
+        assertSame(p0, cache.get(p0.getId(), false));
+        assertNull(cache.get(new HeapPageId(empty.getId(), 1), false));
+    }
+
+    /**
+     * Unit test for PageCache.put() replacing a resident page
+     */
+    @Test public void putReplaces() throws Exception {
+        PageCache cache = new PageCache(4);
+        cache.put(page(0), ANY);
+        HeapPage p0 = page(0);
+        cache.put(p0, ANY);
+        assertSame(p0, cache.peek(p0.getId()));
+        assertEquals(1, cache.pages().size());
+    }
+
+    /**
+     * The cache never grows beyond its capacity, and a recently referenced
+     * page survives a sweep of the clock.
+     */
+    @Test public void evictsUnreferenced() throws Exception {
+        PageCache cache = new PageCache(4);
+        for (int i = 0; i < 4; i++) {
+            cache.put(page(i), ANY);
+        }
+        for (int i = 4; i < 20; i++) {
+            cache.get(new HeapPageId(empty.getId(), 0), false);
+            cache.put(page(i), ANY);
+            assertEquals(4, cache.pages().size());
+        }
+        assertNotNull(cache.peek(new HeapPageId(empty.getId(), 0)));
+    }
+
+    /**
+     * Dirty pages the evictor refuses are never dropped.
+     */
+    @Test public void evictorVeto() throws Exception {
+        PageCache cache = new PageCache(2);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 2; i++) {
+            HeapPage p = page(i);
+            p.markDirty(true, tid);
+            cache.put(p, ANY);
+        }
+        try {
+            cache.put(page(2), p -> false);
+            fail("expected DbException when no page can be evicted");
+        } catch (DbException e) {
+            // expected
+        }
+        assertNotNull(cache.peek(new HeapPageId(empty.getId(), 0)));
+        assertNotNull(cache.peek(new HeapPageId(empty.getId(), 1)));
+    }
+
+    /**
+     * Clean pages are evicted before dirty ones, without calling the evictor.
+     */
+    @Test public void evictsCleanFirst() throws Exception {
+        PageCache cache = new PageCache(2);
+        HeapPage p0 = page(0);
+        p0.markDirty(true, new TransactionId());
+        cache.put(p0, ANY);
+        cache.put(page(1), ANY);
+        cache.put(page(2), p -> false);
+        assertSame(p0, cache.peek(p0.getId()));
+        assertNull(cache.peek(new HeapPageId(empty.getId(), 1)));
+    }
+
+    /**
+     * Pinned pages are skipped by eviction until they are unpinned.
+     */
+    @Test public void pinnedNotEvicted() throws Exception {
+        PageCache cache = new PageCache(1);
+        HeapPage p0 = page(0);
+        assertSame(p0, cache.putIfAbsent(p0, false, true, ANY));
+        assertEquals(1, cache.pinCount(p0.getId()));
+        try {
+            cache.put(page(1), ANY);
+            fail("expected DbException when the only frame is pinned");
+        } catch (DbException e) {
+            // expected
+        }
+        assertTrue(cache.unpin(p0.getId()));
+        assertFalse(cache.unpin(p0.getId()));
+        cache.put(page(1), ANY);
+        assertNull(cache.peek(p0.getId()));
+    }
+
+    /**
+     * A victim that is pinned for writing and released while the evictor
+     * writes it out is not dropped, since the write may miss the change.
+     */
+    @Test public void changedDuringEviction() throws Exception {
+        PageCache cache = new PageCache(1);
+        HeapPage p0 = page(0);
+        p0.markDirty(true, new TransactionId());
+        cache.put(p0, ANY);
+        try {
+            cache.put(page(1), p -> {
+                assertSame(p0, cache.pin(p0.getId(), false));
+                cache.writing(p0.getId());
+                cache.unpin(p0.getId());
+                return true;
+            });
+            fail("expected DbException when the only victim changed");
+        } catch (DbException e) {
+            // expected
+        }
+        assertSame(p0, cache.peek(p0.getId()));
+
+        // written out again without a change, it goes
+        cache.put(page(1), ANY);
+        assertNull(cache.peek(p0.getId()));
+    }
+
+    /**
+     * Unit test for PageCache.remove()
+     */
+    @Test public void remove() throws Exception {
+        PageCache cache = new PageCache(1);
+        HeapPage p0 = page(0);
+        cache.put(p0, ANY);
+        assertSame(p0, cache.remove(p0.getId()));
+        assertNull(cache.peek(p0.getId()));
+        // the freed frame is reused without evicting
+        cache.put(page(1), p -> false);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCacheTest.class);
+    }
+}
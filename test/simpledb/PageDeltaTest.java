@@ -0,0 +1,70 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageDeltaTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+
+    @Before public void addTable() throws IOException {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    /**
+     * A one-tuple insert logs a few bytes, and redo and undo turn either
+     * image into the other.
+     */
+    @Test public void insertTuple() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        HeapPage before = page.getBeforeImage();
+        page.insertTuple(Utility.getHeapTuple(42, 2));
+        byte[] b = before.getPageData(), a = page.getPageData();
+
+        PageDelta d = PageDelta.diff(before, page);
+        assertNotNull(d);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        d.write(new DataOutputStream(out));
+        assertTrue(out.size() < 100);
+
+        d = PageDelta.read(new DataInputStream(new ByteArrayInputStream(out.toByteArray())));
+        assertEquals(pid, d.getId());
+        byte[] redone = b.clone();
+        d.redo(redone);
+        assertTrue(Arrays.equals(a, redone));
+        byte[] undone = a.clone();
+        d.undo(undone);
+        assertTrue(Arrays.equals(b, undone));
+    }
+
+    /** A page that starts out empty is logged as full images. */
+    @Test public void emptyBefore() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        HeapPage before = page.getBeforeImage();
+        page.insertTuple(Utility.getHeapTuple(42, 2));
+        assertNull(PageDelta.diff(before, page));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageDeltaTest.class);
+    }
+}
@@ -0,0 +1,63 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageTypeTest extends SimpleDbTestBase {
+
+    @Before public void addTable() {
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    private static PageId roundTrip(PageId pid) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PageType.writeId(new DataOutputStream(out), pid);
+        assertEquals(9, out.size());
+        return PageType.readId(new DataInputStream(new ByteArrayInputStream(out.toByteArray())));
+    }
+
+    /** Ids of every kind of page read back as they were written. */
+    @Test public void ids() throws Exception {
+        assertEquals(new HeapPageId(7, 3), roundTrip(new HeapPageId(7, 3)));
+        for (int categ : new int[] { BTreePageId.ROOT_PTR, BTreePageId.INTERNAL,
+                                     BTreePageId.LEAF, BTreePageId.HEADER }) {
+            BTreePageId pid = new BTreePageId(-2, 5, categ);
+            assertEquals(pid, roundTrip(pid));
+        }
+    }
+
+    /** A heap page is rebuilt from its id and bytes. */
+    @Test public void heapPage() throws Exception {
+        HeapPageId pid = new HeapPageId(-1, -1);
+        Page p = PageType.page(pid, HeapPageReadTest.EXAMPLE_DATA);
+        assertTrue(p instanceof HeapPage);
+        assertEquals(pid, p.getId());
+        assertTrue(Arrays.equals(HeapPageReadTest.EXAMPLE_DATA, p.getPageData()));
+    }
+
+    @Test(expected = IOException.class) public void unknownCode() throws Exception {
+        PageType.of((byte) 42);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageTypeTest.class);
+    }
+}
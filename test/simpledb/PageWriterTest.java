@@ -0,0 +1,180 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageWriterTest extends SimpleDbTestBase {
+    private static final int PAGES = 8;
+
+    private HeapFile hf;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 503 * PAGES, null, null);
+    }
+
+    private HeapPage dirty(BufferPool bp, TransactionId tid, int pgNo) throws Exception {
+        HeapPage p = (HeapPage) bp.getPage(tid, new HeapPageId(hf.getId(), pgNo),
+                Permissions.READ_WRITE);
+        p.deleteTuple(p.iterator().next());
+        return p;
+    }
+
+    /** Fills a cache with dirty pages of hf, none of them pinned. */
+    private HeapPage[] dirtyCache(PageCache cache, TransactionId tid) throws Exception {
+        HeapPage[] pages = new HeapPage[PAGES];
+        for (int i = 0; i < PAGES; i++) {
+            pages[i] = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), i));
+            pages[i].deleteTuple(pages[i].iterator().next());
+            pages[i].markDirty(true, tid);
+            cache.put(pages[i], p -> false);
+        }
+        return pages;
+    }
+
+    private static void waitUntilClean(HeapPage p) throws InterruptedException {
+        for (int i = 0; i < 500 && p.isDirty() != null; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * The writer writes out unpinned dirty pages without anybody asking for
+     * a frame.
+     */
+    @Test public void cleansUnpinnedPages() throws Exception {
+        PageCache cache = new PageCache(16);
+        AtomicInteger writes = new AtomicInteger();
+        PageWriter writer = new PageWriter(cache, p -> {
+            hf.writePage(p);
+            writes.incrementAndGet();
+            return true;
+        }, 2, 16);
+        HeapPage[] pages = dirtyCache(cache, new TransactionId());
+
+        writer.wake();
+        for (HeapPage p : pages) {
+            waitUntilClean(p);
+            assertNull(p.isDirty());
+            HeapPage onDisk = (HeapPage) hf.readPage(p.getId());
+            assertEquals(1, onDisk.getNumEmptySlots());
+        }
+        assertEquals(PAGES, writes.get());
+    }
+
+    /**
+     * With background writes disabled, or refused by the flusher, dirty
+     * pages stay dirty.
+     */
+    @Test public void disabledOrRefused() throws Exception {
+        PageCache cache = new PageCache(16);
+        AtomicInteger writes = new AtomicInteger();
+        PageWriter writer = new PageWriter(cache, p -> {
+            writes.incrementAndGet();
+            return true;
+        }, 2, 0);
+        HeapPage[] pages = dirtyCache(cache, new TransactionId());
+        writer.wake();
+        Thread.sleep(50);
+        assertEquals(0, writes.get());
+
+        PageCache cache2 = new PageCache(16);
+        writer = new PageWriter(cache2, p -> false, 2, 16);
+        pages = dirtyCache(cache2, new TransactionId());
+        writer.wake();
+        Thread.sleep(50);
+        for (HeapPage p : pages) {
+            assertNotNull(p.isDirty());
+        }
+        assertEquals(0, cache2.pinCount(pages[0].getId()));
+    }
+
+    /**
+     * A page changed by somebody else while the writer writes it stays
+     * dirty, and its change is written out by a later write.
+     */
+    @Test public void changedDuringWrite() throws Exception {
+        PageCache cache = new PageCache(16);
+        TransactionId tid = new TransactionId();
+        AtomicInteger writes = new AtomicInteger();
+        PageWriter writer = new PageWriter(cache, p -> {
+            hf.writePage(p);
+            if (p.getId().getPageNumber() == 0 && writes.get() < PAGES) {
+                // another transaction pins, changes and releases the page
+                // after its bytes were written
+                HeapPage hp = (HeapPage) cache.pin(p.getId(), false);
+                cache.writing(hp.getId());
+                try {
+                    hp.deleteTuple(hp.iterator().next());
+                } catch (DbException e) {
+                    throw new IOException(e);
+                }
+                hp.markDirty(true, tid);
+                cache.unpin(hp.getId());
+            }
+            writes.incrementAndGet();
+            return true;
+        }, 2, 16);
+        HeapPage[] pages = dirtyCache(cache, tid);
+
+        writer.wake();
+        for (HeapPage p : pages) {
+            waitUntilClean(p);
+            assertNull(p.isDirty());
+        }
+        assertEquals(2, ((HeapPage) hf.readPage(pages[0].getId())).getNumEmptySlots());
+        assertEquals(PAGES + 1, writes.get());
+    }
+
+    /**
+     * Under NO-STEAL the buffer pool's writer leaves the pages of a running
+     * transaction alone even once they are unpinned; commit writes them,
+     * logging each one first.
+     */
+    @Test public void commitWritesUncommittedPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(16);
+        bp.setCleanFrameTarget(16);
+        TransactionId tid = new TransactionId();
+        HeapPage[] pages = new HeapPage[PAGES - 1];
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = dirty(bp, tid, i);
+            bp.unpinPage(tid, pages[i].getId());
+        }
+        int records = Database.getLogFile().getTotalRecords();
+
+        // a miss wakes the writer, which must not touch the pages
+        bp.getPage(tid, new HeapPageId(hf.getId(), PAGES - 1), Permissions.READ_ONLY);
+        Thread.sleep(50);
+        for (HeapPage p : pages) {
+            assertNotNull(p.isDirty());
+            assertEquals(0, ((HeapPage) hf.readPage(p.getId())).getNumEmptySlots());
+        }
+
+        bp.transactionComplete(tid);
+        for (HeapPage p : pages) {
+            assertNull(p.isDirty());
+            assertEquals(1, ((HeapPage) hf.readPage(p.getId())).getNumEmptySlots());
+        }
+        // write-ahead rule: one update record per page written
+        assertEquals(records + pages.length, Database.getLogFile().getTotalRecords());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageWriterTest.class);
+    }
+}
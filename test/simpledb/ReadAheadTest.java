@@ -0,0 +1,222 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+    private static final int PAGES = 40;
+
+    /** Counts the pages read by the calling thread and by everybody else. */
+    class InstrumentedHeapFile extends HeapFile {
+        public InstrumentedHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            if (Thread.currentThread() == scanner) {
+                scannerReads.incrementAndGet();
+            } else {
+                backgroundReads.incrementAndGet();
+            }
+            return super.readPage(pid);
+        }
+
+        @Override
+        public int numPages() {
+            if (new Throwable().getStackTrace()[1].getClassName().equals(ReadAhead.class.getName())) {
+                readAheadSizes.incrementAndGet();
+            }
+            return super.numPages();
+        }
+
+        Thread scanner = Thread.currentThread();
+        AtomicInteger scannerReads = new AtomicInteger();
+        AtomicInteger backgroundReads = new AtomicInteger();
+        // times read ahead asked for the size of the file
+        AtomicInteger readAheadSizes = new AtomicInteger();
+    }
+
+    /** Counts the pages read by threads other than the scanner. */
+    class InstrumentedBTreeFile extends BTreeFile {
+        public InstrumentedBTreeFile(File f, int keyField, TupleDesc td) {
+            super(f, keyField, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            reads.incrementAndGet();
+            if (Thread.currentThread() != scanner) {
+                backgroundReads.incrementAndGet();
+            }
+            return super.readPage(pid);
+        }
+
+        Thread scanner = Thread.currentThread();
+        AtomicInteger reads = new AtomicInteger();
+        AtomicInteger backgroundReads = new AtomicInteger();
+    }
+
+    private InstrumentedHeapFile hf;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 503 * PAGES, 1000, null, null);
+        hf = new InstrumentedHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+    }
+
+    private int scan() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    /**
+     * A sequential scan is read ahead, and every page is still read exactly
+     * once.
+     */
+    @Test public void prefetchesSequentialScan() throws Exception {
+        Database.resetBufferPool(2 * PAGES);
+        assertEquals(503 * PAGES, scan());
+        assertTrue(hf.backgroundReads.get() > 0);
+        assertEquals(PAGES, hf.scannerReads.get() + hf.backgroundReads.get());
+    }
+
+    /**
+     * Following a heap scan does not ask for the size of the file at every
+     * page, only when the scan starts and when it reaches the end.
+     */
+    @Test public void sizeOfFileOnlyAtEnds() throws Exception {
+        Database.resetBufferPool(2 * PAGES);
+        assertEquals(503 * PAGES, scan());
+        assertEquals(2, hf.readAheadSizes.get());
+    }
+
+    /**
+     * A full scan of a B+ tree follows the right siblings of the leaves ahead
+     * of the scan.
+     */
+    @Test public void prefetchesLeafChain() throws Exception {
+        BTreeFile bf = BTreeUtility.createBTreeFile(2, 30 * 501, null, null, 0);
+        InstrumentedBTreeFile index = new InstrumentedBTreeFile(bf.getFile(), 0, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(index, SystemTestUtil.getUUID());
+        Database.resetBufferPool(2 * PAGES);
+
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = index.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+
+        assertEquals(30 * 501, count);
+        assertTrue(index.backgroundReads.get() > 0);
+        // root pointer page + root + 30 leaves, each read once
+        assertEquals(32, index.reads.get());
+    }
+
+    /**
+     * A range scan that stops at a bound does not read ahead past its end,
+     * but still reads its leaves as a scan for the replacement policy.
+     */
+    @Test public void boundedLeafScan() throws Exception {
+        BTreeFile bf = BTreeUtility.createBTreeFile(2, 30 * 501, null, null, 0);
+        InstrumentedBTreeFile index = new InstrumentedBTreeFile(bf.getFile(), 0, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(index, SystemTestUtil.getUUID());
+        final Map<PageId, Boolean> admitted = new ConcurrentHashMap<PageId, Boolean>();
+        ReplacementPolicy policy = new ClockPolicy(2 * PAGES) {
+            @Override
+            public void admitted(int frame, PageId pid, boolean scan) {
+                admitted.put(pid, scan);
+                super.admitted(frame, pid, scan);
+            }
+        };
+        Database.resetBufferPool(new BufferPool(2 * PAGES, policy));
+
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = index.indexIterator(tid,
+                new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(10 * 501)));
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+
+        assertEquals(10 * 501 - 1, count);
+        assertEquals(0, index.backgroundReads.get());
+        // the search finds the first leaf; the scan follows the others
+        int scanned = 0;
+        int searched = 0;
+        for (Map.Entry<PageId, Boolean> e : admitted.entrySet()) {
+            if (((BTreePageId) e.getKey()).pgcateg() == BTreePageId.LEAF) {
+                if (e.getValue())
+                    scanned++;
+                else
+                    searched++;
+            }
+        }
+        assertEquals(1, searched);
+        assertEquals(9, scanned);
+    }
+
+    /**
+     * Random page accesses are not read ahead.
+     */
+    @Test public void ignoresRandomAccess() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2 * PAGES);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < PAGES; i += 3) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+        bp.transactionComplete(tid);
+        assertEquals(0, hf.backgroundReads.get());
+    }
+
+    /**
+     * With the window set to 0 the scan reads every page itself.
+     */
+    @Test public void disabled() throws Exception {
+        Database.resetBufferPool(2 * PAGES).setReadAheadWindow(0);
+        assertEquals(503 * PAGES, scan());
+        assertEquals(0, hf.backgroundReads.get());
+        assertEquals(PAGES, hf.scannerReads.get());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
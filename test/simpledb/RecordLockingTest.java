@@ -0,0 +1,154 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class RecordLockingTest extends SimpleDbTestBase {
+    /** Time to wait before deciding that an operation is blocked, in ms. */
+    private static final int TIMEOUT = 200;
+
+    private HeapFile hf;
+    private BufferPool bp;
+    private ArrayList<ArrayList<Integer>> tuples = new ArrayList<>();
+
+    /** An operation run on behalf of a transaction in a thread of its own. */
+    private interface Op {
+        void run() throws Exception;
+    }
+
+    private static class Runner extends Thread {
+        final Op op;
+        volatile Exception error;
+
+        Runner(Op op) {
+            this.op = op;
+            setDaemon(true);
+            start();
+        }
+
+        public void run() {
+            try {
+                op.run();
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+
+        /** @return true if the operation completed without an error */
+        boolean finished() throws InterruptedException {
+            join(TIMEOUT);
+            return !isAlive() && error == null;
+        }
+    }
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // a single page with room to spare
+        hf = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+        bp = Database.getBufferPool();
+        bp.setRecordLocking(true);
+    }
+
+    private int count(TransactionId tid) throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * Two transactions insert into the same page without waiting for each
+     * other; only the one that commits reaches the disk.
+     */
+    @Test public void writersShareAPage() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        bp.insertTuple(t1, hf.getId(), Utility.getHeapTuple(new int[] { -1, -1 }));
+        Runner r = new Runner(() -> bp.insertTuple(t2, hf.getId(),
+                Utility.getHeapTuple(new int[] { -2, -2 })));
+        assertTrue(r.finished());
+        assertEquals(1, hf.numPages());
+
+        bp.transactionComplete(t1, true);
+        bp.transactionComplete(t2, false);
+
+        HeapPage onDisk = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<>(tuples);
+        ArrayList<Integer> inserted = new ArrayList<>();
+        inserted.add(-1);
+        inserted.add(-1);
+        expected.add(inserted);
+        ArrayList<ArrayList<Integer>> actual = new ArrayList<>();
+        for (Iterator<Tuple> it = onDisk.iterator(); it.hasNext(); ) {
+            actual.add(SystemTestUtil.tupleToList(it.next()));
+        }
+        assertEquals(expected, actual);
+
+        // the page in the pool matches and is clean again
+        Page cached = bp.getPage(null, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        assertNull(cached.isDirty());
+        assertEquals(11, count(new TransactionId()));
+    }
+
+    /**
+     * A scan waits for a record whose delete is not committed, and sees it
+     * again once the delete is rolled back.
+     */
+    @Test public void readerWaitsForUncommittedDelete() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        Tuple victim = firstTuple(t1);
+        bp.deleteTuple(t1, victim);
+        assertEquals(9, count(t1));
+
+        int[] seen = new int[1];
+        Runner reader = new Runner(() -> seen[0] = count(t2));
+        assertFalse(reader.finished());
+        bp.transactionComplete(t1, false);
+        assertTrue(reader.finished());
+        assertEquals(10, seen[0]);
+    }
+
+    /** A slot freed by an uncommitted delete is not reused by others. */
+    @Test public void insertSkipsUncommittedDelete() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        Tuple victim = firstTuple(t1);
+        bp.deleteTuple(t1, victim);
+
+        Tuple t = Utility.getHeapTuple(new int[] { -2, -2 });
+        bp.insertTuple(t2, hf.getId(), t);
+        assertFalse(victim.getRecordId().equals(t.getRecordId()));
+
+        bp.transactionComplete(t1, false);
+        bp.transactionComplete(t2, true);
+        assertEquals(11, count(new TransactionId()));
+    }
+
+    private Tuple firstTuple(TransactionId tid) throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        Tuple t = it.next();
+        it.close();
+        return t;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecordLockingTest.class);
+    }
+}
@@ -0,0 +1,150 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentedLogTest {
+    private static final int SEGMENT = 64;
+
+    private File dir;
+    private File base;
+    private SegmentedLog log;
+
+    @Before public void setUp() throws IOException {
+        dir = Files.createTempDirectory("seglog").toFile();
+        base = new File(dir, "log");
+        log = new SegmentedLog(base, SEGMENT);
+        log.reset(10);
+    }
+
+    @After public void tearDown() throws IOException {
+        log.close();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    /** Writes 40 longs from position 10 on, spanning six segments. */
+    private void fill() throws IOException {
+        for (long i = 0; i < 40; i++) {
+            log.writeLong(i);
+        }
+    }
+
+    /**
+     * Values written across segment boundaries read back at their
+     * positions; each segment is preallocated at its full size.
+     */
+    @Test public void spansSegments() throws Exception {
+        fill();
+        assertEquals(10 + 40 * 8, log.length());
+        log.force();
+        assertEquals(6, log.segments());
+        for (int i = 0; i < 6; i++) {
+            assertEquals(SEGMENT, new File(dir, "log." + i).length());
+        }
+
+        log.seek(10 + 7 * 8);   // straddles the first boundary
+        assertEquals(7, log.readLong());
+        log.seek(10 + 39 * 8);
+        assertEquals(39, log.readLong());
+    }
+
+    /** Truncation deletes the segments below the new start only. */
+    @Test public void truncate() throws Exception {
+        fill();
+        log.truncate(2 * SEGMENT + 5);
+        assertEquals(4, log.segments());
+        assertFalse(new File(dir, "log.1").exists());
+        assertTrue(new File(dir, "log.2").exists());
+
+        log.seek(10 + 20 * 8);
+        assertEquals(20, log.readLong());
+        try {
+            log.seek(SEGMENT);
+            fail("seek below the start of the log");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A reopened log ends with its last segment; setLength zeroes what
+     * follows the end and deletes later segments.
+     */
+    @Test public void reopen() throws Exception {
+        fill();
+        log.setLength(10 + 20 * 8);
+        log.close();
+
+        log = new SegmentedLog(base, SEGMENT);
+        assertEquals(3, log.segments());
+        assertEquals(0, log.start());
+        assertEquals(3 * SEGMENT, log.length());
+        log.seek(10 + 19 * 8);
+        assertEquals(19, log.readLong());
+        assertEquals(0, log.readLong());
+    }
+
+    /**
+     * A segment written while its force was in progress stays unforced,
+     * even once a commit has crossed into the next segment.
+     */
+    @Test public void writeDuringForce() throws Exception {
+        log.writeLong(1);
+        SegmentedLog.Sync sync = log.sync();
+        assertEquals(1, sync.channels.size());
+        FileChannel first = sync.channels.get(0);
+
+        // a commit appended during the force fills the first segment and
+        // goes on into the second
+        for (long i = 0; i < 8; i++) {
+            log.writeLong(i);
+        }
+        SegmentedLog.Sync during = log.sync();
+        assertEquals(2, during.channels.size());
+        first.force(false);
+        log.forced(sync);
+
+        List<FileChannel> unforced = log.sync().channels;
+        assertEquals(2, unforced.size());
+        assertTrue(unforced.contains(first));
+
+        // a force of everything synced clears both
+        for (FileChannel c : during.channels) {
+            c.force(false);
+        }
+        log.forced(during);
+        assertTrue(log.sync().channels.isEmpty());
+    }
+
+    /** Lines end at any of the three line ends, across segments too. */
+    @Test public void readLine() throws Exception {
+        log.writeBytes("first\nsecond\r\nthe third line runs past the first segment\rlast");
+        log.seek(10);
+        assertEquals("first", log.readLine());
+        assertEquals("second", log.readLine());
+        assertEquals("the third line runs past the first segment", log.readLine());
+        assertEquals("last", log.readLine());
+        assertNull(log.readLine());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SegmentedLogTest.class);
+    }
+}
@@ -0,0 +1,108 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SnapshotReadTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 10, null, new ArrayList<ArrayList<Integer>>());
+        bp = Database.getBufferPool();
+    }
+
+    private int count(TransactionId tid) throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * A snapshot reads past a page locked by a writer, and keeps seeing
+     * the database as of its start after the writer commits.
+     */
+    @Test public void readsPastWriters() throws Exception {
+        TransactionId writer = new TransactionId(), reader = new TransactionId();
+        bp.insertTuple(writer, hf.getId(), Utility.getHeapTuple(new int[] { -1, -1 }));
+        PageId p0 = new HeapPageId(hf.getId(), 0);
+        assertTrue(bp.holdsLock(writer, p0));
+
+        bp.beginSnapshot(reader);
+        assertEquals(10, count(reader));
+        assertFalse(bp.holdsLock(reader, p0));
+
+        bp.transactionComplete(writer, true);
+        assertEquals(10, count(reader));
+
+        TransactionId later = new TransactionId();
+        bp.beginSnapshot(later);
+        assertEquals(11, count(later));
+
+        // another commit after both snapshots
+        TransactionId writer2 = new TransactionId();
+        bp.insertTuple(writer2, hf.getId(), Utility.getHeapTuple(new int[] { -2, -2 }));
+        bp.transactionComplete(writer2, true);
+        assertEquals(10, count(reader));
+        assertEquals(11, count(later));
+
+        bp.transactionComplete(reader, true);
+        bp.transactionComplete(later, true);
+        assertEquals(12, count(new TransactionId()));
+    }
+
+    /**
+     * A snapshot does not see uncommitted changes written to disk under
+     * STEAL, even once the page is read back; abort puts the committed page
+     * back on disk.
+     */
+    @Test public void readsPastStolenPages() throws Exception {
+        bp.setStealNoForce(true);
+        TransactionId writer = new TransactionId(), reader = new TransactionId();
+        bp.insertTuple(writer, hf.getId(), Utility.getHeapTuple(new int[] { -1, -1 }));
+        PageId p0 = new HeapPageId(hf.getId(), 0);
+        int free = ((HeapPage) hf.readPage(p0)).getNumEmptySlots();
+        bp.flushAllPages();
+        bp.discardPage(p0);
+        assertEquals(free - 1, ((HeapPage) hf.readPage(p0)).getNumEmptySlots());
+
+        bp.beginSnapshot(reader);
+        assertEquals(10, count(reader));
+
+        bp.transactionComplete(writer, false);
+        assertEquals(free, ((HeapPage) hf.readPage(p0)).getNumEmptySlots());
+        assertEquals(10, count(reader));
+        bp.transactionComplete(reader, true);
+        assertEquals(10, count(new TransactionId()));
+    }
+
+    /** Snapshot transactions cannot write. */
+    @Test(expected = DbException.class) public void readOnly() throws Exception {
+        TransactionId tid = new TransactionId();
+        bp.beginSnapshot(tid);
+        bp.insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { -1, -1 }));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotReadTest.class);
+    }
+}
@@ -0,0 +1,88 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+
+/**
+ * Measures commit throughput against the number of committing threads, to
+ * show how far group commit in {@link LogFile#logCommit} lets commits share
+ * forces of the log.
+ * <p>
+ * Usage: <tt>CommitBenchmark [window-us] [seconds] [insert]</tt>. Each thread
+ * runs transactions that begin and commit, back to back, for the given
+ * number of seconds; with <tt>insert</tt>, every transaction also inserts a
+ * row into a table of its own, under STEAL/NO-FORCE so that commit writes
+ * nothing but the log. The group commit window defaults to 0.
+ */
+public class CommitBenchmark {
+    private static final int[] THREADS = { 1, 2, 4, 8, 16 };
+
+    public static void main(String[] args) throws Exception {
+        long window = args.length > 0 ? Long.parseLong(args[0]) : 0;
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 2;
+        boolean insert = args.length > 2 && args[2].equals("insert");
+
+        System.out.println("window " + window + "us, " + (insert ? "one insert" : "empty")
+                           + " transactions");
+        System.out.println("threads\tcommits/sec");
+        for (int n : THREADS) {
+            System.out.println(n + "\t" + run(n, window, seconds * 1000, insert));
+        }
+    }
+
+    /** @return the commits per second n threads achieved */
+    private static long run(int n, long window, final long millis, final boolean insert)
+            throws Exception {
+        Database.reset();
+        Database.getBufferPool().setStealNoForce(true);
+        Database.getLogFile().setGroupCommitWindow(window);
+        final ArrayList<HeapFile> tables = new ArrayList<HeapFile>();
+        ArrayList<File> files = new ArrayList<File>();
+        for (int i = 0; i < n; i++) {
+            File f = File.createTempFile("bench", ".dat");
+            f.deleteOnExit();
+            FreeSpaceMap.sideFile(f).deleteOnExit();
+            files.add(f);
+            tables.add(Utility.createEmptyHeapFile(f.getAbsolutePath(), 2));
+        }
+
+        final AtomicLong commits = new AtomicLong();
+        final long end = System.currentTimeMillis() + millis;
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < n; i++) {
+            final HeapFile table = tables.get(i);
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        int v = 0;
+                        while (System.currentTimeMillis() < end) {
+                            Transaction t = new Transaction();
+                            t.start();
+                            if (insert) {
+                                Database.getBufferPool().insertTuple(t.getId(), table.getId(),
+                                        Utility.getHeapTuple(new int[] { v, v }));
+                                v++;
+                            }
+                            t.commit();
+                            commits.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        for (File f : files) {
+            f.delete();
+        }
+        return commits.get() * 1000 / millis;
+    }
+}
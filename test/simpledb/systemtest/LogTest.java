@@ -3,6 +3,7 @@ package simpledb.systemtest;
 import java.io.*;
 import java.util.*;
 
+import org.junit.After;
 import org.junit.Test;
 
 import simpledb.*;
@@ -126,6 +127,19 @@ public class LogTest extends SimpleDbTestBase {
         hf2 = Utility.createEmptyHeapFile(file2.getAbsolutePath(), 2);
     }
 
+    /**
+     * Delete the tables and their free space maps, which live in the
+     * working directory.
+     */
+    @After public void tearDown() {
+        for (File f : new File[] { file1, file2 }) {
+            if (f != null) {
+                f.delete();
+                FreeSpaceMap.sideFile(f).delete();
+            }
+        }
+    }
+
     @Test public void PatchTest()
             throws IOException, DbException, TransactionAbortedException {
         setup();
@@ -427,6 +441,233 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestNoForceCommitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getBufferPool().setStealNoForce(true);
+
+        // *** Test:
+        // under NO-FORCE, commit leaves the page in the pool; recovery
+        // redoes the committed insert from the log
+        doInsert(hf1, -1, 1);
+        HeapPage onDisk = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        assertEquals(onDisk.getNumEmptySlots(),
+                     new HeapPage(onDisk.getId(), HeapPage.createEmptyPageData()).getNumEmptySlots());
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        t.commit();
+    }
+
+    @Test public void TestStealAbortCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getBufferPool().setStealNoForce(true);
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1's insert is written out before it aborts, on top of a commit
+        // that was never forced; abort restores the committed page
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+        Database.getBufferPool().flushAllPages();
+        t1.abort();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        t.commit();
+
+        // T2's insert is written out, then the system crashes
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 4, 0);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, false);
+        t.commit();
+    }
+
+    @Test public void TestGroupCommitCrash()
+            throws Exception {
+        setup();
+        Database.getLogFile().setGroupCommitWindow(10000);
+
+        // *** Test:
+        // two transactions commit at the same time, sharing a force of
+        // the log; both survive a crash
+        final Exception[] error = new Exception[1];
+        Thread other = new Thread() {
+            public void run() {
+                try {
+                    doInsert(hf2, 21, 22);
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+            }
+        };
+        other.start();
+        doInsert(hf1, 1, 2);
+        other.join();
+        assertNull(error[0]);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf2, t, 21, true);
+        look(hf2, t, 22, true);
+        t.commit();
+    }
+
+    // the live threads that force the log for commits
+    Set<Thread> flushers() {
+        Set<Thread> flushers = new HashSet<Thread>();
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals("simpledb-log-flusher"))
+                flushers.add(t);
+        }
+        return flushers;
+    }
+
+    @Test public void TestOneFlusher()
+            throws Exception {
+        setup();
+
+        // *** Test:
+        // one flusher thread forces the log for commit after commit, and
+        // a reset stops it
+        doInsert(hf1, 1, 2);
+        Set<Thread> first = flushers();
+        doInsert(hf1, 3, 4);
+        doInsert(hf2, 21, 22);
+        Set<Thread> last = flushers();
+        assertTrue(first.containsAll(last));
+        assertEquals(1, last.size());
+
+        Thread flusher = last.iterator().next();
+        Database.reset();
+        flusher.join(10000);
+        assertFalse(flusher.isAlive());
+    }
+
+    long diskLSN(HeapFile hf) {
+        return ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0))).getLSN();
+    }
+
+    @Test public void TestPageLSN()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // pages on disk carry the LSN of their last update, and LSNs keep
+        // growing across truncation of the log and across a new log
+        doInsert(hf1, 1, 2);
+        long lsn1 = diskLSN(hf1);
+        assertTrue(lsn1 > 0);
+
+        Database.getLogFile().logCheckpoint();
+        doInsert(hf1, 3, -1);
+        long lsn2 = diskLSN(hf1);
+        assertTrue(lsn2 > lsn1);
+
+        crash();
+        assertEquals(lsn2, diskLSN(hf1));
+
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        doInsert(hf1, 4, -1);
+        assertTrue(diskLSN(hf1) > lsn2);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 3, true);
+        look(hf1, t, 4, true);
+        t.commit();
+    }
+
+    @Test public void TestCrashAfterRecovery()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, -1);
+
+        // *** Test:
+        // T1's insert is on disk at the crash and recovery takes it out;
+        // T2 then reuses its slot and commits. A second crash must not
+        // undo T1 again over T2's insert
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 2, 0);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 3, 0);
+        t2.commit();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, false);
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
+    @Test public void TestFuzzyCheckpointCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getBufferPool().setStealNoForce(true);
+        Database.getBufferPool().setCleanFrameTarget(0);
+
+        // *** Test:
+        // a checkpoint writes no pages; a commit that was not forced before
+        // it is redone from its recovery LSN, which the log is not cut past
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 1, 0);
+        insertRow(hf1, t1, 2, 0);
+        t1.commit();
+        Database.getLogFile().logCheckpoint();
+        assertEquals(0, diskLSN(hf1));
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 3, 0);
+        t2.commit();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);
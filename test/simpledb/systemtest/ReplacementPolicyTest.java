@@ -0,0 +1,157 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+/**
+ * Checks that the scan-resistant replacement policies keep the pages of a
+ * hot index in the buffer pool while a table much larger than the pool is
+ * being scanned, where CLOCK lets the scan push them out.
+ */
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 40;
+    private static final int SCAN_PAGES = 400;
+    private static final int HOT_KEYS = 8;
+    // more than the pool holds, so the scan alone would evict a page that
+    // is only referenced once a round
+    private static final int PAGES_PER_ROUND = 50;
+
+    class InstrumentedBTreeFile extends BTreeFile {
+        public InstrumentedBTreeFile(File f, int keyField, TupleDesc td) {
+            super(f, keyField, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            readCount += 1;
+            return super.readPage(pid);
+        }
+
+        public int readCount = 0;
+    }
+
+    class InstrumentedBufferPool extends BufferPool {
+        public InstrumentedBufferPool(int numPages, ReplacementPolicy policy, int tableId) {
+            super(numPages, policy);
+            this.tableId = tableId;
+        }
+
+        @Override
+        public Page getPage(TransactionId tid, PageId pid, Permissions perm, boolean scan)
+                throws TransactionAbortedException, DbException {
+            if (pid.getTableId() == tableId) {
+                accessCount += 1;
+            }
+            return super.getPage(tid, pid, perm, scan);
+        }
+
+        private final int tableId;
+        public int accessCount = 0;
+    }
+
+    private void lookup(TransactionId tid, BTreeFile f, Field key)
+            throws DbException, TransactionAbortedException {
+        DbFileIterator it = f.indexIterator(tid, new IndexPredicate(Op.EQUALS, key));
+        it.open();
+        assertTrue(it.hasNext());
+        while (it.hasNext()) {
+            it.next();
+        }
+        it.close();
+    }
+
+    /**
+     * Interleaves lookups of a few hot keys with a scan of a heap file ten
+     * times the size of the pool and returns the hit rate of the lookups
+     * after the first round.
+     */
+    private double indexHitRate(ReplacementPolicy policy)
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 40 * 501, null, tuples, 0);
+        InstrumentedBTreeFile index = new InstrumentedBTreeFile(bf.getFile(), 0, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(index, SystemTestUtil.getUUID());
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 503 * SCAN_PAGES, null, null);
+
+        InstrumentedBufferPool pool = new InstrumentedBufferPool(POOL_PAGES, policy, index.getId());
+        Database.resetBufferPool(pool);
+
+        Field[] hot = new Field[HOT_KEYS];
+        for (int i = 0; i < HOT_KEYS; i++) {
+            hot[i] = new IntField(tuples.get(i * tuples.size() / HOT_KEYS).get(0));
+        }
+
+        TransactionId tid = new TransactionId();
+        // warm up: the hot index pages are each referenced more than once
+        for (int round = 0; round < 2; round++) {
+            for (Field k : hot) {
+                lookup(tid, index, k);
+            }
+        }
+        SeqScan scan = new SeqScan(tid, big.getId(), "");
+        scan.open();
+        int pages = 0;
+        int lastPage = -1;
+        while (scan.hasNext()) {
+            int pgNo = scan.next().getRecordId().getPageId().getPageNumber();
+            if (pgNo != lastPage) {
+                lastPage = pgNo;
+                if (++pages % PAGES_PER_ROUND == 0) {
+                    for (Field k : hot) {
+                        lookup(tid, index, k);
+                    }
+                    if (pages == PAGES_PER_ROUND) {
+                        // 2Q admits the hot pages to its main queue once
+                        // they come back after the scan evicted them
+                        index.readCount = 0;
+                        pool.accessCount = 0;
+                    }
+                }
+            }
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(SCAN_PAGES, pages);
+
+        return 1.0 - (double) index.readCount / pool.accessCount;
+    }
+
+    /**
+     * Asserts that the policy keeps the index in the pool, and does so
+     * clearly better than CLOCK, which does not resist scans.
+     */
+    private void keepsIndexDuringScan(ReplacementPolicy policy)
+            throws IOException, DbException, TransactionAbortedException {
+        double clock = indexHitRate(new ClockPolicy(POOL_PAGES));
+        double hitRate = indexHitRate(policy);
+        assertTrue("index hit rate " + hitRate, hitRate >= 0.9);
+        assertTrue("index hit rate " + hitRate + " against " + clock + " with CLOCK",
+                hitRate >= clock + 0.3);
+    }
+
+    @Test public void twoQKeepsIndexDuringScan()
+            throws IOException, DbException, TransactionAbortedException {
+        keepsIndexDuringScan(new TwoQPolicy(POOL_PAGES));
+    }
+
+    @Test public void lruKKeepsIndexDuringScan()
+            throws IOException, DbException, TransactionAbortedException {
+        keepsIndexDuringScan(new LruKPolicy(POOL_PAGES));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}